@@ -25,6 +25,7 @@ Script used by StratusLab PDisk to manage Backend LUNs.
 
 import sys
 from optparse import OptionParser
+from StringIO import StringIO
 
 sys.path.append('/var/lib/stratuslab/python')
 
@@ -52,6 +53,9 @@ Parameters:
     action=rebase:   LUN_UUID (will return the rebased LUN UUID on stdout)
     action=snapshot: LUN_UUID New_LUN_UUID Snapshot_Size
     action=unmap:    LUN_UUID
+
+With --serve, requests are read from stdin and replies written to stdout
+until end of file (see serve()).
 """
     parser.set_usage(usage_text)
     parser.add_option('--config', dest='config_file', action='store', 
@@ -60,6 +64,8 @@ Parameters:
                                                         defaults.CONFIG_FILE_NAME)
     parser.add_option('--action', dest='action', action='store', default='', 
                       help='Action to execute. Valid actions: %s' % VALID_ACTIONS_STR)
+    parser.add_option('--serve', dest='serve', action='store_true', default=False,
+                      help='Serve framed requests on stdin/stdout instead of executing a single action')
     parser.add_option('-v', '--debug', '--verbose', dest='verbosity',
                       action='count', default=defaults.VERBOSITY, 
                       help='Increase verbosity level for debugging (multiple allowed)')
@@ -73,75 +79,134 @@ ch = ConfigHolder(config_file_name=options.config_file,
                   verbosity=options.verbosity)
 initialize_logger(ch.get(defaults.CONFIG_MAIN_SECTION, 'log_direction'),
                   ch.verbosity)
-            
-if options.action in VALID_ACTIONS:
-    if len(args) < VALID_ACTIONS[options.action]:
-        print_detail("Insufficient argument provided (%d required)" % VALID_ACTIONS[options.action])  
-        parser.print_help()
-        abort("")
-else:
-    if options.action:
-        print_detail("Invalid action requested (%s)\n" % options.action)
+
+def check_action(action, args):
+    """
+    Returns an error message if the action or its number of arguments is
+    invalid, None otherwise.
+    """
+    if action in VALID_ACTIONS:
+        if len(args) < VALID_ACTIONS[action]:
+            return "Insufficient argument provided (%d required)" % VALID_ACTIONS[action]
+    elif action:
+        return "Invalid action requested (%s)\n" % action
     else:
-        print_detail("No action specified\n")
-    parser.print_help()
-    abort("")
+        return "No action specified\n"
+    return None
+
+def execute_action(action, args, backend_proxy):
+    """
+    Executes the requested action and returns its exit status.
+    """
+    status = 0
+
+    if action == 'check':
+        print_detail("Checking LUN existence...", 1)
+        lun = LUN(args[0], proxy=backend_proxy)
+        status = lun.check()
+    elif action == 'create':
+        print_detail("Creating LUN...", 1)
+        lun = LUN(args[0], size=args[1], proxy=backend_proxy)
+        status = lun.create()
+    elif action == 'delete':
+        print_detail("Deleting LUN...", 1)
+        lun = LUN(args[0], proxy=backend_proxy)
+        status = lun.delete()
+    elif action == 'getturl' :
+        print_detail("Returning Transport URL...", 1)
+        lun = LUN(args[0], proxy=backend_proxy)
+        turl = lun.getTurl()
+        # If an error occured, it has already been signaled.
+        # If it succeeds, rebasedLUN should always be defined...
+        if turl:
+            print turl
+            status = 0
+        else:
+            status = 10
+    elif action == 'rebase':
+        print_detail("Rebasing LUN...", 1)
+        lun = LUN(args[0], proxy=backend_proxy)
+        rebasedLUN = lun.rebase()
+        # If an error occured, it has already been signaled.
+        # If it succeeds, rebasedLUN should always be defined...
+        if rebasedLUN:
+            print rebasedLUN
+            status = 0
+        else:
+            status = 10
+    elif action == 'snapshot':
+        print_detail("Doing a LUN snapshot...", 1)
+        lun = LUN(args[0],size=args[2],proxy=backend_proxy)
+        snapshot_lun = LUN(args[1],proxy=backend_proxy)
+        # Only the last error is returned
+        status = lun.snapshot(snapshot_lun)
+    elif action == 'map':
+        print_detail("Mapping LUN...", 1)
+        lun = LUN(args[0],proxy=backend_proxy)
+        status = lun.map()
+    elif action == 'unmap':
+        print_detail("Unmapping LUN...", 1)
+        lun = LUN(args[0],proxy=backend_proxy)
+        status = lun.unmap()
+    else:
+        abort("Internal error: unimplemented action (%s)" % action)
+
+    return status
+
+def serve(backend_proxy):
+    """
+    Serves requests read from stdin until end of file. Each request is a
+    line with the number of fields, followed by one line per field: the
+    action and then its arguments. Each reply is a line with the exit
+    status and the length of the output, followed by the output itself.
+    """
+    channel = sys.stdout
+    while True:
+        header = sys.stdin.readline()
+        if not header:
+            break
+        fields = [sys.stdin.readline().rstrip('\n') for i in range(int(header))]
+        action, action_args = fields[0], fields[1:]
+
+        output = StringIO()
+        sys.stdout = output
+        try:
+            try:
+                error = check_action(action, action_args)
+                if error:
+                    print error
+                    status = 2
+                else:
+                    status = execute_action(action, action_args, backend_proxy)
+            except SystemExit, e:
+                if e.code is None or isinstance(e.code, int):
+                    status = e.code or 0
+                else:
+                    print e.code
+                    status = 1
+            except Exception, e:
+                print "Internal error: %s" % e
+                status = 1
+        finally:
+            sys.stdout = channel
+
+        reply = output.getvalue()
+        if isinstance(reply, unicode):
+            reply = reply.encode('utf-8')
+        channel.write('%d %d\n' % (status or 0, len(reply)))
+        channel.write(reply)
+        channel.flush()
 
 backend_proxy = PdiskBackendProxyFactory.createBackendProxy(ch)
 
-# Execute requested action
-
-status = 0
-
-if options.action == 'check':
-    print_detail("Checking LUN existence...", 1)
-    lun = LUN(args[0], proxy=backend_proxy)
-    status = lun.check()
-elif options.action == 'create':
-    print_detail("Creating LUN...", 1)
-    lun = LUN(args[0], size=args[1], proxy=backend_proxy)
-    status = lun.create()
-elif options.action == 'delete':
-    print_detail("Deleting LUN...", 1)
-    lun = LUN(args[0], proxy=backend_proxy)
-    status = lun.delete()
-elif options.action == 'getturl' :
-    print_detail("Returning Transport URL...", 1)
-    lun = LUN(args[0], proxy=backend_proxy)
-    turl = lun.getTurl()
-    # If an error occured, it has already been signaled.
-    # If it succeeds, rebasedLUN should always be defined...
-    if turl:
-        print turl
-        status = 0
-    else:
-        status = 10
-elif options.action == 'rebase':
-    print_detail("Rebasing LUN...", 1)
-    lun = LUN(args[0], proxy=backend_proxy)
-    rebasedLUN = lun.rebase()
-    # If an error occured, it has already been signaled.
-    # If it succeeds, rebasedLUN should always be defined...
-    if rebasedLUN:
-        print rebasedLUN
-        status = 0
-    else:
-        status = 10
-elif options.action == 'snapshot':
-    print_detail("Doing a LUN snapshot...", 1)
-    lun = LUN(args[0],size=args[2],proxy=backend_proxy)
-    snapshot_lun = LUN(args[1],proxy=backend_proxy)
-    # Only the last error is returned
-    status = lun.snapshot(snapshot_lun)
-elif options.action == 'map':
-    print_detail("Mapping LUN...", 1)
-    lun = LUN(args[0],proxy=backend_proxy)
-    status = lun.map()
-elif options.action == 'unmap':
-    print_detail("Unmapping LUN...", 1)
-    lun = LUN(args[0],proxy=backend_proxy)
-    status = lun.unmap()
-else:
-    abort("Internal error: unimplemented action (%s)" % options.action)
-
-sys.exit(status)
+if options.serve:
+    serve(backend_proxy)
+    sys.exit(0)
+
+error = check_action(options.action, args)
+if error:
+    print_detail(error)
+    parser.print_help()
+    abort("")
+
+sys.exit(execute_action(options.action, args, backend_proxy))
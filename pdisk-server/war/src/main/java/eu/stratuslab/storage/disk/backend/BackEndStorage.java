@@ -1,16 +1,44 @@
 package eu.stratuslab.storage.disk.backend;
 
 import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.utils.CircuitBreaker;
+import eu.stratuslab.storage.disk.utils.CommandExecutor.CommandClass;
+import eu.stratuslab.storage.disk.utils.FileUtils;
 import eu.stratuslab.storage.disk.utils.ProcessUtils;
+import eu.stratuslab.storage.disk.utils.Statistics;
 import eu.stratuslab.storage.persistence.Disk;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
 
-public final class BackEndStorage {
+/**
+ * Storage backend delegating all actions to persistent-disk-backend.py,
+ * either by forking the script for each action or through a pool of
+ * long-running workers.
+ */
+public final class BackEndStorage implements StorageBackend {
 
-    private String CONFIG = "/etc/stratuslab/pdisk-backend.cfg";
-    private String CMD = "/usr/sbin/persistent-disk-backend.py";
+    private static final String CONFIG = "/etc/stratuslab/pdisk-backend.cfg";
+    private static final String CMD = "/usr/sbin/persistent-disk-backend.py";
+
+    private static final String PROXIES_KEY = "iscsi_proxies";
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static BackEndWorkerPool workerPool = null;
+
+    private static TurlCache turlCache = null;
+
+    private static String breakerName = null;
 
     public void create(String uuid, long size) {
         String errorMsg = "Unable to create volume on backend storage: " + uuid + " of size " + size;
@@ -19,7 +47,22 @@ public final class BackEndStorage {
         execute("create", errorMsg, args);
     }
 
-    protected String execute(String action, String errorMsg, String... arguments) {
+    // The script talks to the first of the configured iSCSI proxies: all the
+    // actions share the breaker of that proxy.
+    protected String execute(final String action, final String errorMsg, final String... arguments) {
+        return CircuitBreaker.get(getBreakerName()).call(new Callable<String>() {
+            public String call() {
+                return executeAction(action, errorMsg, arguments);
+            }
+        });
+    }
+
+    private String executeAction(String action, String errorMsg, String... arguments) {
+        BackEndWorkerPool pool = getWorkerPool();
+        if (pool != null) {
+            return pool.execute(action, errorMsg, arguments);
+        }
+
         String[] preArgs = {CMD, "--config", CONFIG, "--action", action};
         List<String> args = new ArrayList<String>();
         for (String s : preArgs) {
@@ -35,11 +78,72 @@ public final class BackEndStorage {
     private String execute(String errorMsg, String... arguments) {
         ProcessBuilder pb = new ProcessBuilder(arguments);
 
-        return ProcessUtils.executeWithOutput(pb, errorMsg);
+        return ProcessUtils.executeWithOutput(CommandClass.BACKEND, pb, errorMsg);
+    }
+
+    private static synchronized BackEndWorkerPool getWorkerPool() {
+        int workers = RootApplication.CONFIGURATION.BACKEND_WORKERS;
+        if (workerPool == null && workers > 0) {
+            workerPool = new BackEndWorkerPool(Arrays.asList(CMD, "--config", CONFIG), workers,
+                    RootApplication.CONFIGURATION.BACKEND_WORKER_MAX_REQUESTS,
+                    RootApplication.CONFIGURATION.getCommandTimeout(CommandClass.BACKEND.getName(),
+                            CommandClass.BACKEND.getDefaultTimeout()));
+        }
+        return workerPool;
     }
 
-    // TODO: expose this
-    protected String checkDiskExists(String baseUuid) {
+    private static synchronized String getBreakerName() {
+        if (breakerName == null) {
+            String proxy = readProxy(new File(CONFIG));
+            breakerName = (proxy == null) ? "backend" : "backend:" + proxy;
+        }
+        return breakerName;
+    }
+
+    // First of the iscsi_proxies in the [main] section, or null.
+    private static String readProxy(File config) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(config), Charset.defaultCharset()));
+            String section = "";
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("[") && line.endsWith("]")) {
+                    section = line.substring(1, line.length() - 1).trim();
+                } else if ("main".equals(section) && line.startsWith(PROXIES_KEY)) {
+                    String[] keyValue = line.split("[=:]", 2);
+                    if (keyValue.length == 2 && PROXIES_KEY.equals(keyValue[0].trim())) {
+                        String proxy = keyValue[1].split(",")[0].trim();
+                        return "".equals(proxy) ? null : proxy;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warning("cannot read iSCSI proxies from " + config.getAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            FileUtils.closeIgnoringError(reader);
+        }
+        return null;
+    }
+
+    private static synchronized TurlCache getTurlCache() {
+        if (turlCache == null) {
+            turlCache = new TurlCache(RootApplication.CONFIGURATION.TURL_CACHE_SIZE,
+                    RootApplication.CONFIGURATION.TURL_CACHE_TTL * 1000L);
+            Statistics.register("turl_cache", turlCache);
+        }
+        return turlCache;
+    }
+
+    public static synchronized void shutdownWorkerPool() {
+        if (workerPool != null) {
+            workerPool.shutdown();
+            workerPool = null;
+        }
+    }
+
+    public String checkDiskExists(String baseUuid) {
 
         String[] args = {baseUuid};
         return execute("check", "Volume does not exist on backend storage: " + baseUuid, args);
@@ -47,15 +151,32 @@ public final class BackEndStorage {
 
     public String getTurl(String baseUuid) {
 
-        String[] args = {baseUuid};
-        return execute("getturl", "Cannot find transport URL (turl) for uuid: " + baseUuid, args).trim();
+        TurlCache cache = getTurlCache();
+        String turl = cache.get(baseUuid);
+        if (turl == null) {
+            long generation = cache.getGeneration();
+            String[] args = {baseUuid};
+            turl = execute("getturl", "Cannot find transport URL (turl) for uuid: " + baseUuid, args).trim();
+            cache.put(baseUuid, turl, generation);
+        }
+        return turl;
     }
 
     public String rebase(Disk disk) {
 
+        // Invalidated again once done, for lookups made while it ran.
+        getTurlCache().invalidate(disk.getUuid());
+
         String[] args = {disk.getUuid()};
         String errorMsg = "Cannot rebase image on backend storage: " + disk.getUuid();
-        String rebasedUuid = execute("rebase", errorMsg, args);
+        String rebasedUuid;
+        try {
+            rebasedUuid = execute("rebase", errorMsg, args);
+        } finally {
+            getTurlCache().invalidate(disk.getUuid());
+        }
+
+        getTurlCache().invalidate(rebasedUuid.trim());
 
         return rebasedUuid;
     }
@@ -72,7 +193,12 @@ public final class BackEndStorage {
         String[] args = {uuid, "0"};
         String errorMsg = "Unable to delete volume on backend storage: " + uuid;
 
-        execute("delete", errorMsg, args);
+        getTurlCache().invalidate(uuid);
+        try {
+            execute("delete", errorMsg, args);
+        } finally {
+            getTurlCache().invalidate(uuid);
+        }
     }
 
     public String getDiskLocation(String vmId, String diskUuid) {
@@ -90,7 +216,12 @@ public final class BackEndStorage {
     public void unmap(String uuid) {
         String[] args = {uuid};
 
-        execute("unmap", "Unable to unmap: " + uuid, args);
+        getTurlCache().invalidate(uuid);
+        try {
+            execute("unmap", "Unable to unmap: " + uuid, args);
+        } finally {
+            getTurlCache().invalidate(uuid);
+        }
     }
 
 }
@@ -0,0 +1,164 @@
+package eu.stratuslab.storage.disk.backend;
+
+import eu.stratuslab.storage.disk.utils.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A long-running backend script started with --serve. Requests and replies
+ * are framed on the process stdin/stdout:
+ *
+ * <pre>
+ * request: &lt;number of fields&gt;\n action\n arg1\n ...
+ * reply:   &lt;status&gt; &lt;output length in bytes&gt;\n output
+ * </pre>
+ *
+ * A worker serves one request at a time; the pool guarantees exclusive use.
+ */
+final class BackEndWorker {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final String CHARSET = "UTF-8";
+
+    private final Process process;
+    private final OutputStream requests;
+    private final DataInputStream replies;
+
+    private int served = 0;
+
+    public BackEndWorker(List<String> command) throws IOException {
+        process = new ProcessBuilder(command).start();
+        requests = process.getOutputStream();
+        replies = new DataInputStream(process.getInputStream());
+
+        logErrorStream(process.getErrorStream());
+    }
+
+    public Reply call(String action, String... arguments) throws IOException {
+
+        StringBuilder request = new StringBuilder();
+        request.append(arguments.length + 1).append('\n');
+        request.append(action).append('\n');
+        for (String argument : arguments) {
+            request.append(argument).append('\n');
+        }
+
+        requests.write(request.toString().getBytes(CHARSET));
+        requests.flush();
+
+        String header = readLine();
+        String[] fields = header.split(" ");
+        if (fields.length != 2) {
+            throw new IOException("malformed reply header from backend worker: " + header);
+        }
+
+        int status;
+        byte[] output;
+        try {
+            status = Integer.parseInt(fields[0]);
+            output = new byte[Integer.parseInt(fields[1])];
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed reply header from backend worker: " + header);
+        }
+        replies.readFully(output);
+
+        served++;
+
+        return new Reply(status, new String(output, CHARSET));
+    }
+
+    public int getServedRequests() {
+        return served;
+    }
+
+    public boolean hasExited() {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Kills the worker from another thread, making a call in progress fail
+     * with an end of stream.
+     */
+    public void kill() {
+        process.destroy();
+    }
+
+    /**
+     * Closes the request channel so that the worker terminates after the
+     * current request, killing it if it is already dead or wedged.
+     */
+    public void close() {
+        FileUtils.closeIgnoringError(requests);
+        FileUtils.closeIgnoringError(replies);
+        process.destroy();
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int c = replies.read(); c != '\n'; c = replies.read()) {
+            if (c < 0) {
+                throw new EOFException("backend worker exited");
+            }
+            line.write(c);
+        }
+        return line.toString(CHARSET);
+    }
+
+    // The worker logs to stderr; drain it so that it can never block.
+    private static void logErrorStream(final InputStream stderr) {
+        Thread drain = new Thread("backend-worker-stderr") {
+            @Override
+            public void run() {
+                BufferedReader reader = null;
+                try {
+                    reader = new BufferedReader(new InputStreamReader(stderr, CHARSET));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        LOGGER.info("backend worker: " + line);
+                    }
+                } catch (IOException consumed) {
+                    // worker has exited
+                } finally {
+                    FileUtils.closeIgnoringError(reader);
+                }
+            }
+        };
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    public static final class Reply {
+
+        private final int status;
+        private final String output;
+
+        Reply(int status, String output) {
+            this.status = status;
+            this.output = output;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+package eu.stratuslab.storage.disk.backend;
+
+import eu.stratuslab.storage.disk.utils.CommandException;
+import eu.stratuslab.storage.disk.utils.MiscUtils;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Pool of long-running backend workers. At most one request is in flight per
+ * worker and at most 'size' workers exist. Workers are started on demand,
+ * replaced when they die and recycled after 'maxRequests' requests so that
+ * leaks in the backend script or its proxy connections cannot accumulate.
+ * A worker that does not reply within 'timeout' seconds is killed and
+ * replaced, and the request fails as a timed out command would. The calls
+ * are then made from a separate thread, so that the request does not depend
+ * on the worker closing its end of the pipe.
+ */
+public final class BackEndWorkerPool {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private final List<String> command;
+    private final int maxRequests;
+    private final int timeout;
+
+    private final Semaphore permits;
+    private final Queue<BackEndWorker> idle = new ConcurrentLinkedQueue<BackEndWorker>();
+
+    private final ExecutorService callers;
+
+    private volatile boolean shutdown = false;
+
+    public BackEndWorkerPool(List<String> command, int size, int maxRequests) {
+        this(command, size, maxRequests, 0);
+    }
+
+    public BackEndWorkerPool(List<String> command, int size, int maxRequests, int timeout) {
+        this.command = new ArrayList<String>(command);
+        this.command.add("--serve");
+        this.maxRequests = maxRequests;
+        this.timeout = timeout;
+        this.permits = new Semaphore(size, true);
+
+        callers = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "backend-worker-call");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public String execute(String action, String errorMsg, String... arguments) {
+
+        permits.acquireUninterruptibly();
+        try {
+            BackEndWorker worker = takeWorker();
+            BackEndWorker.Reply reply;
+            try {
+                reply = call(worker, action, arguments);
+            } catch (TimeoutException e) {
+                // the next request starts a new worker
+                kill(worker);
+                String msg = "Backend action timed out after " + timeout + " s: " + action + " "
+                        + MiscUtils.join(Arrays.asList(arguments), " ") + ".\n" + errorMsg + ".";
+                LOGGER.severe(msg);
+                throw new CommandException(msg, -1, true, "");
+            } catch (IOException e) {
+                worker.close();
+                String msg = "An error occurred while executing backend action: " + action + " "
+                        + MiscUtils.join(Arrays.asList(arguments), " ") + ".\n" + errorMsg + ".";
+                LOGGER.severe(msg);
+                LOGGER.severe(e.getMessage());
+                throw new CommandException(msg, -1, false, "");
+            }
+            releaseWorker(worker);
+
+            if (reply.getStatus() != 0) {
+                String msg = "An error occurred while executing backend action: " + action + " "
+                        + MiscUtils.join(Arrays.asList(arguments), " ") + ".\n" + reply.getOutput() + "\n"
+                        + errorMsg + ".\nReturn code was: " + reply.getStatus();
+                LOGGER.severe(msg);
+                throw new CommandException(msg, reply.getStatus(), false, reply.getOutput());
+            }
+
+            return reply.getOutput();
+
+        } finally {
+            permits.release();
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        callers.shutdown();
+        for (BackEndWorker worker = idle.poll(); worker != null; worker = idle.poll()) {
+            worker.close();
+        }
+    }
+
+    private BackEndWorker.Reply call(final BackEndWorker worker, final String action, final String... arguments)
+            throws IOException, TimeoutException {
+        if (timeout <= 0) {
+            return worker.call(action, arguments);
+        }
+
+        Future<BackEndWorker.Reply> reply = callers.submit(new Callable<BackEndWorker.Reply>() {
+            public BackEndWorker.Reply call() throws IOException {
+                return worker.call(action, arguments);
+            }
+        });
+        try {
+            return reply.get(timeout, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            kill(worker);
+            Thread.currentThread().interrupt();
+            throw new CommandException("Interrupted while executing backend action: " + action, -1, false, "");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    // The call may still be blocked on the pipe: close the worker from the
+    // calling thread once the process is gone.
+    private void kill(final BackEndWorker worker) {
+        worker.kill();
+        try {
+            callers.execute(new Runnable() {
+                public void run() {
+                    worker.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shut down
+            worker.close();
+        }
+    }
+
+    private BackEndWorker takeWorker() {
+        for (BackEndWorker worker = idle.poll(); worker != null; worker = idle.poll()) {
+            if (!worker.hasExited()) {
+                return worker;
+            }
+            LOGGER.warning("backend worker died; starting a new one");
+            worker.close();
+        }
+
+        try {
+            return new BackEndWorker(command);
+        } catch (IOException e) {
+            String msg = "Unable to start backend worker: " + MiscUtils.join(command, " ");
+            LOGGER.severe(msg);
+            LOGGER.severe(e.getMessage());
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, msg);
+        }
+    }
+
+    private void releaseWorker(BackEndWorker worker) {
+        if (shutdown || worker.getServedRequests() >= maxRequests) {
+            worker.close();
+        } else {
+            idle.add(worker);
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package eu.stratuslab.storage.disk.backend;
+
+import eu.stratuslab.storage.disk.utils.CommandExecutor.CommandClass;
+import eu.stratuslab.storage.disk.utils.DiskUtils;
+import eu.stratuslab.storage.disk.utils.FileUtils;
+import eu.stratuslab.storage.disk.utils.ProcessUtils;
+import eu.stratuslab.storage.disk.utils.SparseCopier;
+import eu.stratuslab.storage.persistence.Disk;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.logging.Logger;
+
+/**
+ * In-process storage backend keeping each volume as a sparse file in a
+ * shared directory (typically the NFS share). Volumes are exported with
+ * file:// transport URLs, so mapping is a no-op. Copy on write volumes are
+ * reflink clones when the filesystem supports them and sparse copies
+ * otherwise.
+ */
+public final class FileStorageBackend implements StorageBackend {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final SparseCopier COPIER = new SparseCopier(FileUtils.COPY_BUFFER_SIZE, 0L, false);
+
+    private final File directory;
+    private final boolean reflink;
+
+    public FileStorageBackend(File directory, boolean reflink) {
+        this.directory = directory;
+        this.reflink = reflink;
+    }
+
+    public void create(String uuid, long size) {
+        File volume = getVolume(uuid);
+
+        RandomAccessFile file = null;
+        try {
+            if (!volume.createNewFile()) {
+                throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Volume already exists: " + uuid);
+            }
+            file = new RandomAccessFile(volume, "rw");
+            file.setLength(sizeInBytes(size));
+        } catch (IOException e) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
+                    "Unable to create volume on backend storage: " + uuid + " of size " + size);
+        } finally {
+            FileUtils.closeIgnoringError(file);
+        }
+    }
+
+    public void delete(String uuid) {
+        File volume = getVolume(uuid);
+        if (volume.exists() && !volume.delete()) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
+                    "Unable to delete volume on backend storage: " + uuid);
+        }
+    }
+
+    public void map(String uuid) {
+        checkDiskExists(uuid);
+    }
+
+    public void unmap(String uuid) {
+        // Nothing to do: the volume is visible to all nodes sharing the directory.
+    }
+
+    public String getTurl(String uuid) {
+        return "file://" + getVolume(uuid).getAbsolutePath();
+    }
+
+    public String createCopyOnWrite(String baseUuid, String cowUuid, long size) {
+        File base = getVolume(baseUuid);
+        File cow = getVolume(cowUuid);
+
+        checkDiskExists(baseUuid);
+        if (cow.exists()) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Volume already exists: " + cowUuid);
+        }
+
+        if (!(reflink && cloneWithReflink(base, cow))) {
+            copyBlocks(base, cow);
+        }
+
+        return "";
+    }
+
+    /**
+     * A clone does not share anything with its origin that a later write
+     * could affect, so the volume is rebased in place.
+     */
+    public String rebase(Disk disk) {
+        checkDiskExists(disk.getUuid());
+        return "";
+    }
+
+    public String checkDiskExists(String uuid) {
+        if (!getVolume(uuid).isFile()) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
+                    "Volume does not exist on backend storage: " + uuid);
+        }
+        return "";
+    }
+
+    private File getVolume(String uuid) {
+        return new File(directory, uuid);
+    }
+
+    private static long sizeInBytes(long size) {
+        return (size > 1000) ? size : size * DiskUtils.BYTES_IN_GiB;
+    }
+
+    private static boolean cloneWithReflink(File base, File cow) {
+        ProcessBuilder pb = new ProcessBuilder("cp", "--reflink=always", "--sparse=always",
+                base.getAbsolutePath(), cow.getAbsolutePath());
+        if (ProcessUtils.executeGetStatus(CommandClass.COPY, pb) == 0) {
+            return true;
+        }
+
+        LOGGER.info("reflink not supported, copying " + base.getName() + " to " + cow.getName());
+        if (cow.exists() && !cow.delete()) {
+            LOGGER.warning("could not delete partial clone: " + cow.getAbsolutePath());
+        }
+        return false;
+    }
+
+    private static void copyBlocks(File base, File cow) {
+        try {
+            COPIER.copy(base, cow);
+        } catch (IOException e) {
+            if (!cow.delete()) {
+                LOGGER.warning("could not delete partial copy: " + cow.getAbsolutePath());
+            }
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
+                    "Cannot create copy on write volume: " + base.getName() + " " + cow.getName());
+        }
+    }
+
+}
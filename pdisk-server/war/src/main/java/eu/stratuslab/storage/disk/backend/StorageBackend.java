@@ -0,0 +1,39 @@
+package eu.stratuslab.storage.disk.backend;
+
+import eu.stratuslab.storage.persistence.Disk;
+
+/**
+ * Volume operations of a storage backend. Sizes follow the Disk convention:
+ * GiB if 1000 or less, bytes otherwise. Failures are reported with a
+ * ResourceException.
+ */
+public interface StorageBackend {
+
+    void create(String uuid, long size);
+
+    void delete(String uuid);
+
+    void map(String uuid);
+
+    void unmap(String uuid);
+
+    String getTurl(String uuid);
+
+    /**
+     * Creates the volume cowUuid as a copy on write snapshot of baseUuid.
+     */
+    String createCopyOnWrite(String baseUuid, String cowUuid, long size);
+
+    /**
+     * Makes the given live disk independent from its origin. Returns the
+     * UUID of the rebased volume or an empty string if the volume was
+     * rebased in place.
+     */
+    String rebase(Disk disk);
+
+    /**
+     * Raises an error if the volume does not exist.
+     */
+    String checkDiskExists(String uuid);
+
+}
@@ -0,0 +1,46 @@
+package eu.stratuslab.storage.disk.backend;
+
+import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import java.io.File;
+
+/**
+ * Creates the storage backend selected with disk.store.backend.type:
+ * "script" (default) uses persistent-disk-backend.py, "file" keeps volumes
+ * as sparse files in disk.store.file.location.
+ */
+public final class StorageBackendFactory {
+
+    public static final String SCRIPT_BACKEND = "script";
+    public static final String FILE_BACKEND = "file";
+
+    private static StorageBackend backend = null;
+
+    private StorageBackendFactory() {
+
+    }
+
+    public static synchronized StorageBackend getBackend() {
+        if (backend == null) {
+            backend = createBackend(RootApplication.CONFIGURATION);
+        }
+        return backend;
+    }
+
+    private static StorageBackend createBackend(ServiceConfiguration configuration) {
+        String type = configuration.STORAGE_BACKEND_TYPE;
+
+        if (SCRIPT_BACKEND.equals(type)) {
+            return new BackEndStorage();
+        } else if (FILE_BACKEND.equals(type)) {
+            return new FileStorageBackend(new File(configuration.FILE_BACKEND_LOCATION),
+                    configuration.FILE_BACKEND_REFLINK);
+        } else {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Unknown storage backend type: " + type);
+        }
+    }
+
+}
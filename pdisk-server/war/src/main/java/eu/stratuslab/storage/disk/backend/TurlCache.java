@@ -0,0 +1,160 @@
+package eu.stratuslab.storage.disk.backend;
+
+import eu.stratuslab.storage.disk.utils.Statistics;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of transport URLs keyed by disk UUID. The TURL of a
+ * volume only changes when it is rebased, deleted or unmapped, so the
+ * backend storage invalidates entries on those actions; entries also
+ * expire after a fixed time to protect against changes made outside of
+ * the service.
+ *
+ * A TURL looked up while an action is running may be the old one: callers
+ * take the generation before the lookup and pass it to put(), which drops
+ * the value if the same disk was invalidated in the meantime. The
+ * generation of the last invalidation is kept for as many disks as there
+ * are entries; older ones are folded into a floor below which every value
+ * is dropped.
+ */
+public final class TurlCache implements Statistics.Source {
+
+    private final int capacity;
+    private final long ttlMillis;
+
+    private final Map<String, Entry> entries;
+
+    // Incremented by every invalidation
+    private long generation = 0L;
+
+    // Generation of the last invalidation of each disk, and the newest
+    // generation evicted from that map
+    private final Map<String, Long> invalidated;
+    private long floor = 0L;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public TurlCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                boolean evict = size() > TurlCache.this.capacity;
+                if (evict) {
+                    evictions.incrementAndGet();
+                }
+                return evict;
+            }
+        };
+
+        invalidated = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                boolean evict = size() > TurlCache.this.capacity;
+                if (evict) {
+                    floor = Math.max(floor, eldest.getValue());
+                }
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached TURL or null if there is none or it has expired.
+     */
+    public synchronized String get(String uuid) {
+        Entry entry = entries.get(uuid);
+        if (entry != null && entry.hasExpired()) {
+            entries.remove(uuid);
+            expirations.incrementAndGet();
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry.turl;
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized void put(String uuid, String turl) {
+        entries.put(uuid, new Entry(turl, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Caches the TURL unless the disk was invalidated since the given
+     * generation was taken, in which case the value may be stale.
+     */
+    public synchronized void put(String uuid, String turl, long lookupGeneration) {
+        Long last = invalidated.get(uuid);
+        long limit = (last == null) ? floor : last;
+        if (lookupGeneration >= limit) {
+            put(uuid, turl);
+        }
+    }
+
+    public synchronized void invalidate(String uuid) {
+        generation++;
+        // re-inserted so that the map is ordered by generation
+        invalidated.remove(uuid);
+        invalidated.put(uuid, generation);
+        if (entries.remove(uuid) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hit_ratio", Statistics.ratio(hitCount, hitCount + missCount));
+        stats.put("expirations", expirations.get());
+        stats.put("evictions", evictions.get());
+        stats.put("invalidations", invalidations.get());
+        stats.put("size", size());
+        stats.put("capacity", capacity);
+        return stats;
+    }
+
+    private static final class Entry {
+
+        private final String turl;
+        private final long expiry;
+
+        Entry(String turl, long expiry) {
+            this.turl = turl;
+            this.expiry = expiry;
+        }
+
+        boolean hasExpired() {
+            return System.currentTimeMillis() > expiry;
+        }
+    }
+
+}
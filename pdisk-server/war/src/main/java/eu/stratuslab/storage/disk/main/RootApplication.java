@@ -19,14 +19,27 @@
  */
 package eu.stratuslab.storage.disk.main;
 
+import eu.stratuslab.storage.disk.backend.BackEndStorage;
+import eu.stratuslab.storage.disk.resources.BreakersResource;
+import eu.stratuslab.storage.disk.resources.CacheResource;
 import eu.stratuslab.storage.disk.resources.DiskResource;
 import eu.stratuslab.storage.disk.resources.DisksResource;
 import eu.stratuslab.storage.disk.resources.HomeResource;
+import eu.stratuslab.storage.disk.resources.InstanceResource;
 import eu.stratuslab.storage.disk.resources.InstancesResource;
+import eu.stratuslab.storage.disk.resources.JobResource;
 import eu.stratuslab.storage.disk.resources.MountResource;
 import eu.stratuslab.storage.disk.resources.MountsResource;
+import eu.stratuslab.storage.disk.resources.StatisticsResource;
 import eu.stratuslab.storage.disk.resources.TurlResource;
+import eu.stratuslab.storage.disk.utils.CommandExecutor;
+import eu.stratuslab.storage.disk.utils.DownloadUtils;
 import eu.stratuslab.storage.disk.utils.DummyVerifier;
+import eu.stratuslab.storage.disk.utils.ExportCache;
+import eu.stratuslab.storage.disk.utils.HotplugDispatcher;
+import eu.stratuslab.storage.disk.utils.JobManager;
+import eu.stratuslab.storage.disk.utils.NodeConnectionManager;
+import eu.stratuslab.storage.disk.utils.ParallelGzipCompressor;
 import freemarker.template.Configuration;
 import org.restlet.Application;
 import org.restlet.Component;
@@ -90,6 +103,25 @@ public class RootApplication extends Application {
         getTunnelService().setUserAgentTunnel(true);
 
         getMetadataService().addExtension("gzip", MediaType.APPLICATION_GNU_ZIP, true);
+
+        // Byte ranges of exported disks are served by DiskResource
+        getRangeService().setEnabled(false);
+
+        DownloadUtils.configureConnectionPool(CONFIGURATION.DOWNLOAD_POOL_MAX_CONNECTIONS,
+                CONFIGURATION.DOWNLOAD_POOL_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    @Override
+    public synchronized void stop() throws Exception {
+        BackEndStorage.shutdownWorkerPool();
+        HotplugDispatcher.shutdownInstance();
+        NodeConnectionManager.shutdownInstance();
+        CommandExecutor.shutdownInstance();
+        DownloadUtils.shutdownConnectionPool();
+        ParallelGzipCompressor.shutdownInstance();
+        ExportCache.shutdownInstance();
+        JobManager.shutdownInstance();
+        super.stop();
     }
 
     @Override
@@ -128,12 +160,22 @@ public class RootApplication extends Application {
         router.attach("/disks/", DisksResource.class);
         router.attach("/disks", DisksResource.class);
 
-        router.attach("/instances/{vmid}/", InstancesResource.class);
-        router.attach("/instances/{vmid}", InstancesResource.class);
+        router.attach("/instances/{vmid}/", InstanceResource.class);
+        router.attach("/instances/{vmid}", InstanceResource.class);
 
         router.attach("/instances/", InstancesResource.class);
         router.attach("/instances", InstancesResource.class);
 
+        router.attach("/jobs/{id}/", JobResource.class);
+        router.attach("/jobs/{id}", JobResource.class);
+
+        router.attach("/admin/statistics/", StatisticsResource.class);
+        router.attach("/admin/statistics", StatisticsResource.class);
+        router.attach("/admin/cache/", CacheResource.class);
+        router.attach("/admin/cache", CacheResource.class);
+        router.attach("/admin/breakers/", BreakersResource.class);
+        router.attach("/admin/breakers", BreakersResource.class);
+
         router.attach("/", HomeResource.class);
 
         router.attach("/media/", createMediaDirectory(context));
@@ -26,8 +26,6 @@ public class ServiceConfiguration {
     public static final int DISK_SIZE_MIN = 1;
     public static final int DISK_SIZE_MAX = 1024;
 
-    public static final int CACHE_EXPIRATION_DURATION = 2000;
-
     public final Properties CONFIGURATION;
 
     public final String CLOUD_NODE_SSH_KEY;
@@ -35,12 +33,84 @@ public class ServiceConfiguration {
     public final String CLOUD_NODE_VM_DIR;
     public final String CLOUD_SERVICE_USER;
 
+    // Connections to the nodes are kept for this many seconds without use
+    // (0 connects for each command), with at most this many commands at once
+    public final int CLOUD_NODE_SSH_PERSIST;
+    public final int CLOUD_NODE_SSH_SESSIONS;
+
+    // Hotplug commands run at once on a node and waiting for it
+    public final int HOTPLUG_NODE_CONCURRENCY;
+    public final int HOTPLUG_NODE_QUEUE_SIZE;
+
+    // Devices attached at most to a VM: vdz to vda, then vdaa, vdab, ...
+    public final int HOTPLUG_MAX_DEVICES;
+
     public final String CACHE_LOCATION;
 
     public final String GZIP_CMD;
 
+    // Copies of images into volumes: rate limit in MiB/s (0 for none) and
+    // whether new volumes read as zero, so that zero blocks can be skipped
+    public final int COPY_MAX_RATE;
+    public final boolean COPY_ZEROED_VOLUMES;
+
+    // Threads compressing disks inside the service (0 uses GZIP_CMD)
+    public final int COMPRESS_THREADS;
+    public final int COMPRESS_LEVEL;
+
+    // Compressed downloads are streamed as they are produced, optionally
+    // keeping a copy in the cache
+    public final boolean EXPORT_STREAMING;
+    public final boolean EXPORT_KEEP_COPY;
+
+    // Compressed disks kept for download (size in GiB, TTL in seconds)
+    public final int EXPORT_CACHE_SIZE;
+    public final int EXPORT_CACHE_TTL;
+
     public final int UPLOAD_COMPRESSED_IMAGE_MAX_BYTES;
 
+    // Storage backend: script (persistent-disk-backend.py) or file
+    public final String STORAGE_BACKEND_TYPE;
+    public final String FILE_BACKEND_LOCATION;
+    public final boolean FILE_BACKEND_REFLINK;
+
+    // Circuit breakers of the nodes and the backend: consecutive failures
+    // opening them and seconds they stay open; attempts of commands that
+    // could not connect and base delay between them in ms
+    public final int BREAKER_THRESHOLD;
+    public final int BREAKER_OPEN_TIME;
+    public final int RETRY_ATTEMPTS;
+    public final int RETRY_DELAY;
+
+    // Background jobs: worker threads, queued jobs and seconds during which
+    // finished jobs are kept
+    public final int JOB_WORKERS;
+    public final int JOB_QUEUE_SIZE;
+    public final int JOB_RETENTION;
+
+    // Number of long-running backend workers (0 forks one process per call)
+    public final int BACKEND_WORKERS;
+    public final int BACKEND_WORKER_MAX_REQUESTS;
+
+    // Bytes of command output kept (the tail is kept)
+    public final int COMMAND_OUTPUT_LIMIT;
+
+    // Transport URL cache (TTL in seconds)
+    public final int TURL_CACHE_SIZE;
+    public final int TURL_CACHE_TTL;
+
+    // Parallel range requests for image downloads (segment size in MiB)
+    public final int DOWNLOAD_CONNECTIONS;
+    public final int DOWNLOAD_SEGMENT_SIZE;
+    public final int DOWNLOAD_RETRIES;
+
+    // Size in GiB of the store of downloaded images (0 disables it)
+    public final int IMAGE_CACHE_SIZE;
+
+    // Pooled HTTP connections used for image downloads
+    public final int DOWNLOAD_POOL_MAX_CONNECTIONS;
+    public final int DOWNLOAD_POOL_MAX_CONNECTIONS_PER_HOST;
+
     private ServiceConfiguration() {
 
         CONFIGURATION = readConfigFile();
@@ -52,17 +122,79 @@ public class ServiceConfiguration {
         CLOUD_NODE_VM_DIR = getConfigValue("disk.store.cloud.node.vm_dir");
         CLOUD_SERVICE_USER = getConfigValue("disk.store.cloud.service.user");
 
+        CLOUD_NODE_SSH_PERSIST = getIntConfigValue("disk.store.cloud.node.ssh.persist", 300);
+        CLOUD_NODE_SSH_SESSIONS = getIntConfigValue("disk.store.cloud.node.ssh.sessions", 8);
+
+        HOTPLUG_NODE_CONCURRENCY = getIntConfigValue("disk.store.hotplug.node.concurrency", 4);
+        HOTPLUG_NODE_QUEUE_SIZE = getIntConfigValue("disk.store.hotplug.node.queue_size", 32);
+        HOTPLUG_MAX_DEVICES = getIntConfigValue("disk.store.hotplug.max_devices", 26);
+
         CACHE_LOCATION = getCacheLocation();
 
         GZIP_CMD = getCommand("disk.store.utils.gzip");
 
+        COPY_MAX_RATE = getIntConfigValue("disk.store.copy.max_rate", 0);
+        COPY_ZEROED_VOLUMES = Boolean.parseBoolean(getConfigValue("disk.store.copy.zeroed_volumes", "false"));
+
+        COMPRESS_THREADS = getIntConfigValue("disk.store.compress.threads",
+                Runtime.getRuntime().availableProcessors());
+        COMPRESS_LEVEL = getIntConfigValue("disk.store.compress.level", 6);
+
+        EXPORT_STREAMING = Boolean.parseBoolean(getConfigValue("disk.store.export.streaming", "true"));
+        EXPORT_KEEP_COPY = Boolean.parseBoolean(getConfigValue("disk.store.export.keep_copy", "false"));
+
+        EXPORT_CACHE_SIZE = getIntConfigValue("disk.store.export.cache.size", 20);
+        EXPORT_CACHE_TTL = getIntConfigValue("disk.store.export.cache.ttl", 3600);
+
         UPLOAD_COMPRESSED_IMAGE_MAX_BYTES = 10240000;
+
+        STORAGE_BACKEND_TYPE = getConfigValue("disk.store.backend.type", "script");
+        FILE_BACKEND_LOCATION = getConfigValue("disk.store.file.location",
+                getConfigValue("disk.store.nfs.location", "/mnt/pdisk"));
+        FILE_BACKEND_REFLINK = Boolean.parseBoolean(getConfigValue("disk.store.file.reflink", "true"));
+
+        BREAKER_THRESHOLD = getIntConfigValue("disk.store.breaker.threshold", 5);
+        BREAKER_OPEN_TIME = getIntConfigValue("disk.store.breaker.open_time", 30);
+        RETRY_ATTEMPTS = getIntConfigValue("disk.store.retry.attempts", 3);
+        RETRY_DELAY = getIntConfigValue("disk.store.retry.delay", 500);
+
+        JOB_WORKERS = getIntConfigValue("disk.store.jobs.workers", 4);
+        JOB_QUEUE_SIZE = getIntConfigValue("disk.store.jobs.queue_size", 64);
+        JOB_RETENTION = getIntConfigValue("disk.store.jobs.retention", 3600);
+
+        BACKEND_WORKERS = getIntConfigValue("disk.store.backend.workers", 0);
+        BACKEND_WORKER_MAX_REQUESTS = getIntConfigValue("disk.store.backend.worker.max_requests", 1000);
+
+        COMMAND_OUTPUT_LIMIT = getIntConfigValue("disk.store.command.output_limit", 1024 * 1024);
+
+        TURL_CACHE_SIZE = getIntConfigValue("disk.store.backend.turl_cache.size", 1024);
+        TURL_CACHE_TTL = getIntConfigValue("disk.store.backend.turl_cache.ttl", 300);
+
+        DOWNLOAD_CONNECTIONS = getIntConfigValue("disk.store.download.connections", 4);
+        DOWNLOAD_SEGMENT_SIZE = getIntConfigValue("disk.store.download.segment_size", 64);
+        DOWNLOAD_RETRIES = getIntConfigValue("disk.store.download.retries", 3);
+
+        IMAGE_CACHE_SIZE = getIntConfigValue("disk.store.image_cache.size", 0);
+
+        DOWNLOAD_POOL_MAX_CONNECTIONS = getIntConfigValue("disk.store.download.pool.max_connections", 64);
+        DOWNLOAD_POOL_MAX_CONNECTIONS_PER_HOST = getIntConfigValue(
+                "disk.store.download.pool.max_connections_per_host", 16);
     }
 
     public static ServiceConfiguration getInstance() {
         return instance;
     }
 
+    // Maximum number of commands of a class (backend, hotplug, ...) run at once
+    public int getCommandConcurrency(String commandClass, int defaultValue) {
+        return getIntConfigValue("disk.store.command." + commandClass + ".concurrency", defaultValue);
+    }
+
+    // Deadline in seconds of the commands of a class (0 for none)
+    public int getCommandTimeout(String commandClass, int defaultValue) {
+        return getIntConfigValue("disk.store.command." + commandClass + ".timeout", defaultValue);
+    }
+
     private static Properties readConfigFile() {
         File cfgFile = locateConfigFile();
 
@@ -103,6 +235,20 @@ public class ServiceConfiguration {
         return CONFIGURATION.getProperty(key);
     }
 
+    private String getConfigValue(String key, String defaultValue) {
+        return CONFIGURATION.getProperty(key, defaultValue).trim();
+    }
+
+    private int getIntConfigValue(String key, int defaultValue) {
+        String value = getConfigValue(key, String.valueOf(defaultValue));
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
+                    "Invalid integer value for configuration key " + key + ": " + value);
+        }
+    }
+
     private String getCacheLocation() {
         String cache = getConfigValue("disk.store.cache.location");
         File cacheDir = new File(cache);
@@ -20,13 +20,17 @@
 package eu.stratuslab.storage.disk.resources;
 
 import eu.stratuslab.storage.disk.main.RootApplication;
+import eu.stratuslab.storage.disk.utils.Job;
+import eu.stratuslab.storage.disk.utils.RetryLaterException;
 import eu.stratuslab.storage.persistence.Disk;
 import freemarker.template.Configuration;
 import org.restlet.Request;
 import org.restlet.data.ChallengeResponse;
 import org.restlet.data.MediaType;
 import org.restlet.data.Reference;
+import org.restlet.data.Status;
 import org.restlet.ext.freemarker.TemplateRepresentation;
+import org.restlet.representation.Representation;
 import org.restlet.resource.ServerResource;
 import org.restlet.util.Series;
 
@@ -34,6 +38,7 @@ import javax.security.auth.x500.X500Principal;
 import java.net.URI;
 import java.net.URL;
 import java.security.cert.X509Certificate;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +51,8 @@ public class BaseResource extends ServerResource {
 
     private static final String CLIENT_CERTS_ATTR = "org.restlet.https.clientCertificates";
 
+    public static final String ASYNC_QUERY_PARAMETER = "async";
+
     public enum DiskVisibility {
         PRIVATE,
         // RESTRICTED,
@@ -234,4 +241,32 @@ public class BaseResource extends ServerResource {
         return username.equals(disk.getOwner()) || isSuperUser(username);
     }
 
+    // Tells clients refused because of overload when to come back.
+    @Override
+    protected void doCatch(Throwable throwable) {
+        if (throwable instanceof RetryLaterException) {
+            int retryAfter = ((RetryLaterException) throwable).getRetryAfter();
+            getResponse().setRetryAfter(new Date(System.currentTimeMillis() + retryAfter * 1000L));
+        }
+        super.doCatch(throwable);
+    }
+
+    // Long operations run as jobs when the request has async=true
+    protected boolean isAsyncRequested() {
+        return Boolean.parseBoolean(getQueryValue(ASYNC_QUERY_PARAMETER));
+    }
+
+    protected String getJobUrl(Job job) {
+        return getBaseUrl() + "jobs/" + job.getId();
+    }
+
+    protected Representation acceptJob(Job job) {
+        setStatus(Status.SUCCESS_ACCEPTED);
+        setLocationRef(getJobUrl(job));
+
+        Map<String, Object> info = createInfoStructure("Job");
+        info.put("job", job);
+        return createTemplateRepresentation("json/job.ftl", info, MediaType.APPLICATION_JSON);
+    }
+
 }
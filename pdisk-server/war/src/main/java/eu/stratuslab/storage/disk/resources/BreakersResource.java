@@ -0,0 +1,81 @@
+package eu.stratuslab.storage.disk.resources;
+
+import eu.stratuslab.storage.disk.utils.CircuitBreaker;
+import eu.stratuslab.storage.disk.utils.MiscUtils;
+import org.restlet.data.Form;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
+
+import java.util.Map;
+
+import static org.restlet.data.MediaType.APPLICATION_JSON;
+import static org.restlet.data.MediaType.TEXT_HTML;
+
+/**
+ * State of the circuit breakers guarding the cloud nodes and the storage
+ * backend; POSTing a breaker name closes it.
+ */
+public class BreakersResource extends BaseResource {
+
+    @Override
+    public void doInit() {
+
+        if (!isSuperUser(getUsername(getRequest()))) {
+            throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN, "insufficient rights to manage the breakers");
+        }
+
+    }
+
+    @Get("html")
+    public Representation getAsHtml() {
+        return createTemplateRepresentation("html/breakers.ftl", getBreakerStatistics(), TEXT_HTML);
+    }
+
+    @Get("json")
+    public Representation getAsJson() {
+        return createTemplateRepresentation("json/statistics.ftl", getBreakerStatistics(), APPLICATION_JSON);
+    }
+
+    @Post("form:html")
+    public void resetAsHtml(Representation entity) {
+
+        reset(entity);
+
+        redirectSeeOther(getCurrentUrl());
+    }
+
+    @Post("form:json")
+    public Representation resetAsJson(Representation entity) {
+
+        reset(entity);
+
+        return getAsJson();
+    }
+
+    private void reset(Representation entity) {
+
+        MiscUtils.checkForNullEntity(entity);
+
+        String name = new Form(entity).getFirstValue("name");
+        if (name == null || "".equals(name)) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "missing name attribute");
+        }
+
+        if (!CircuitBreaker.reset(name)) {
+            throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "unknown breaker: " + name);
+        }
+
+        getLogger().info("reset circuit breaker: " + name);
+    }
+
+    private Map<String, Object> getBreakerStatistics() {
+        Map<String, Object> info = createInfoStructure("Circuit Breakers");
+        info.put("sources", CircuitBreaker.getAllStatistics());
+        info.put("currenturl", getCurrentUrl());
+        return info;
+    }
+
+}
@@ -0,0 +1,83 @@
+package eu.stratuslab.storage.disk.resources;
+
+import eu.stratuslab.storage.disk.utils.MiscUtils;
+import eu.stratuslab.storage.persistence.PersistenceUtil;
+import org.restlet.data.Form;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
+
+import java.util.Map;
+
+import static org.restlet.data.MediaType.APPLICATION_JSON;
+import static org.restlet.data.MediaType.TEXT_HTML;
+
+/**
+ * Hit ratios of the second-level cache regions; POSTing a region name (or
+ * "queries" or "all") empties it.
+ */
+public class CacheResource extends BaseResource {
+
+    @Override
+    public void doInit() {
+
+        if (!isSuperUser(getUsername(getRequest()))) {
+            throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN, "insufficient rights to manage the cache");
+        }
+
+    }
+
+    @Get("html")
+    public Representation getAsHtml() {
+        return createTemplateRepresentation("html/cache.ftl", getCacheStatistics(), TEXT_HTML);
+    }
+
+    @Get("json")
+    public Representation getAsJson() {
+        return createTemplateRepresentation("json/statistics.ftl", getCacheStatistics(), APPLICATION_JSON);
+    }
+
+    @Post("form:html")
+    public void evictAsHtml(Representation entity) {
+
+        evict(entity);
+
+        redirectSeeOther(getCurrentUrl());
+    }
+
+    @Post("form:json")
+    public Representation evictAsJson(Representation entity) {
+
+        evict(entity);
+
+        return getAsJson();
+    }
+
+    private void evict(Representation entity) {
+
+        MiscUtils.checkForNullEntity(entity);
+
+        String region = new Form(entity).getFirstValue("region");
+        if (region == null || "".equals(region)) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "missing region attribute");
+        }
+
+        try {
+            PersistenceUtil.evictCacheRegion(region);
+        } catch (IllegalArgumentException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+        }
+
+        getLogger().info("evicted cache region: " + region);
+    }
+
+    private Map<String, Object> getCacheStatistics() {
+        Map<String, Object> info = createInfoStructure("Cache");
+        info.put("sources", PersistenceUtil.getCacheStatistics());
+        info.put("currenturl", getCurrentUrl());
+        return info;
+    }
+
+}
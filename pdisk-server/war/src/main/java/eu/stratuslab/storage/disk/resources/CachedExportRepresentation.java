@@ -0,0 +1,115 @@
+package eu.stratuslab.storage.disk.resources;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+
+import org.restlet.data.MediaType;
+import org.restlet.data.Range;
+import org.restlet.data.Tag;
+import org.restlet.representation.FileRepresentation;
+
+import eu.stratuslab.storage.disk.utils.ExportCache;
+
+/**
+ * A compressed disk from the export cache. The export stays pinned in the
+ * cache until the representation has been sent and released.
+ *
+ * Exports never change once in the cache, so their date and size make a
+ * strong entity tag, and a single byte range of them can be sent to resume
+ * an interrupted download. The bytes are transferred by the file channel,
+ * without copies when the connector writes to a channel.
+ */
+public class CachedExportRepresentation extends FileRepresentation {
+
+    private final ExportCache.Pin pin;
+    private final File file;
+    private final long length;
+
+    public CachedExportRepresentation(ExportCache.Pin pin) {
+        super(pin.getFile(), MediaType.APPLICATION_GNU_ZIP);
+        this.pin = pin;
+        this.file = pin.getFile();
+        this.length = file.length();
+
+        long modified = file.lastModified();
+        setModificationDate(new Date(modified));
+        setTag(new Tag(Long.toHexString(modified) + "-" + Long.toHexString(length), false));
+    }
+
+    /**
+     * Restricts the representation to the range, resolved against the size
+     * of the export. Returns false if the range is not satisfiable.
+     */
+    public boolean selectRange(Range range) {
+        long index = range.getIndex();
+        long size = range.getSize();
+
+        if (index == Range.INDEX_LAST) {
+            index = Math.max(0L, length - size);
+            size = length - index;
+        } else if (size == Range.SIZE_MAX || index + size > length) {
+            size = length - index;
+        }
+
+        if (index < 0 || index >= length || size <= 0) {
+            return false;
+        }
+        setRange(new Range(index, size));
+        return true;
+    }
+
+    /**
+     * Returns true if the tag or date of an If-Range condition designates
+     * this export. Weak tags never match.
+     */
+    public boolean matches(Tag tag, Date date) {
+        if (tag != null) {
+            return !tag.isWeak() && getTag().getName().equals(tag.getName());
+        }
+        if (date != null) {
+            // HTTP dates have a precision of one second
+            return getModificationDate().getTime() / 1000 == date.getTime() / 1000;
+        }
+        return true;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        write(Channels.newChannel(out));
+    }
+
+    @Override
+    public void write(WritableByteChannel out) throws IOException {
+        Range range = getRange();
+        long position = (range != null) ? range.getIndex() : 0L;
+        long end = (range != null) ? position + range.getSize() : length;
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            while (position < end) {
+                long n = channel.transferTo(position, end - position, out);
+                if (n <= 0 && position >= channel.size()) {
+                    throw new EOFException("export truncated: " + file.getName());
+                }
+                position += n;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        pin.release();
+    }
+
+}
@@ -0,0 +1,33 @@
+package eu.stratuslab.storage.disk.resources;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.restlet.data.MediaType;
+import org.restlet.representation.OutputRepresentation;
+
+import eu.stratuslab.storage.disk.utils.ExportRegistry;
+
+/**
+ * A disk compressed while it is sent. The size is unknown, so the response
+ * uses chunked transfer encoding, and the volume is only attached when the
+ * connector starts writing the body. Concurrent downloads of the same disk
+ * share a single compression.
+ */
+public class CompressedDiskRepresentation extends OutputRepresentation {
+
+    private final String uuid;
+    private final boolean keepCopy;
+
+    public CompressedDiskRepresentation(String uuid, boolean keepCopy) {
+        super(MediaType.APPLICATION_GNU_ZIP, UNKNOWN_SIZE);
+        this.uuid = uuid;
+        this.keepCopy = keepCopy;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        ExportRegistry.streamCompressedDisk(uuid, out, keepCopy);
+    }
+
+}
@@ -20,7 +20,6 @@
 package eu.stratuslab.storage.disk.resources;
 
 import eu.stratuslab.storage.disk.main.ServiceConfiguration;
-import eu.stratuslab.storage.disk.utils.CompressedDiskRemoval;
 import eu.stratuslab.storage.persistence.Disk;
 import eu.stratuslab.storage.persistence.Disk.DiskType;
 import org.restlet.data.Form;
@@ -141,6 +140,11 @@ public class DiskBaseResource extends BaseResource {
             throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN, "Disk already registered");
         }
 
+        validateDiskSize(disk);
+    }
+
+    protected void validateDiskSize(Disk disk) {
+
         long gigabytes = disk.getSize();
 
         if (gigabytes < ServiceConfiguration.DISK_SIZE_MIN || gigabytes > ServiceConfiguration.DISK_SIZE_MAX) {
@@ -170,15 +174,11 @@ public class DiskBaseResource extends BaseResource {
         return attributes.get("uuid").toString();
     }
 
-    protected void cleanCache(String uuid) {
-        CompressedDiskRemoval deleteDisk = new CompressedDiskRemoval(uuid);
-
+    protected void checkExportRights(String uuid) {
         getLogger().info("DiskResource toZip: " + uuid);
 
         Disk disk = loadExistingDisk();
         checkViewRightsOrError(disk);
-
-        deleteDisk.remove();
     }
 
     private void checkViewRightsOrError(Disk disk) {
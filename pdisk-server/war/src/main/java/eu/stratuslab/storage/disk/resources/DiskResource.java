@@ -19,16 +19,23 @@
  */
 package eu.stratuslab.storage.disk.resources;
 
+import eu.stratuslab.storage.disk.main.RootApplication;
 import eu.stratuslab.storage.disk.utils.DiskUtils;
-import eu.stratuslab.storage.disk.utils.FileUtils;
+import eu.stratuslab.storage.disk.utils.ExportCache;
+import eu.stratuslab.storage.disk.utils.ExportRegistry;
+import eu.stratuslab.storage.disk.utils.Job;
+import eu.stratuslab.storage.disk.utils.JobManager;
+import eu.stratuslab.storage.disk.utils.LockManager;
 import eu.stratuslab.storage.disk.utils.MiscUtils;
+import eu.stratuslab.storage.disk.utils.ParallelGzipCompressor;
 import eu.stratuslab.storage.persistence.Disk;
 import eu.stratuslab.storage.persistence.Disk.DiskType;
+import org.restlet.data.Conditions;
 import org.restlet.data.Disposition;
 import org.restlet.data.Form;
 import org.restlet.data.MediaType;
+import org.restlet.data.Range;
 import org.restlet.data.Status;
-import org.restlet.representation.FileRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.resource.Delete;
 import org.restlet.resource.Get;
@@ -37,7 +44,9 @@ import org.restlet.resource.Put;
 import org.restlet.resource.ResourceException;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import static org.restlet.data.MediaType.APPLICATION_JSON;
 import static org.restlet.data.MediaType.TEXT_HTML;
@@ -81,20 +90,32 @@ public class DiskResource extends DiskBaseResource {
 
         MiscUtils.checkForNullEntity(entity);
 
-        Disk disk = loadExistingDisk();
+        Form form = new Form(entity);
+
+        LockManager.Locks locks = LockManager.lockDisks(getDiskId());
+        try {
+            Disk disk = loadExistingDisk();
 
-        hasSufficientRightsToEdit(disk);
+            hasSufficientRightsToEdit(disk);
 
-        disk = processWebForm(disk, new Form(entity));
+            disk = processWebForm(disk, form);
 
-        disk.setUuid(getDiskId());
+            disk.setUuid(getDiskId());
 
-        updateDisk(disk);
+            updateDisk(disk);
+        } finally {
+            locks.release();
+        }
     }
 
     @Post("form:html")
     public void createCopyOnWriteOrRebase(Representation entity) {
 
+        if (isAsyncRequested()) {
+            redirectSeeOther(getJobUrl(submitCopyOnWriteOrRebase()));
+            return;
+        }
+
         Disk newDisk = createCopyOnWriteOrRebase();
 
         redirectSeeOther(getBaseUrl() + "disks/" + newDisk.getUuid());
@@ -104,6 +125,10 @@ public class DiskResource extends DiskBaseResource {
     @Post("form:json")
     public Representation createCopyOnWriteOrRebaseAsJson(Representation entity) {
 
+        if (isAsyncRequested()) {
+            return acceptJob(submitCopyOnWriteOrRebase());
+        }
+
         Disk newDisk = createCopyOnWriteOrRebase();
 
         Map<String, Object> info = new HashMap<String, Object>();
@@ -112,21 +137,49 @@ public class DiskResource extends DiskBaseResource {
         return createTemplateRepresentation("json/disk.ftl", info, APPLICATION_JSON);
     }
 
+    private Job submitCopyOnWriteOrRebase() {
+        final String uuid = getDiskId();
+        final String owner = getUsername(getRequest());
+        String type = (loadExistingDisk().getType() == DiskType.MACHINE_IMAGE_LIVE) ? "rebase" : "copy-on-write";
+
+        return JobManager.getInstance().submit(type, owner, new Callable<String>() {
+            public String call() {
+                return createCopyOnWriteOrRebase(uuid, owner).getUuid();
+            }
+        });
+    }
+
     private void addDiskToInfo(Disk newDisk, Map<String, Object> info) {
         info.put("disk", newDisk);
     }
 
     protected Disk createCopyOnWriteOrRebase() {
-        Disk disk = Disk.load(getDiskId());
+        return createCopyOnWriteOrRebase(getDiskId(), getUsername(getRequest()));
+    }
+
+    // Does not use the request, so that it can run in a job.
+    private Disk createCopyOnWriteOrRebase(String uuid, String owner) {
+        LockManager.Locks locks = LockManager.lockDisks(uuid);
+        try {
+            return createCopyOnWriteOrRebaseLocked(uuid, owner);
+        } finally {
+            locks.release();
+        }
+    }
+
+    private Disk createCopyOnWriteOrRebaseLocked(String uuid, String owner) {
+        Disk disk = Disk.load(uuid);
 
         if (disk == null) {
-            throw (new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "Disk " + getDiskId() + " doesn't exists"));
+            throw (new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "Disk " + uuid + " doesn't exists"));
         }
 
         Disk newDisk = null;
         if (disk.getType() == DiskType.MACHINE_IMAGE_LIVE) {
-            newDisk = rebase(disk);
+            Job.setPhase("rebasing");
+            newDisk = rebase(disk, owner);
         } else if (disk.getType() == DiskType.MACHINE_IMAGE_ORIGIN) {
+            Job.setPhase("copying");
             newDisk = createMachineImageCoW(disk);
         } else {
             throw (new ResourceException(Status.CLIENT_ERROR_CONFLICT,
@@ -139,7 +192,7 @@ public class DiskResource extends DiskBaseResource {
         return DiskUtils.createMachineImageCoWDisk(disk);
     }
 
-    private Disk rebase(Disk disk) {
+    private Disk rebase(Disk disk, String owner) {
 
         String rebasedUuid = DiskUtils.rebaseDisk(disk);
 
@@ -149,7 +202,8 @@ public class DiskResource extends DiskBaseResource {
         if (rebasedUuid == null || "".equals(rebasedUuid)) {
             newDisk = disk;
         } else {
-            newDisk = initializeDisk();
+            newDisk = new Disk();
+            newDisk.setOwner(owner);
             newDisk.setUuid(rebasedUuid);
         }
 
@@ -196,43 +250,65 @@ public class DiskResource extends DiskBaseResource {
 
         String uuid = getDiskId();
 
-        cleanCache(uuid);
+        checkExportRights(uuid);
+
+        if (isAsyncRequested()) {
+            return acceptJob(submitExport(uuid));
+        }
+
+        // A resumed download needs the bytes it started with, so requests
+        // for a range are always served from the export cache.
+        boolean streaming = canStreamCompressedImage();
+        ExportCache.Pin cached = streaming ? ExportCache.getInstance().pin(uuid) : null;
 
-        if (isImageBeingCompressed(uuid)) {
-            waitWhileImageCompressed(uuid);
-        } else if (needToCompressImage(uuid)) {
-            compressImage();
+        Representation image;
+        if (cached == null && streaming && getRequest().getRanges().isEmpty()) {
+            getLogger().info("Streaming compressed disk");
+            image = new CompressedDiskRepresentation(uuid, RootApplication.CONFIGURATION.EXPORT_KEEP_COPY);
+        } else {
+            ExportCache.Pin pin = (cached != null) ? cached : ExportRegistry.getCompressedDisk(uuid);
+            image = getCachedImage(pin);
         }
 
-        Representation image = new FileRepresentation(DiskUtils.getCompressedDiskLocation(uuid),
-                MediaType.APPLICATION_GNU_ZIP);
         image.getDisposition().setType(Disposition.TYPE_ATTACHMENT);
 
         return image;
     }
 
-    /**
-     * The compression logic removes the original file after compression therefore, if the raw file exists means that
-     * the compression is ongoing
-     */
-    private Boolean isImageBeingCompressed(String uuid) {
-        return DiskUtils.isCompressedDiskBuilding(uuid);
+    // Compresses the disk into the export cache, where the download will
+    // find it.
+    private Job submitExport(final String uuid) {
+        return JobManager.getInstance().submit("export", getUsername(getRequest()), new Callable<String>() {
+            public String call() {
+                Job.setPhase("compressing");
+                ExportRegistry.getCompressedDisk(uuid).release();
+                return uuid;
+            }
+        });
     }
 
-    private void waitWhileImageCompressed(String uuid) {
-        while (isImageBeingCompressed(uuid)) {
-            getLogger().info("Waiting for file to be compressed...");
-            MiscUtils.sleep(5000);
+    private Representation getCachedImage(ExportCache.Pin pin) {
+
+        CachedExportRepresentation image = new CachedExportRepresentation(pin);
+        getResponse().getServerInfo().setAcceptingRanges(true);
+
+        // Multiple ranges are not supported: the whole export is sent.
+        List<Range> ranges = getRequest().getRanges();
+        Conditions conditions = getRequest().getConditions();
+        if (ranges.size() == 1 && image.matches(conditions.getRangeTag(), conditions.getRangeDate())) {
+            if (!image.selectRange(ranges.get(0))) {
+                image.release();
+                throw new ResourceException(Status.CLIENT_ERROR_REQUESTED_RANGE_NOT_SATISFIABLE,
+                        "range not satisfiable for disk (" + getDiskId() + ")");
+            }
+            setStatus(Status.SUCCESS_PARTIAL_CONTENT);
         }
-    }
 
-    private boolean needToCompressImage(String uuid) {
-        return !FileUtils.isCompressedDiskExists(uuid) || DiskUtils.hasCompressedDiskExpire(uuid);
+        return image;
     }
 
-    private void compressImage() {
-        getLogger().info("Creating compressed disk");
-        DiskUtils.createCompressedDisk(getDiskId());
+    private boolean canStreamCompressedImage() {
+        return RootApplication.CONFIGURATION.EXPORT_STREAMING && ParallelGzipCompressor.getInstance() != null;
     }
 
     @Delete("html")
@@ -289,6 +365,20 @@ public class DiskResource extends DiskBaseResource {
 
     private void processDeleteDiskRequest() {
 
+        // Also lock the origin of a copy on write disk, so that the origin
+        // cannot be rebased or deleted while its snapshot goes away.
+        String baseUuid = loadExistingDisk().getBaseDiskUuid();
+
+        LockManager.Locks locks = LockManager.lockDisks(getDiskId(), baseUuid);
+        try {
+            processDeleteDiskRequestLocked();
+        } finally {
+            locks.release();
+        }
+    }
+
+    private void processDeleteDiskRequestLocked() {
+
         Disk disk = loadExistingDisk();
 
         if (!hasSufficientRightsToEdit(disk)) {
@@ -302,6 +392,8 @@ public class DiskResource extends DiskBaseResource {
         }
 
         deleteDisk(disk);
+
+        ExportCache.getInstance().remove(disk.getUuid());
     }
 
     private void deleteDisk(Disk disk) {
@@ -19,15 +19,21 @@
  */
 package eu.stratuslab.storage.disk.resources;
 
-import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+import eu.stratuslab.marketplace.metadata.MetadataUtils;
 import eu.stratuslab.storage.disk.utils.DiskUtils;
 import eu.stratuslab.storage.disk.utils.FileUtils;
+import eu.stratuslab.storage.disk.utils.Job;
+import eu.stratuslab.storage.disk.utils.JobManager;
 import eu.stratuslab.storage.persistence.Disk;
+import eu.stratuslab.storage.persistence.Disk.DiskType;
+import eu.stratuslab.storage.persistence.DiskFilter;
 import eu.stratuslab.storage.persistence.DiskView;
-import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+import org.apache.commons.fileupload.util.Streams;
 import org.restlet.data.Form;
+import org.restlet.data.Parameter;
 import org.restlet.data.Status;
 import org.restlet.ext.fileupload.RestletFileUpload;
 import org.restlet.representation.Representation;
@@ -36,7 +42,6 @@ import org.restlet.resource.Post;
 import org.restlet.resource.ResourceException;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -47,6 +52,7 @@ import java.math.BigInteger;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.zip.GZIPInputStream;
 
 import static org.restlet.data.MediaType.APPLICATION_JSON;
@@ -54,6 +60,8 @@ import static org.restlet.data.MediaType.TEXT_HTML;
 
 public class DisksResource extends DiskBaseResource {
 
+    private static final int MAX_PAGE_SIZE = 1000;
+
     private Form form = null;
 
     @Get("html")
@@ -80,6 +88,11 @@ public class DisksResource extends DiskBaseResource {
     @Post("form:html")
     public Representation createDiskRequestFromHtml(Representation entity) {
 
+        if (isAsyncRequested()) {
+            redirectSeeOther(getJobUrl(submitDiskCreation()));
+            return null;
+        }
+
         Disk disk = validateAndCreateDisk();
 
         redirectSeeOther(getBaseUrl() + "disks/" + disk.getUuid());
@@ -90,6 +103,10 @@ public class DisksResource extends DiskBaseResource {
     @Post("form:json")
     public Representation createDiskRequestFromJson(Representation entity) {
 
+        if (isAsyncRequested()) {
+            return acceptJob(submitDiskCreation());
+        }
+
         Disk disk = validateAndCreateDisk();
 
         setStatus(Status.SUCCESS_CREATED);
@@ -109,16 +126,58 @@ public class DisksResource extends DiskBaseResource {
             throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "post with null entity");
         }
 
-        Disk disk = saveAndInflateFiles();
+        final Disk disk = inflateUploadedImage(entity);
 
-        DiskUtils.createAndPopulateDiskLocal(disk);
-        disk.store();
+        // An image inflated into the cache still has to be copied to a volume
+        boolean cached = FileUtils.isCachedDiskExists(disk.getUuid());
+
+        if (cached && isAsyncRequested()) {
+            Job job = JobManager.getInstance().submit("upload", disk.getOwner(), new Callable<String>() {
+                public String call() {
+                    populateFromCache(disk);
+                    return disk.getUuid();
+                }
+            });
+            redirectSeeOther(getJobUrl(job));
+            return;
+        }
+
+        if (cached) {
+            populateFromCache(disk);
+        } else {
+            disk.store();
+        }
 
         redirectSeeOther(getBaseUrl() + "disks/" + disk.getUuid());
 
     }
 
+    private static void populateFromCache(Disk disk) {
+        Job.setPhase("copying");
+        DiskUtils.createAndPopulateDiskLocal(disk);
+        disk.store();
+    }
+
     protected Disk validateAndCreateDisk() {
+        Disk disk = validateDiskRequest();
+        createAndInitializeDisk(disk, form);
+        return disk;
+    }
+
+    // The request is validated at once, the volume is created by the job.
+    private Job submitDiskCreation() {
+        final Disk disk = validateDiskRequest();
+        final Form diskForm = form;
+
+        return JobManager.getInstance().submit("create", disk.getOwner(), new Callable<String>() {
+            public String call() {
+                createAndInitializeDisk(disk, diskForm);
+                return disk.getUuid();
+            }
+        });
+    }
+
+    private Disk validateDiskRequest() {
         form = new Form(getRequestEntity());
 
         getLogger().info("DisksResource creating new disk");
@@ -127,21 +186,25 @@ public class DisksResource extends DiskBaseResource {
 
         validateNewDisk(disk);
 
+        return disk;
+    }
+
+    private void createAndInitializeDisk(Disk disk, Form form) {
+
+        Job.setPhase("creating");
         createDisk(disk);
 
         getLogger().info(String.format("DisksResource created new disk: %s", disk.getUuid()));
 
         try {
-            initializeContents(disk.getUuid(), form);
+            initializeContents(disk.getUuid(), disk.getIdentifier(), form);
         } catch (ResourceException e) {
             removeDisk(disk);
             throw e;
         }
-
-        return disk;
     }
 
-    private void initializeContents(String uuid, Form form) throws ResourceException {
+    private void initializeContents(String uuid, String identifier, Form form) throws ResourceException {
 
         Map<String, BigInteger> streamInfo = null;
 
@@ -154,11 +217,15 @@ public class DisksResource extends DiskBaseResource {
 
         getLogger().info(String.format("DisksResource initializing contents of %s from %s", uuid, url));
 
+        BigInteger expectedSha1 = getExpectedSha1(form);
+
+        Job.setPhase("downloading");
+
         try {
             // FIXME: This provides the file information for the download
             // itself. It does NOT actually verify the data on disk. An
             // additional check should probably be added.
-            streamInfo = DiskUtils.copyUrlToVolume(uuid, url);
+            streamInfo = DiskUtils.copyUrlToVolume(uuid, url, expectedSha1, identifier);
         } catch (IOException e) {
             String msg = "error initializing disk contents from " + url;
 
@@ -193,27 +260,34 @@ public class DisksResource extends DiskBaseResource {
             }
         }
 
-        String sha1 = form.getFirstValue(SHA1_KEY);
-        if (sha1 != null) {
-            try {
-                BigInteger expected = new BigInteger(sha1, 16);
-                BigInteger found = streamInfo.get("SHA-1");
+        if (expectedSha1 != null) {
+            BigInteger found = streamInfo.get("SHA-1");
 
-                getLogger().info(String
-                        .format("DisksResource sha1 checksums for %s: %s (copied), %s (expected)", uuid, found,
-                                expected));
+            getLogger().info(String
+                    .format("DisksResource sha1 checksums for %s: %s (copied), %s (expected)", uuid, found,
+                            expectedSha1));
 
-                if (!expected.equals(found)) {
-                    throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
-                            String.format("checksum mismatch: %s (found) != %s (expected)", found, expected));
-                }
-            } catch (IllegalArgumentException e) {
-                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "invalid SHA-1 checksum: " + sha1);
+            if (!expectedSha1.equals(found)) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+                        String.format("checksum mismatch: %s (found) != %s (expected)", found, expectedSha1));
             }
         }
 
     }
 
+    private BigInteger getExpectedSha1(Form form) {
+        String sha1 = form.getFirstValue(SHA1_KEY);
+        if (sha1 == null) {
+            return null;
+        }
+
+        try {
+            return new BigInteger(sha1, 16);
+        } catch (IllegalArgumentException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "invalid SHA-1 checksum: " + sha1);
+        }
+    }
+
     protected void createDisk(Disk disk) {
         DiskUtils.createDisk(disk);
     }
@@ -222,104 +296,121 @@ public class DisksResource extends DiskBaseResource {
         DiskUtils.removeDisk(disk.getUuid());
     }
 
-    private Disk saveAndInflateFiles() {
+    // The multipart body is read as it arrives and never spooled: the first
+    // file part is inflated and hashed on the fly. When the client sends the
+    // image size (in GiB) before the file, the image goes straight into a new
+    // volume; otherwise it must be inflated into the cache first, as the
+    // volume cannot be created before its size is known.
+    private Disk inflateUploadedImage(Representation entity) {
 
-        int fileSizeLimit = ServiceConfiguration.getInstance().UPLOAD_COMPRESSED_IMAGE_MAX_BYTES;
-
-        DiskFileItemFactory factory = new DiskFileItemFactory();
-        factory.setRepository(FileUtils.getUploadCacheDirectory());
-        factory.setSizeThreshold(fileSizeLimit);
-
-        RestletFileUpload upload = new RestletFileUpload(factory);
-
-        List<FileItem> items = null;
+        RestletFileUpload upload = new RestletFileUpload();
 
         try {
-            items = upload.parseRequest(getRequest());
+            String size = null;
+
+            FileItemIterator items = upload.getItemIterator(entity);
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                if (item.isFormField()) {
+                    if (Disk.DISK_SIZE_KEY.equals(item.getFieldName())) {
+                        size = Streams.asString(item.openStream());
+                    }
+                } else if (item.getName() != null) {
+                    if (size != null) {
+                        return inflateIntoNewVolume(item.openStream(), parseUploadSize(size));
+                    } else {
+                        return inflateIntoCache(item.openStream());
+                    }
+                }
+            }
+
         } catch (FileUploadException e) {
             throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
         }
 
-        FileItem lastFileItem = null;
-        for (FileItem fi : items) {
-            if (fi.getName() != null) {
-                lastFileItem = fi;
-            }
-        }
-
-        for (FileItem fi : items) {
-            if (fi != lastFileItem) {
-                fi.delete();
-            }
-        }
+        throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "empty file uploaded");
+    }
 
-        if (lastFileItem != null) {
-            return inflateAndProcessImage(lastFileItem);
-        } else {
-            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "empty file uploaded");
+    private long parseUploadSize(String size) {
+        try {
+            return Long.parseLong(size.trim());
+        } catch (NumberFormatException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Error parsing size: " + e.getMessage());
         }
     }
 
-    protected Disk inflateAndProcessImage(FileItem fi) {
+    protected Disk inflateIntoNewVolume(InputStream gzippedContents, long size) {
 
-        File cachedDiskFile = null;
+        Disk disk = initializeDisk();
+        disk.setSize(size);
+        validateDiskSize(disk);
+
+        createDisk(disk);
 
         try {
+            Map<String, BigInteger> streamInfo = DiskUtils.inflateToVolume(disk.getUuid(), gzippedContents,
+                    size * DiskUtils.BYTES_IN_GiB);
+            disk.setIdentifier(MetadataUtils.sha1ToIdentifier(streamInfo.get("SHA-1")));
+            validateNewDisk(disk);
+        } catch (IOException e) {
+            removeDisk(disk);
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "no valid file uploaded: " + e.getMessage());
+        } catch (RuntimeException e) {
+            removeDisk(disk);
+            throw e;
+        }
+
+        disk.setType(DiskType.DATA_IMAGE_RAW_READONLY);
+        disk.setSeed(true);
+
+        return disk;
+    }
 
-            Disk disk = initializeDisk();
+    protected Disk inflateIntoCache(InputStream gzippedContents) {
 
-            cachedDiskFile = FileUtils.getCachedDiskFile(disk.getUuid());
+        Disk disk = initializeDisk();
 
+        File cachedDiskFile = FileUtils.getCachedDiskFile(disk.getUuid());
+
+        try {
+
+            Map<String, BigInteger> streamInfo;
             try {
-                long size = inflateFile(fi.getInputStream(), cachedDiskFile);
-                disk.setSize(size);
+                streamInfo = inflateFile(gzippedContents, cachedDiskFile);
             } catch (IOException e) {
                 throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "no valid file uploaded");
             }
 
-            try {
-                disk.setIdentifier(DiskUtils.calculateHash(cachedDiskFile));
-            } catch (FileNotFoundException e) {
-                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
-            }
+            disk.setSize(DiskUtils.convertBytesToGibiBytes(streamInfo.get("BYTES").longValue()));
+            disk.setIdentifier(MetadataUtils.sha1ToIdentifier(streamInfo.get("SHA-1")));
             validateNewDisk(disk);
-            return disk;
 
         } catch (RuntimeException e) {
-            if (cachedDiskFile != null) {
-                if (!cachedDiskFile.delete()) {
-                    getLogger().warning("could not delete file: " + cachedDiskFile.getAbsolutePath());
-                }
+            if (!cachedDiskFile.delete()) {
+                getLogger().warning("could not delete file: " + cachedDiskFile.getAbsolutePath());
             }
             throw e;
-        } finally {
-            fi.delete();
         }
+
+        return disk;
     }
 
-    private long inflateFile(InputStream gzippedContents, File inflatedFile) {
+    private Map<String, BigInteger> inflateFile(InputStream gzippedContents, File inflatedFile) throws IOException {
 
-        GZIPInputStream in = null;
+        InputStream in = new GZIPInputStream(gzippedContents, DiskUtils.INFLATER_BUFFER_SIZE);
         OutputStream out = null;
 
         try {
-
-            in = new GZIPInputStream(gzippedContents);
             out = new FileOutputStream(inflatedFile);
-
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
-
-        } catch (IOException e) {
-            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+            Map<String, BigInteger> streamInfo = FileUtils.copyWithDigest(in, out, 0L);
+            out.close();
+            return streamInfo;
         } finally {
             FileUtils.closeIgnoringError(in);
             FileUtils.closeIgnoringError(out);
         }
-        return DiskUtils.convertBytesToGibiBytes(inflatedFile.length());
     }
 
     private Map<String, Object> listDisks() {
@@ -327,16 +418,103 @@ public class DisksResource extends DiskBaseResource {
 
         addCreateFormDefaults(info);
 
+        DiskFilter filter = createListingFilter();
+        List<DiskView> disks = Disk.list(filter);
+        info.put("disks", disks);
+
+        // A full page may be followed by another one.
+        if (filter.getLimit() > 0 && disks.size() == filter.getLimit()) {
+            String next = getNextPageUrl(DiskFilter.cursorOf(disks.get(disks.size() - 1)));
+            info.put("next", next);
+            addNextPageHeader(next);
+        }
+
+        return info;
+    }
+
+    // Query parameters: limit, after (cursor of the last disk of the previous
+    // page), type, owner (service user only), tag, identifier and quarantine.
+    private DiskFilter createListingFilter() {
+        Form query = getQuery();
+        DiskFilter filter = new DiskFilter();
+
         String username = getUsername(getRequest());
-        List<DiskView> disks;
         if (isSuperUser(username)) {
-            disks = Disk.listAll();
+            filter.setOwner(getNonEmptyValue(query, "owner"));
         } else {
-            disks = Disk.listAllByUser(username);
+            filter.setOwner(username);
         }
-        info.put("disks", disks);
 
-        return info;
+        filter.setTag(getNonEmptyValue(query, "tag"));
+        filter.setIdentifier(getNonEmptyValue(query, "identifier"));
+
+        String type = getNonEmptyValue(query, "type");
+        if (type != null) {
+            try {
+                filter.setType(DiskType.valueOf(type.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "invalid disk type: " + type);
+            }
+        }
+
+        String quarantine = getNonEmptyValue(query, "quarantine");
+        if (quarantine != null) {
+            if (!"true".equals(quarantine) && !"false".equals(quarantine)) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "quarantine must be true or false");
+            }
+            filter.setQuarantined(Boolean.parseBoolean(quarantine));
+        }
+
+        String limit = getNonEmptyValue(query, "limit");
+        if (limit != null) {
+            try {
+                filter.setLimit(Integer.parseInt(limit));
+            } catch (NumberFormatException e) {
+                filter.setLimit(-1);
+            }
+            if (filter.getLimit() < 1 || filter.getLimit() > MAX_PAGE_SIZE) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "limit must be between 1 and "
+                        + MAX_PAGE_SIZE);
+            }
+        }
+
+        String after = getNonEmptyValue(query, "after");
+        if (after != null) {
+            try {
+                filter.setAfter(after);
+            } catch (IllegalArgumentException e) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+            }
+        }
+
+        return filter;
+    }
+
+    private static String getNonEmptyValue(Form query, String name) {
+        String value = query.getFirstValue(name);
+        return (value == null || "".equals(value.trim())) ? null : value.trim();
+    }
+
+    private String getNextPageUrl(String cursor) {
+        Form next = new Form();
+        for (Parameter parameter : getQuery()) {
+            if (!"after".equals(parameter.getName())) {
+                next.add(parameter.getName(), parameter.getValue());
+            }
+        }
+        next.add("after", cursor);
+        return getCurrentUrl() + "?" + next.getQueryString();
+    }
+
+    private void addNextPageHeader(String next) {
+        Form headers = (Form) getResponse().getAttributes().get("org.restlet.http.headers");
+
+        if (headers == null) {
+            headers = new Form();
+            getResponse().getAttributes().put("org.restlet.http.headers", headers);
+        }
+
+        headers.add("Link", "<" + next + ">; rel=\"next\"");
     }
 
 }
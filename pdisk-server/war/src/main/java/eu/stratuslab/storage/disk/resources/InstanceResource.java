@@ -0,0 +1,275 @@
+package eu.stratuslab.storage.disk.resources;
+
+import eu.stratuslab.storage.disk.utils.DiskUtils;
+import eu.stratuslab.storage.disk.utils.LockManager;
+import eu.stratuslab.storage.disk.utils.MiscUtils;
+import eu.stratuslab.storage.disk.utils.RetryLaterException;
+import eu.stratuslab.storage.persistence.Disk;
+import eu.stratuslab.storage.persistence.Instance;
+import eu.stratuslab.storage.persistence.Mount;
+import org.restlet.data.Form;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Delete;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.restlet.data.MediaType.APPLICATION_JSON;
+import static org.restlet.data.MediaType.TEXT_HTML;
+
+/**
+ * All the disks of a VM. A POST attaches a list of disks at once and a DELETE
+ * detaches all of them, typically when the VM is terminated. Either way the
+ * node is contacted once and the metadata is updated in one transaction.
+ */
+public class InstanceResource extends BaseResource {
+
+    private String vmId = null;
+
+    @Override
+    public void doInit() {
+
+        Object vmIdValue = getRequest().getAttributes().get("vmid");
+        if (vmIdValue == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "missing vm_id value");
+        }
+        vmId = vmIdValue.toString();
+    }
+
+    @Get("html")
+    public Representation getAsHtml() {
+
+        Map<String, Object> info = getInstanceProperties(loadInstance(), null);
+
+        return createTemplateRepresentation("html/instance.ftl", info, TEXT_HTML);
+    }
+
+    @Get("json")
+    public Representation getAsJson() {
+
+        Map<String, Object> info = getInstanceProperties(loadInstance(), null);
+
+        return createTemplateRepresentation("json/instance.ftl", info, APPLICATION_JSON);
+    }
+
+    @Post("form:html")
+    public Representation attachDisksFromHtml(Representation entity) {
+
+        attachDisks(entity);
+
+        redirectSeeOther(getBaseUrl() + "instances/" + vmId + "/");
+
+        return null;
+    }
+
+    @Post("form:json")
+    public Representation attachDisksAsJson(Representation entity) {
+
+        Map<String, Object> info = attachDisks(entity);
+
+        return createTemplateRepresentation("json/instance.ftl", info, APPLICATION_JSON);
+    }
+
+    @Delete("html")
+    public Representation detachDisksAsHtml() {
+
+        detachDisks();
+
+        redirectSeeOther(getBaseUrl() + "instances/");
+
+        Map<String, Object> info = createInfoStructure("redirect");
+        return createTemplateRepresentation("html/redirect.ftl", info, TEXT_HTML);
+    }
+
+    @Delete("json")
+    public Representation detachDisksAsJson() {
+
+        Map<String, Object> info = detachDisks();
+
+        return createTemplateRepresentation("json/instance.ftl", info, APPLICATION_JSON);
+    }
+
+    private Map<String, Object> attachDisks(Representation entity) {
+
+        MiscUtils.checkForNullEntity(entity);
+
+        Form form = new Form(entity);
+
+        String node = form.getFirstValue("node");
+        if (node == null || "".equals(node)) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "missing node attribute");
+        }
+
+        Set<String> uuids = new LinkedHashSet<String>(Arrays.asList(form.getValuesArray("uuid")));
+        uuids.remove("");
+        if (uuids.isEmpty()) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "missing uuid attribute");
+        }
+
+        LockManager.Locks locks = LockManager.lockInstanceAndDisks(vmId, uuids);
+        try {
+            return attachDisksLocked(node, uuids);
+        } finally {
+            locks.release();
+        }
+    }
+
+    private Map<String, Object> attachDisksLocked(String node, Set<String> uuids) {
+
+        Instance instance = Instance.load(vmId);
+        if (instance == null) {
+            instance = new Instance(vmId, getUsername(getRequest()));
+        } else {
+            checkRights(instance);
+        }
+
+        List<Disk> disks = new ArrayList<Disk>();
+        for (String uuid : uuids) {
+            Disk disk = Disk.load(uuid);
+            if (disk == null) {
+                throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "Unknown disk: " + uuid);
+            }
+            if (!hasSufficientRightsToView(disk)) {
+                throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN, "Not enough rights to attach disk " + uuid);
+            }
+            if (Mount.load(instance, disk) != null) {
+                throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN,
+                        "Mount already exists for: " + vmId + " and " + uuid);
+            }
+            disks.add(disk);
+        }
+
+        List<String> devices = instance.nextDiskTargets(disks.size());
+        Map<String, String> targets = new LinkedHashMap<String, String>();
+        for (int i = 0; i < disks.size(); i++) {
+            targets.put(disks.get(i).getUuid(), devices.get(i));
+        }
+
+        Map<String, String> turls = DiskUtils.getTurls(uuids);
+
+        getLogger().info("attachDisks: " + node + " " + vmId + " " + targets);
+
+        try {
+            DiskUtils.attachHotplugDisks(getServiceEndpoint(), node, instance.getOwner(), vmId, targets, turls);
+        } catch (RetryLaterException e) {
+            throw e;
+        } catch (ResourceException e) {
+            // Some of the disks may have been attached before the failure.
+            try {
+                DiskUtils.detachHotplugDisks(getServiceEndpoint(), node, instance.getOwner(), vmId, targets, turls);
+            } catch (ResourceException e2) {
+                getLogger().warning("detachDisks failed after failed attach: " + node + ", " + vmId);
+            }
+            throw e;
+        }
+
+        // Add this metadata only AFTER the devices have been successfully added.
+        instance.setNode(node);
+
+        List<Mount> mounts = new ArrayList<Mount>();
+        for (Disk disk : disks) {
+            Mount mount = new Mount(instance, disk);
+            mount.setDevice(targets.get(disk.getUuid()));
+            instance.getMounts().put(mount.getId(), mount);
+            mounts.add(mount);
+        }
+
+        Mount.store(instance, mounts);
+
+        return getInstanceProperties(instance, mounts);
+    }
+
+    private Map<String, Object> detachDisks() {
+
+        // The disks are only known once the instance is loaded: the locks are
+        // taken again if disks were attached in the meantime.
+        while (true) {
+            List<String> uuids = getMountedDisks(loadInstance());
+
+            LockManager.Locks locks = LockManager.lockInstanceAndDisks(vmId, uuids);
+            try {
+                Instance instance = loadInstance();
+                if (uuids.containsAll(getMountedDisks(instance))) {
+                    return detachDisksLocked(instance);
+                }
+            } finally {
+                locks.release();
+            }
+        }
+    }
+
+    private static List<String> getMountedDisks(Instance instance) {
+        List<String> uuids = new ArrayList<String>();
+        for (Mount mount : instance.getMounts().values()) {
+            uuids.add(mount.getUuid());
+        }
+        return uuids;
+    }
+
+    private Map<String, Object> detachDisksLocked(Instance instance) {
+
+        String node = instance.getNode();
+
+        List<Mount> mounts = new ArrayList<Mount>(instance.getMounts().values());
+        Map<String, String> targets = new LinkedHashMap<String, String>();
+        List<String> mountIds = new ArrayList<String>();
+        for (Mount mount : mounts) {
+            if (!Disk.STATIC_DISK_TARGET.equals(mount.getDevice())) {
+                targets.put(mount.getUuid(), mount.getDevice());
+            }
+            mountIds.add(mount.getId());
+        }
+
+        if (!targets.isEmpty()) {
+            try {
+                Map<String, String> turls = DiskUtils.getTurls(targets.keySet());
+
+                DiskUtils.detachHotplugDisks(getServiceEndpoint(), node, instance.getOwner(), vmId, targets, turls);
+                getLogger().info("detachDisks: " + node + ", " + vmId + ", " + targets);
+            } catch (RetryLaterException e) {
+                // Nothing was done: the client has to try again.
+                throw e;
+            } catch (ResourceException e) {
+                getLogger().warning("detachDisks failed for: " + node + ", " + vmId + ", " + targets);
+            }
+        }
+
+        Mount.remove(mountIds);
+
+        return getInstanceProperties(instance, mounts);
+    }
+
+    private Instance loadInstance() {
+        Instance instance = Instance.load(vmId);
+        if (instance == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "Unknown instance: " + vmId);
+        }
+        checkRights(instance);
+        return instance;
+    }
+
+    private void checkRights(Instance instance) {
+        String username = getUsername(getRequest());
+        if (!username.equals(instance.getOwner()) && !isSuperUser(username)) {
+            throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN, "insufficient rights on instance " + vmId);
+        }
+    }
+
+    private Map<String, Object> getInstanceProperties(Instance instance, List<Mount> mounts) {
+        Map<String, Object> info = createInfoStructure("Instance Information");
+        info.put("vm_id", vmId);
+        info.put("node", (instance.getNode() != null) ? instance.getNode() : "");
+        info.put("mounts", (mounts != null) ? mounts : new ArrayList<Mount>(instance.getMounts().values()));
+        return info;
+    }
+
+}
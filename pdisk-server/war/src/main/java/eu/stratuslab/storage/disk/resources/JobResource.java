@@ -0,0 +1,51 @@
+package eu.stratuslab.storage.disk.resources;
+
+import eu.stratuslab.storage.disk.utils.Job;
+import eu.stratuslab.storage.disk.utils.JobManager;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ResourceException;
+
+import java.util.Map;
+
+import static org.restlet.data.MediaType.APPLICATION_JSON;
+import static org.restlet.data.MediaType.TEXT_HTML;
+
+public class JobResource extends BaseResource {
+
+    private Job job = null;
+
+    @Override
+    public void doInit() {
+
+        String id = getRequest().getAttributes().get("id").toString();
+
+        job = JobManager.getInstance().get(id);
+        if (job == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "Unknown job: " + id);
+        }
+
+        String username = getUsername(getRequest());
+        if (!job.getOwner().equals(username) && !isSuperUser(username)) {
+            throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN, "insufficient rights to view job " + id);
+        }
+    }
+
+    @Get("html")
+    public Representation getAsHtml() {
+        return createTemplateRepresentation("html/job.ftl", getInfoMap(), TEXT_HTML);
+    }
+
+    @Get("json")
+    public Representation getAsJson() {
+        return createTemplateRepresentation("json/job.ftl", getInfoMap(), APPLICATION_JSON);
+    }
+
+    private Map<String, Object> getInfoMap() {
+        Map<String, Object> info = createInfoStructure("Job");
+        info.put("job", job);
+        return info;
+    }
+
+}
@@ -1,7 +1,8 @@
 package eu.stratuslab.storage.disk.resources;
 
-import eu.stratuslab.storage.disk.backend.BackEndStorage;
 import eu.stratuslab.storage.disk.utils.DiskUtils;
+import eu.stratuslab.storage.disk.utils.LockManager;
+import eu.stratuslab.storage.disk.utils.RetryLaterException;
 import eu.stratuslab.storage.persistence.Disk;
 import eu.stratuslab.storage.persistence.Instance;
 import eu.stratuslab.storage.persistence.Mount;
@@ -115,6 +116,22 @@ public class MountResource extends BaseResource {
 
     private String detachHotPluggedDisk() {
 
+        LockManager.Locks locks = LockManager.lockDiskAndInstance(diskId, mount.getVmId());
+        try {
+            return detachHotPluggedDiskLocked();
+        } finally {
+            locks.release();
+        }
+    }
+
+    private String detachHotPluggedDiskLocked() {
+
+        // A concurrent detach may already have removed the mount.
+        mount = Mount.load(mountId);
+        if (mount == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "unknown mount: " + mountId);
+        }
+
         Disk disk = Disk.load(diskId);
         if (disk == null) {
             throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "unknown disk: " + diskId);
@@ -131,11 +148,14 @@ public class MountResource extends BaseResource {
         if (!updateMetadataOnly) {
 
             try {
-                BackEndStorage backEndStorage = new BackEndStorage();
-                String turl = backEndStorage.getTurl(diskId);
+                String turl = DiskUtils.getTurl(diskId);
 
-                DiskUtils.detachHotplugDisk(getServiceEndpoint(), node, mount.getVmId(), diskId, diskTarget, turl);
+                DiskUtils.detachHotplugDisk(getServiceEndpoint(), node, disk.getOwner(), mount.getVmId(), diskId,
+                        diskTarget, turl);
                 getLogger().info("hotDetach: " + node + ", " + mount.getVmId() + ", " + diskId + ", " + diskTarget);
+            } catch (RetryLaterException e) {
+                // Nothing was done: the client has to try again.
+                throw e;
             } catch (ResourceException e) {
                 getLogger().warning(
                         "hotDetach failed for: " + node + ", " + mount.getVmId() + ", " + diskId + ", " + diskTarget);
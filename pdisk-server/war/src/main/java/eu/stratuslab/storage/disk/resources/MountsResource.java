@@ -1,11 +1,12 @@
 package eu.stratuslab.storage.disk.resources;
 
-import eu.stratuslab.storage.disk.backend.BackEndStorage;
 import eu.stratuslab.storage.disk.utils.DiskUtils;
+import eu.stratuslab.storage.disk.utils.LockManager;
 import eu.stratuslab.storage.disk.utils.MiscUtils;
 import eu.stratuslab.storage.persistence.Disk;
 import eu.stratuslab.storage.persistence.Instance;
 import eu.stratuslab.storage.persistence.Mount;
+import eu.stratuslab.storage.persistence.UnitOfWork;
 import org.restlet.data.Form;
 import org.restlet.data.Status;
 import org.restlet.representation.Representation;
@@ -86,12 +87,29 @@ public class MountsResource extends BaseResource {
         // be null after this call.
         extractFormValues(entity);
 
+        LockManager.Locks locks = LockManager.lockDiskAndInstance(disk.getUuid(), vmId);
+        try {
+            return mountDiskLocked();
+        } finally {
+            locks.release();
+        }
+    }
+
+    private Representation mountDiskLocked() {
+
+        // Reload the disk: it may have changed since the request was initialized.
+        String uuid = disk.getUuid();
+        disk = Disk.load(uuid);
+        if (disk == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "Unknown disk: " + uuid);
+        }
+
         instance = Instance.load(vmId);
         if (instance == null) {
             instance = new Instance(vmId, getUsername(getRequest()));
         }
 
-        String target = registerOnly ? Disk.STATIC_DISK_TARGET : instance.nextDiskTarget(vmId);
+        String target = registerOnly ? Disk.STATIC_DISK_TARGET : instance.nextDiskTarget();
 
         getLogger().info("DiskResource mountDisk: " + registerOnly + " " + disk
                         .getUuid() + ", " + node + ", " + vmId + ", " + target);
@@ -99,10 +117,8 @@ public class MountsResource extends BaseResource {
         try {
             return attachDisk(target);
         } catch (RuntimeException e) {
-            try {
-                instance.getMounts().remove(target);
-            } catch (RuntimeException e2) {
-                // it's ok
+            if (!registerOnly) {
+                instance.releaseDiskTarget(target);
             }
             throw e;
         }
@@ -145,25 +161,30 @@ public class MountsResource extends BaseResource {
 
         if (!target.equals(Disk.STATIC_DISK_TARGET)) {
             getLogger().info("hotPlugDisk: " + node + " " + vmId + " " + disk.getUuid() + " " + target);
-            BackEndStorage backEndStorage = new BackEndStorage();
-            DiskUtils.attachHotplugDisk(getServiceEndpoint(), node, vmId, disk.getUuid(), target,
-                    backEndStorage.getTurl(disk.getUuid()));
+            DiskUtils.attachHotplugDisk(getServiceEndpoint(), node, disk.getOwner(), vmId, disk.getUuid(), target,
+                    DiskUtils.getTurl(disk.getUuid()));
         }
 
         // Add this metadata only AFTER the device has been successfully added.
         instance.setNode(node);
 
-        disk.store();
-        instance.store();
-
-
         Mount mount = new Mount(instance, disk);
         mount.setDevice(target);
 
-        disk.getMounts().put(vmId, mount);
-        instance.getMounts().put(disk.getUuid(), mount);
+        // The disk, the instance and the mount are written together.
+        UnitOfWork work = UnitOfWork.begin();
+        try {
+            disk.store();
+            instance.store();
+
+            disk.getMounts().put(vmId, mount);
+            instance.getMounts().put(disk.getUuid(), mount);
 
-        mount.store();
+            mount.store();
+            work.commit();
+        } finally {
+            work.end();
+        }
         mountId = mount.getId();
 
         List<String> diskIds = new LinkedList<String>();
@@ -0,0 +1,41 @@
+package eu.stratuslab.storage.disk.resources;
+
+import eu.stratuslab.storage.disk.utils.Statistics;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ResourceException;
+
+import java.util.Map;
+
+import static org.restlet.data.MediaType.APPLICATION_JSON;
+import static org.restlet.data.MediaType.TEXT_HTML;
+
+public class StatisticsResource extends BaseResource {
+
+    @Override
+    public void doInit() {
+
+        if (!isSuperUser(getUsername(getRequest()))) {
+            throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN, "insufficient rights to view statistics");
+        }
+
+    }
+
+    @Get("html")
+    public Representation getAsHtml() {
+        return createTemplateRepresentation("html/statistics.ftl", getStatistics(), TEXT_HTML);
+    }
+
+    @Get("json")
+    public Representation getAsJson() {
+        return createTemplateRepresentation("json/statistics.ftl", getStatistics(), APPLICATION_JSON);
+    }
+
+    private Map<String, Object> getStatistics() {
+        Map<String, Object> info = createInfoStructure("Statistics");
+        info.put("sources", Statistics.snapshot());
+        return info;
+    }
+
+}
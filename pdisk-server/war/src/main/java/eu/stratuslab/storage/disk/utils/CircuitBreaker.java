@@ -0,0 +1,279 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Guards the commands sent to one target (a cloud node or the storage
+ * backend). After a number of consecutive transient failures the circuit
+ * opens and calls fail immediately with a RetryLaterException instead of
+ * waiting for the target to time out again. Once the open time has passed a
+ * single trial call is let through: its success closes the circuit, its
+ * failure opens it again.
+ *
+ * Transient failures are commands that timed out or for which ssh failed
+ * (exit code 255), either connecting or during the command. Only the
+ * failures known to have happened before the command started, reported as
+ * CommandNotStartedException, are retried with a jittered exponential
+ * backoff: the others may have run part of the command. Other failures show
+ * that the target answered and leave the circuit closed.
+ *
+ * Breakers are created on first use by name and kept for the life of the
+ * service.
+ */
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN;
+    }
+
+    // Exit code of ssh when it could not connect or lost the connection
+    public static final int SSH_CONNECTION_FAILED = 255;
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new TreeMap<String, CircuitBreaker>();
+
+    private static final Random JITTER = new Random();
+
+    static {
+        Statistics.register("breakers", new Statistics.Source() {
+            public Map<String, Object> getStatistics() {
+                Map<String, Object> stats = new HashMap<String, Object>();
+                int open = 0;
+                synchronized (BREAKERS) {
+                    for (CircuitBreaker breaker : BREAKERS.values()) {
+                        if (breaker.getState() != State.CLOSED) {
+                            open++;
+                        }
+                    }
+                    stats.put("breakers", BREAKERS.size());
+                }
+                stats.put("open", open);
+                return stats;
+            }
+        });
+    }
+
+    private final String name;
+    private final int threshold;
+    private final long openTime;
+    private final int attempts;
+    private final long retryDelay;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0L;
+    private boolean trialRunning = false;
+
+    private long calls = 0L;
+    private long rejected = 0L;
+    private long retries = 0L;
+    private long trips = 0L;
+
+    /**
+     * Creates a breaker opening after threshold consecutive transient
+     * failures for openTime ms. Calls that did not start are made up to
+     * attempts times, the n-th retry waiting up to retryDelay * 2^n ms.
+     */
+    public CircuitBreaker(String name, int threshold, long openTime, int attempts, long retryDelay) {
+        this.name = name;
+        this.threshold = threshold;
+        this.openTime = openTime;
+        this.attempts = Math.max(1, attempts);
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Returns the breaker of the target, configured for the service.
+     */
+    public static CircuitBreaker get(String name) {
+        synchronized (BREAKERS) {
+            CircuitBreaker breaker = BREAKERS.get(name);
+            if (breaker == null) {
+                ServiceConfiguration configuration = ServiceConfiguration.getInstance();
+                breaker = new CircuitBreaker(name, configuration.BREAKER_THRESHOLD,
+                        configuration.BREAKER_OPEN_TIME * 1000L, configuration.RETRY_ATTEMPTS,
+                        configuration.RETRY_DELAY);
+                BREAKERS.put(name, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * State of every breaker, by name.
+     */
+    public static Map<String, Map<String, Object>> getAllStatistics() {
+        Map<String, Map<String, Object>> all = new TreeMap<String, Map<String, Object>>();
+        synchronized (BREAKERS) {
+            for (CircuitBreaker breaker : BREAKERS.values()) {
+                all.put(breaker.name, breaker.getStatistics());
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Closes the named breaker. Returns false if there is none.
+     */
+    public static boolean reset(String name) {
+        CircuitBreaker breaker;
+        synchronized (BREAKERS) {
+            breaker = BREAKERS.get(name);
+        }
+        if (breaker == null) {
+            return false;
+        }
+        breaker.reset();
+        return true;
+    }
+
+    public static boolean isTransient(RuntimeException e) {
+        if (!(e instanceof CommandException)) {
+            return false;
+        }
+        CommandException failure = (CommandException) e;
+        return failure.isTimedOut() || failure.getExitCode() == SSH_CONNECTION_FAILED;
+    }
+
+    private static boolean isRetryable(RuntimeException e) {
+        return e instanceof CommandNotStartedException;
+    }
+
+    /**
+     * Runs the command through the breaker, retrying it if it failed before
+     * starting on the target.
+     */
+    public <T> T call(Callable<T> command) {
+        for (int attempt = 1;; attempt++) {
+            boolean trial = admit();
+            try {
+                T result = command.call();
+                succeeded(trial);
+                return result;
+            } catch (RetryLaterException e) {
+                // Refused before reaching the target: says nothing about it.
+                abandoned(trial);
+                throw e;
+            } catch (RuntimeException e) {
+                if (!isTransient(e)) {
+                    succeeded(trial);
+                    throw e;
+                }
+                failed(trial);
+                if (attempt >= attempts || !isRetryable(e)) {
+                    throw e;
+                }
+            } catch (Exception e) {
+                succeeded(trial);
+                throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
+            }
+            backOff(attempt);
+        }
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openTime) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    public synchronized void reset() {
+        state = State.CLOSED;
+        failures = 0;
+        trialRunning = false;
+    }
+
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        State current = getState();
+        stats.put("state", current.name().toLowerCase());
+        stats.put("failures", failures);
+        stats.put("retry_in", (current == State.OPEN) ? getRetryAfter() : 0);
+        stats.put("calls", calls);
+        stats.put("rejected", rejected);
+        stats.put("retries", retries);
+        stats.put("trips", trips);
+        return stats;
+    }
+
+    // Returns true if the call is the trial of a half-open circuit.
+    private synchronized boolean admit() {
+        State current = getState();
+        if (current == State.OPEN || (current == State.HALF_OPEN && trialRunning)) {
+            rejected++;
+            throw new RetryLaterException(name + " is unavailable, retry later", getRetryAfter());
+        }
+        calls++;
+        if (current == State.HALF_OPEN) {
+            trialRunning = true;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void succeeded(boolean trial) {
+        if (trial) {
+            trialRunning = false;
+            LOGGER.info("circuit closed: " + name);
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    private synchronized void abandoned(boolean trial) {
+        if (trial) {
+            trialRunning = false;
+        }
+    }
+
+    private synchronized void failed(boolean trial) {
+        failures++;
+        if (trial) {
+            trialRunning = false;
+        }
+        if (trial || (state == State.CLOSED && failures >= threshold)) {
+            if (state == State.CLOSED) {
+                trips++;
+                LOGGER.warning("circuit opened after " + failures + " failures: " + name);
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    private int getRetryAfter() {
+        long remaining = openTime - (System.currentTimeMillis() - openedAt);
+        return (int) Math.max(1L, (remaining + 999L) / 1000L);
+    }
+
+    // Full jitter: a random wait up to the exponential delay.
+    private void backOff(int attempt) {
+        synchronized (this) {
+            retries++;
+        }
+        long bound = retryDelay << Math.min(attempt - 1, 16);
+        long delay;
+        synchronized (JITTER) {
+            delay = (long) (JITTER.nextDouble() * bound);
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "interrupted while retrying " + name);
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+package eu.stratuslab.storage.disk.utils;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+/**
+ * Failure of an external command: either a non-zero exit code or a command
+ * killed because it exceeded its deadline. Callers that need to distinguish
+ * transient failures can inspect the exit code and the captured output.
+ */
+public class CommandException extends ResourceException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int exitCode;
+    private final boolean timedOut;
+    private final String output;
+
+    public CommandException(String message, int exitCode, boolean timedOut, String output) {
+        super(Status.SERVER_ERROR_INTERNAL, message);
+        this.exitCode = exitCode;
+        this.timedOut = timedOut;
+        this.output = output;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+}
@@ -0,0 +1,514 @@
+package eu.stratuslab.storage.disk.utils;
+
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Runs external commands on bounded thread pools, one per class of command,
+ * so that a burst of slow commands of one kind cannot starve the others.
+ * Every command has a deadline: it is run under GNU timeout (when available)
+ * so that its whole process group is killed, and the process itself is
+ * destroyed as a last resort. Only the tail of the combined stdout/stderr is
+ * kept.
+ */
+public final class CommandExecutor {
+
+    public enum CommandClass {
+        BACKEND("backend", 16, 300),
+        HOTPLUG("hotplug", 8, 120),
+        COMPRESS("compress", 2, 7200),
+        COPY("copy", 4, 7200),
+        OTHER("other", 8, 600);
+
+        private final String name;
+        private final int defaultConcurrency;
+        private final int defaultTimeout;
+
+        private CommandClass(String name, int defaultConcurrency, int defaultTimeout) {
+            this.name = name;
+            this.defaultConcurrency = defaultConcurrency;
+            this.defaultTimeout = defaultTimeout;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getDefaultConcurrency() {
+            return defaultConcurrency;
+        }
+
+        public int getDefaultTimeout() {
+            return defaultTimeout;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final File TIMEOUT_CMD = new File("/usr/bin/timeout");
+
+    // Exit code of GNU timeout when the command exceeded its deadline
+    private static final int TIMEOUT_EXIT_CODE = 124;
+
+    // Time given to a command to exit after SIGTERM before it is killed (s)
+    private static final int KILL_GRACE = 5;
+
+    private static CommandExecutor instance = null;
+
+    private final Map<CommandClass, Lane> lanes = new EnumMap<CommandClass, Lane>(CommandClass.class);
+
+    private final ScheduledExecutorService killer;
+
+    private final int outputLimit;
+
+    private final boolean useTimeoutCmd;
+
+    public CommandExecutor(int outputLimit) {
+        this.outputLimit = outputLimit;
+        this.useTimeoutCmd = FileUtils.isExecutable(TIMEOUT_CMD);
+
+        killer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("command-killer"));
+
+        for (CommandClass commandClass : CommandClass.values()) {
+            lanes.put(commandClass, new Lane(commandClass));
+        }
+    }
+
+    public static synchronized CommandExecutor getInstance() {
+        if (instance == null) {
+            ServiceConfiguration configuration = ServiceConfiguration.getInstance();
+
+            CommandExecutor executor = new CommandExecutor(configuration.COMMAND_OUTPUT_LIMIT);
+            for (CommandClass commandClass : CommandClass.values()) {
+                executor.configure(commandClass, configuration.getCommandConcurrency(commandClass.getName(),
+                        commandClass.getDefaultConcurrency()), configuration.getCommandTimeout(
+                        commandClass.getName(), commandClass.getDefaultTimeout()));
+                Statistics.register("commands." + commandClass.getName(), executor.lanes.get(commandClass));
+            }
+
+            instance = executor;
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            for (CommandClass commandClass : CommandClass.values()) {
+                Statistics.unregister("commands." + commandClass.getName());
+            }
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Sets the number of commands of the given class that may run at the
+     * same time and their deadline in seconds (0 for none).
+     */
+    public void configure(CommandClass commandClass, int concurrency, int timeout) {
+        lanes.get(commandClass).configure(concurrency, timeout);
+    }
+
+    /**
+     * Queues the command and returns immediately. Cancelling the returned
+     * future kills the command. A failed command completes the future with a
+     * CommandException (or another ResourceException) as cause.
+     */
+    public Future<String> submit(CommandClass commandClass, ProcessBuilder pb, String errorMsg) {
+        return lanes.get(commandClass).submit(pb, errorMsg, false);
+    }
+
+    /**
+     * Runs the command and waits for its output. The wait is bounded by the
+     * deadline of the command class.
+     */
+    public String execute(CommandClass commandClass, ProcessBuilder pb, String errorMsg) {
+        return waitFor(submit(commandClass, pb, errorMsg), pb);
+    }
+
+    /**
+     * Runs a probe and returns its exit code. A non-zero exit code or a
+     * timeout is an expected answer: it is not logged as an error.
+     */
+    public int executeGetStatus(CommandClass commandClass, ProcessBuilder pb) {
+        try {
+            waitFor(lanes.get(commandClass).submit(pb, "", true), pb);
+            return 0;
+        } catch (CommandException e) {
+            return e.getExitCode();
+        }
+    }
+
+    public static String waitFor(Future<String> future, ProcessBuilder pb) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Interrupted while executing command: "
+                    + MiscUtils.join(pb.command(), " "));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, cause);
+        }
+    }
+
+    public void shutdown() {
+        for (Lane lane : lanes.values()) {
+            lane.pool.shutdownNow();
+        }
+        killer.shutdownNow();
+    }
+
+    private List<String> withDeadline(List<String> command, int timeout) {
+        if (!useTimeoutCmd || timeout <= 0) {
+            return command;
+        }
+        List<String> wrapped = new ArrayList<String>();
+        wrapped.add(TIMEOUT_CMD.getAbsolutePath());
+        wrapped.add("-k");
+        wrapped.add(String.valueOf(KILL_GRACE));
+        wrapped.add(String.valueOf(timeout));
+        wrapped.addAll(command);
+        return wrapped;
+    }
+
+    private final class Lane implements Statistics.Source {
+
+        private final CommandClass commandClass;
+
+        private final ThreadPoolExecutor pool;
+
+        private volatile int timeout;
+
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong timedOut = new AtomicLong();
+        private final AtomicLong queueTime = new AtomicLong();
+        private final AtomicLong wallTime = new AtomicLong();
+        private final AtomicLong maxWallTime = new AtomicLong();
+
+        Lane(CommandClass commandClass) {
+            this.commandClass = commandClass;
+            this.timeout = commandClass.getDefaultTimeout();
+
+            int concurrency = commandClass.getDefaultConcurrency();
+            pool = new ThreadPoolExecutor(concurrency, concurrency, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("command-"
+                            + commandClass.getName()));
+            pool.allowCoreThreadTimeOut(true);
+        }
+
+        void configure(int concurrency, int timeout) {
+            if (concurrency < 1) {
+                throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+            }
+            if (concurrency > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(concurrency);
+                pool.setCorePoolSize(concurrency);
+            } else {
+                pool.setCorePoolSize(concurrency);
+                pool.setMaximumPoolSize(concurrency);
+            }
+            this.timeout = timeout;
+        }
+
+        Future<String> submit(ProcessBuilder pb, String errorMsg, boolean quiet) {
+            CommandTask task = new CommandTask(this, pb, errorMsg, quiet);
+            CommandFuture future = new CommandFuture(task);
+            submitted.incrementAndGet();
+            pool.execute(future);
+            return future;
+        }
+
+        void started(long queued) {
+            running.incrementAndGet();
+            queueTime.addAndGet(queued);
+        }
+
+        void finished(long elapsed, boolean success, boolean killed) {
+            running.decrementAndGet();
+            wallTime.addAndGet(elapsed);
+            for (long max = maxWallTime.get(); elapsed > max; max = maxWallTime.get()) {
+                if (maxWallTime.compareAndSet(max, elapsed)) {
+                    break;
+                }
+            }
+            if (killed) {
+                timedOut.incrementAndGet();
+            }
+            if (success) {
+                completed.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        }
+
+        public Map<String, Object> getStatistics() {
+            Map<String, Object> stats = new HashMap<String, Object>();
+            long finished = completed.get() + failed.get();
+            long wall = wallTime.get();
+            stats.put("concurrency", pool.getMaximumPoolSize());
+            stats.put("timeout", timeout);
+            stats.put("queued", pool.getQueue().size());
+            stats.put("running", running.get());
+            stats.put("submitted", submitted.get());
+            stats.put("completed", completed.get());
+            stats.put("failed", failed.get());
+            stats.put("timed_out", timedOut.get());
+            stats.put("mean_queue_ms", (finished == 0) ? 0L : queueTime.get() / finished);
+            stats.put("mean_wall_ms", (finished == 0) ? 0L : wall / finished);
+            stats.put("max_wall_ms", maxWallTime.get());
+            return stats;
+        }
+    }
+
+    private final class CommandTask implements Callable<String> {
+
+        private final Lane lane;
+        private final ProcessBuilder pb;
+        private final String errorMsg;
+        private final boolean quiet;
+        private final long submitted;
+
+        private volatile Process process = null;
+        private volatile boolean killed = false;
+
+        CommandTask(Lane lane, ProcessBuilder pb, String errorMsg, boolean quiet) {
+            this.lane = lane;
+            this.pb = pb;
+            this.errorMsg = errorMsg;
+            this.quiet = quiet;
+            this.submitted = System.currentTimeMillis();
+        }
+
+        public String call() {
+            long started = System.currentTimeMillis();
+            lane.started(started - submitted);
+
+            boolean success = false;
+            try {
+                String output = run();
+                success = true;
+                return output;
+            } finally {
+                lane.finished(System.currentTimeMillis() - started, success, killed);
+            }
+        }
+
+        private String run() {
+            int timeout = lane.timeout;
+            List<String> command = pb.command();
+
+            pb.command(withDeadline(command, timeout));
+            pb.redirectErrorStream(true);
+
+            try {
+                process = pb.start();
+            } catch (IOException e) {
+                String msg = "An error occurred while executing command: " + MiscUtils.join(command, " ") + ".\n"
+                        + errorMsg + ".";
+                LOGGER.severe(msg);
+                LOGGER.severe(e.getMessage());
+                throw new CommandException(msg, -1, false, "");
+            } finally {
+                pb.command(command);
+            }
+
+            ScheduledFuture<?> deadline = null;
+            if (timeout > 0) {
+                long delay = useTimeoutCmd ? timeout + KILL_GRACE + 1 : timeout;
+                deadline = killer.schedule(new Runnable() {
+                    public void run() {
+                        kill();
+                    }
+                }, delay, TimeUnit.SECONDS);
+            }
+
+            TailBuffer output = new TailBuffer(outputLimit);
+            int returnCode;
+            try {
+                readFully(process.getInputStream(), output);
+                returnCode = process.waitFor();
+            } catch (IOException e) {
+                kill();
+                returnCode = -1;
+            } catch (InterruptedException e) {
+                kill();
+                Thread.currentThread().interrupt();
+                throw new CommandException("Interrupted while executing command: " + MiscUtils.join(command, " "),
+                        -1, false, output.toString());
+            } finally {
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+                FileUtils.closeIgnoringError(process.getInputStream());
+                FileUtils.closeIgnoringError(process.getOutputStream());
+                FileUtils.closeIgnoringError(process.getErrorStream());
+            }
+
+            if (useTimeoutCmd && timeout > 0 && returnCode == TIMEOUT_EXIT_CODE) {
+                killed = true;
+            }
+
+            if (output.isTruncated()) {
+                LOGGER.warning("output of " + MiscUtils.join(command, " ") + " truncated to " + outputLimit
+                        + " bytes");
+            }
+
+            if (killed) {
+                String msg = "Command timed out after " + timeout + " s: " + MiscUtils.join(command, " ") + ".\n"
+                        + output + "\n" + errorMsg + ".";
+                logFailure(msg);
+                throw new CommandException(msg, returnCode, true, output.toString());
+            }
+
+            if (returnCode != 0) {
+                String msg = "An error occurred while executing command: " + MiscUtils.join(command, " ") + ".\n"
+                        + output + "\n" + errorMsg + ".\nReturn code was: " + String.valueOf(returnCode);
+                logFailure(msg);
+                throw new CommandException(msg, returnCode, false, output.toString());
+            }
+
+            return output.toString();
+        }
+
+        private void logFailure(String msg) {
+            if (quiet) {
+                LOGGER.fine(msg);
+            } else {
+                LOGGER.severe(msg);
+            }
+        }
+
+        void kill() {
+            Process p = process;
+            if (p != null) {
+                killed = true;
+                p.destroy();
+            }
+        }
+    }
+
+    private static final class CommandFuture extends FutureTask<String> {
+
+        private final CommandTask task;
+
+        CommandFuture(CommandTask task) {
+            super(task);
+            this.task = task;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && mayInterruptIfRunning) {
+                task.kill();
+            }
+            return cancelled;
+        }
+    }
+
+    private static void readFully(InputStream is, TailBuffer output) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+            output.write(buffer, n);
+        }
+    }
+
+    /**
+     * Keeps the last 'limit' bytes written to it.
+     */
+    private static final class TailBuffer {
+
+        private final byte[] buffer;
+        private int end = 0;
+        private long total = 0;
+
+        TailBuffer(int limit) {
+            buffer = new byte[limit];
+        }
+
+        void write(byte[] b, int len) {
+            int capacity = buffer.length;
+            if (len >= capacity) {
+                System.arraycopy(b, len - capacity, buffer, 0, capacity);
+                end = 0;
+            } else {
+                int first = Math.min(len, capacity - end);
+                System.arraycopy(b, 0, buffer, end, first);
+                System.arraycopy(b, first, buffer, 0, len - first);
+                end = (end + len) % capacity;
+            }
+            total += len;
+        }
+
+        boolean isTruncated() {
+            return total > buffer.length;
+        }
+
+        @Override
+        public String toString() {
+            try {
+                if (!isTruncated()) {
+                    return new String(buffer, 0, (int) total, CHARSET);
+                }
+                byte[] ordered = new byte[buffer.length];
+                System.arraycopy(buffer, end, ordered, 0, buffer.length - end);
+                System.arraycopy(buffer, 0, ordered, buffer.length - end, end);
+                return new String(ordered, CHARSET);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
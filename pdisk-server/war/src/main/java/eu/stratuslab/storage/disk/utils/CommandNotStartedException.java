@@ -0,0 +1,16 @@
+package eu.stratuslab.storage.disk.utils;
+
+/**
+ * Failure of a remote command that is known not to have started on the
+ * target, because ssh could not connect to it. Such a command can be run
+ * again without running any of it twice.
+ */
+public class CommandNotStartedException extends CommandException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CommandNotStartedException(CommandException cause) {
+        super(cause.getMessage(), cause.getExitCode(), false, cause.getOutput());
+    }
+
+}
@@ -0,0 +1,114 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+/**
+ * Writes to a stream and keeps a copy of the data in a temporary file, which
+ * is renamed once all the data has been written. Problems with the copy never
+ * disturb the main stream: the copy is simply abandoned.
+ */
+public final class CopyingOutputStream extends OutputStream {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private final OutputStream out;
+    private final File part;
+
+    private OutputStream copy;
+
+    public CopyingOutputStream(OutputStream out, File part) {
+        this.out = out;
+        this.part = part;
+
+        try {
+            copy = new FileOutputStream(part);
+        } catch (IOException e) {
+            LOGGER.warning("not keeping a copy in " + part.getAbsolutePath() + ": " + e.getMessage());
+            copy = null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        if (copy != null) {
+            try {
+                copy.write(b, off, len);
+            } catch (IOException e) {
+                LOGGER.warning("abandoning copy " + part.getAbsolutePath() + ": " + e.getMessage());
+                abandon();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Returns false once the copy has been abandoned or committed.
+     */
+    public boolean isCopying() {
+        return copy != null;
+    }
+
+    /**
+     * Closes the copy and moves it to its final location. Returns false if
+     * there is no complete copy.
+     */
+    public boolean commit(File target) {
+        if (copy == null) {
+            return false;
+        }
+        try {
+            copy.close();
+        } catch (IOException e) {
+            abandon();
+            return false;
+        }
+        copy = null;
+
+        if (!part.renameTo(target)) {
+            LOGGER.warning("could not rename " + part.getAbsolutePath() + " to " + target.getAbsolutePath());
+            deletePart();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drops the copy; does nothing once it has been committed.
+     */
+    public void abandon() {
+        if (copy != null) {
+            FileUtils.closeIgnoringError(copy);
+            copy = null;
+            deletePart();
+        }
+    }
+
+    /**
+     * Abandons an uncommitted copy; the main stream is left open.
+     */
+    @Override
+    public void close() {
+        abandon();
+    }
+
+    private void deletePart() {
+        if (part.exists() && !part.delete()) {
+            LOGGER.warning("could not delete file: " + part.getAbsolutePath());
+        }
+    }
+
+}
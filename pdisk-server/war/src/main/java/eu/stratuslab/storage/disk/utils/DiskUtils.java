@@ -1,9 +1,11 @@
 package eu.stratuslab.storage.disk.utils;
 
 import eu.stratuslab.marketplace.metadata.MetadataUtils;
-import eu.stratuslab.storage.disk.backend.BackEndStorage;
+import eu.stratuslab.storage.disk.backend.StorageBackend;
+import eu.stratuslab.storage.disk.backend.StorageBackendFactory;
 import eu.stratuslab.storage.disk.main.RootApplication;
 import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+import eu.stratuslab.storage.disk.utils.CommandExecutor.CommandClass;
 import eu.stratuslab.storage.persistence.Disk;
 import eu.stratuslab.storage.persistence.Disk.DiskType;
 import org.restlet.data.Status;
@@ -12,17 +14,23 @@ import org.restlet.resource.ResourceException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 
 public final class DiskUtils {
 
@@ -33,24 +41,31 @@ public final class DiskUtils {
     public static final long BYTES_IN_GiB = 1024L * 1024L * 1024L;
     public static final double BYTES_IN_GiB_DOUBLE = (double) BYTES_IN_GiB;
 
+    public static final int INFLATER_BUFFER_SIZE = 64 * 1024;
+
+    private static final String HOTPLUG_CLIENT = "/usr/sbin/stratus-pdisk-client.py";
+
+    // Printed by the remote shell before the command itself
+    private static final String REMOTE_START_MARKER = "pdisk-command-started";
+
     private DiskUtils() {
 
     }
 
-    private static BackEndStorage getDiskStorage() {
+    private static StorageBackend getDiskStorage() {
 
-        return new BackEndStorage();
+        return StorageBackendFactory.getBackend();
 
     }
 
     public static String getTurl(String diskUuid) {
-        BackEndStorage backend = getDiskStorage();
+        StorageBackend backend = getDiskStorage();
         return backend.getTurl(diskUuid);
     }
 
     public static void createDisk(Disk disk) {
 
-        BackEndStorage diskStorage = getDiskStorage();
+        StorageBackend diskStorage = getDiskStorage();
 
         diskStorage.create(disk.getUuid(), disk.getSize());
         diskStorage.map(disk.getUuid());
@@ -61,16 +76,21 @@ public final class DiskUtils {
 
     public static Disk createMachineImageCoWDisk(Disk disk) {
 
-        BackEndStorage diskStorage = getDiskStorage();
+        StorageBackend diskStorage = getDiskStorage();
 
         Disk cowDisk = createCowDisk(disk);
 
-        diskStorage.createCopyOnWrite(disk.getUuid(), cowDisk.getUuid(), disk.getSize());
+        LockManager.Locks locks = LockManager.lockDisks(disk.getUuid());
+        try {
+            diskStorage.createCopyOnWrite(disk.getUuid(), cowDisk.getUuid(), disk.getSize());
 
-        cowDisk.setType(DiskType.MACHINE_IMAGE_LIVE);
-        diskStorage.map(cowDisk.getUuid());
+            cowDisk.setType(DiskType.MACHINE_IMAGE_LIVE);
+            diskStorage.map(cowDisk.getUuid());
 
-        cowDisk.store();
+            cowDisk.store();
+        } finally {
+            locks.release();
+        }
 
         return cowDisk;
     }
@@ -86,14 +106,24 @@ public final class DiskUtils {
 
     public static String rebaseDisk(Disk disk) {
 
-        BackEndStorage diskStorage = getDiskStorage();
+        StorageBackend diskStorage = getDiskStorage();
 
-        return diskStorage.rebase(disk);
+        LockManager.Locks locks = LockManager.lockDisks(disk.getUuid());
+        try {
+            return diskStorage.rebase(disk);
+        } finally {
+            locks.release();
+        }
     }
 
     public static void removeDisk(String uuid) {
-        getDiskStorage().unmap(uuid);
-        getDiskStorage().delete(uuid);
+        LockManager.Locks locks = LockManager.lockDisks(uuid);
+        try {
+            getDiskStorage().unmap(uuid);
+            getDiskStorage().delete(uuid);
+        } finally {
+            locks.release();
+        }
     }
 
     public static String getDiskUri(String endpoint, String uuid) {
@@ -111,86 +141,173 @@ public final class DiskUtils {
         }
     }
 
-    public static void attachHotplugDisk(String serviceEndpoint, String node, String vmId, String diskUuid,
-                                         String target, String turl) {
+    public static void attachHotplugDisk(String serviceEndpoint, String node, String owner, String vmId,
+                                         String diskUuid, String target, String turl) {
 
         // Do NOT use the --register flag here. This may cause an infinite loop
         // in the process because it calls the pdisk service again.
 
-        List<String> cmd = createHotPlugCommand(node);
-        cmd.add("--op up");
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(HOTPLUG_CLIENT);
+        cmd.addAll(createHotPlugArguments("up", serviceEndpoint, vmId, diskUuid, target, turl));
 
-        cmd.add("--attach");
-        cmd.add("--mark");
-        cmd.add("--link");
-        cmd.add("--mount");
+        LockManager.Locks locks = LockManager.lockDiskAndInstance(diskUuid, vmId);
+        try {
+            executeOnNode(node, owner, cmd, "Unable to attach persistent disk");
+        } finally {
+            locks.release();
+        }
+    }
 
-        cmd.add("--pdisk-id");
-        cmd.add(getDiskUri(serviceEndpoint, diskUuid));
+    public static void detachHotplugDisk(String serviceEndpoint, String node, String owner, String vmId,
+                                         String diskUuid, String target, String turl) {
 
-        cmd.add("--target");
-        cmd.add(target);
+        // Do NOT use the --register flag here. This may cause an infinite loop
+        // in the process because it calls the pdisk service again.
 
-        cmd.add("--vm-id");
-        cmd.add(vmId);
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(HOTPLUG_CLIENT);
+        cmd.addAll(createHotPlugArguments("down", serviceEndpoint, vmId, diskUuid, target, turl));
 
-        cmd.add("--turl");
-        cmd.add(turl);
+        LockManager.Locks locks = LockManager.lockDiskAndInstance(diskUuid, vmId);
+        try {
+            executeOnNode(node, owner, cmd, "Unable to detach persistent disk");
+        } finally {
+            locks.release();
+        }
+    }
 
-        cmd.add("--vm-disk-name");
-        cmd.add(diskUuid);
+    /**
+     * Attaches several disks to a VM with a single connection to the node.
+     * The disks are attached in order and the first failure stops the
+     * remaining ones; the caller is expected to detach the batch again.
+     * The targets and TURLs are indexed by disk UUID; the owner is the
+     * tenant the node's hotplug queue serves the command for.
+     */
+    public static void attachHotplugDisks(String serviceEndpoint, String node, String owner, String vmId,
+                                          Map<String, String> targets, Map<String, String> turls) {
 
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        ProcessUtils.execute(pb, "Unable to attach persistent disk");
+        List<String> cmd = createBatchHotPlugCommand("up", "&&", serviceEndpoint, vmId, targets, turls);
+
+        LockManager.Locks locks = LockManager.lockInstanceAndDisks(vmId, targets.keySet());
+        try {
+            executeOnNode(node, owner, cmd, "Unable to attach persistent disks");
+        } finally {
+            locks.release();
+        }
     }
 
-    public static void detachHotplugDisk(String serviceEndpoint, String node, String vmId, String diskUuid,
-                                         String target, String turl) {
+    /**
+     * Detaches several disks from a VM with a single connection to the node.
+     * All the disks are detached even if some of them fail.
+     */
+    public static void detachHotplugDisks(String serviceEndpoint, String node, String owner, String vmId,
+                                          Map<String, String> targets, Map<String, String> turls) {
 
-        // Do NOT use the --register flag here. This may cause an infinite loop
-        // in the process because it calls the pdisk service again.
+        List<String> cmd = createBatchHotPlugCommand("down", ";", serviceEndpoint, vmId, targets, turls);
 
-        List<String> cmd = createHotPlugCommand(node);
-        cmd.add("--op down");
+        LockManager.Locks locks = LockManager.lockInstanceAndDisks(vmId, targets.keySet());
+        try {
+            executeOnNode(node, owner, cmd, "Unable to detach persistent disks");
+        } finally {
+            locks.release();
+        }
+    }
 
-        cmd.add("--attach");
-        cmd.add("--mark");
-        cmd.add("--link");
-        cmd.add("--mount");
+    /**
+     * Resolves the TURLs of the disks up front, before any node is
+     * contacted. The result is indexed by disk UUID.
+     */
+    public static Map<String, String> getTurls(Collection<String> diskUuids) {
+        StorageBackend backend = getDiskStorage();
+        Map<String, String> turls = new LinkedHashMap<String, String>();
+        for (String uuid : diskUuids) {
+            turls.put(uuid, backend.getTurl(uuid));
+        }
+        return turls;
+    }
 
-        cmd.add("--pdisk-id");
-        cmd.add(getDiskUri(serviceEndpoint, diskUuid));
+    // Runs the command on the node over its shared connection, once the
+    // dispatcher admits it for the owner, unless the node's circuit is open.
+    // The remote shell prints a marker first: ssh also exits with 255 when
+    // the connection drops during the command, and only a failure without
+    // the marker shows that nothing ran and the command may be retried.
+    private static void executeOnNode(final String node, final String owner, final List<String> remoteCommand,
+                                      final String errorMsg) {
+        CircuitBreaker.get("node:" + node).call(new Callable<String>() {
+            public String call() {
+                HotplugDispatcher.Ticket ticket = HotplugDispatcher.getInstance().acquire(node, owner);
+                try {
+                    NodeConnectionManager.Session session = NodeConnectionManager.getInstance().open(node);
+                    try {
+                        List<String> cmd = session.createCommand();
+                        cmd.add("echo");
+                        cmd.add(REMOTE_START_MARKER);
+                        cmd.add(";");
+                        cmd.addAll(remoteCommand);
+                        try {
+                            return ProcessUtils.executeWithOutput(CommandClass.HOTPLUG, new ProcessBuilder(cmd),
+                                    errorMsg);
+                        } catch (CommandException e) {
+                            if (!e.isTimedOut() && e.getExitCode() == CircuitBreaker.SSH_CONNECTION_FAILED
+                                    && !e.getOutput().contains(REMOTE_START_MARKER)) {
+                                throw new CommandNotStartedException(e);
+                            }
+                            throw e;
+                        }
+                    } finally {
+                        session.close();
+                    }
+                } finally {
+                    ticket.release();
+                }
+            }
+        });
+    }
 
-        cmd.add("--target");
-        cmd.add(target);
+    // Runs the client once per disk in a single remote shell, the calls being
+    // chained with the given shell operator.
+    protected static List<String> createBatchHotPlugCommand(String op, String separator, String serviceEndpoint,
+                                                            String vmId, Map<String, String> targets,
+                                                            Map<String, String> turls) {
+        List<String> cmd = new ArrayList<String>();
+        for (Map.Entry<String, String> target : targets.entrySet()) {
+            if (!cmd.isEmpty()) {
+                cmd.add(separator);
+            }
 
-        cmd.add("--vm-id");
-        cmd.add(vmId);
+            String uuid = target.getKey();
+            cmd.add(HOTPLUG_CLIENT);
+            cmd.addAll(createHotPlugArguments(op, serviceEndpoint, vmId, uuid, target.getValue(), turls.get(uuid)));
+        }
+        return cmd;
+    }
 
-        cmd.add("--turl");
-        cmd.add(turl);
+    private static List<String> createHotPlugArguments(String op, String serviceEndpoint, String vmId,
+                                                       String diskUuid, String target, String turl) {
+        List<String> args = new ArrayList<String>();
+        args.add("--op " + op);
 
-        cmd.add("--vm-disk-name");
-        cmd.add(diskUuid);
+        args.add("--attach");
+        args.add("--mark");
+        args.add("--link");
+        args.add("--mount");
 
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        ProcessUtils.execute(pb, "Unable to detach persistent disk");
-    }
+        args.add("--pdisk-id");
+        args.add(getDiskUri(serviceEndpoint, diskUuid));
 
-    protected static List<String> createHotPlugCommand(String node) {
-        List<String> cmd = new ArrayList<String>();
-        cmd.add("ssh");
-        cmd.add("-p");
-        cmd.add("22");
-        cmd.add("-o");
-        cmd.add("ConnectTimeout=5");
-        cmd.add("-o");
-        cmd.add("StrictHostKeyChecking=no");
-        cmd.add("-i");
-        cmd.add(RootApplication.CONFIGURATION.CLOUD_NODE_SSH_KEY);
-        cmd.add(RootApplication.CONFIGURATION.CLOUD_NODE_ADMIN + "@" + node);
-        cmd.add("/usr/sbin/stratus-pdisk-client.py");
-        return cmd;
+        args.add("--target");
+        args.add(target);
+
+        args.add("--vm-id");
+        args.add(vmId);
+
+        args.add("--turl");
+        args.add(turl);
+
+        args.add("--vm-disk-name");
+        args.add(diskUuid);
+        return args;
     }
 
     public static String generateUUID() {
@@ -270,21 +387,188 @@ public final class DiskUtils {
         }
     }
 
+    /**
+     * Initializes the volume with the image at the URL, taking it from the
+     * image cache when an image with the given SHA-1 digest or, without
+     * one, with the given Marketplace identifier is there (both may be
+     * null).
+     *
+     * Otherwise the image is downloaded straight into the volume, in ranges
+     * when the server allows it, and then copied from the volume into the
+     * cache. Filling the cache costs a local read and write of the image
+     * after the download; the volume itself is only written once.
+     */
+    public static Map<String, BigInteger> copyUrlToVolume(String uuid, String url, BigInteger sha1,
+            String identifier) throws IOException {
+
+        ImageCache cache = ImageCache.getInstance();
+        if (!cache.isEnabled()) {
+            return copyUrlToVolume(uuid, url);
+        }
+
+        InputStream image = cache.open(sha1, identifier);
+        if (image != null) {
+            LOGGER.info("initializing " + uuid + " from the image cache instead of " + url);
+            try {
+                return copyToVolume(uuid, image, 0L);
+            } finally {
+                FileUtils.closeIgnoringError(image);
+            }
+        }
+
+        File diskLocation = new File(attachDiskToThisHost(uuid));
+        try {
+            Map<String, BigInteger> streamInfo = DownloadUtils.copyUrlContentsToFile(url, diskLocation);
+            addToImageCache(cache, diskLocation, streamInfo);
+            return streamInfo;
+        } finally {
+            detachDiskFromThisHost(uuid);
+            getDiskStorage().unmap(uuid);
+        }
+    }
+
+    // A failure to keep the image only costs a later download: it is logged
+    // and the initialization goes on.
+    private static void addToImageCache(ImageCache cache, File volume, Map<String, BigInteger> streamInfo) {
+
+        BigInteger bytes = streamInfo.get("BYTES");
+        BigInteger sha1 = streamInfo.get("SHA-1");
+        if (bytes == null || sha1 == null || !cache.accepts(bytes.longValue())) {
+            return;
+        }
+
+        File part = cache.createPartFile();
+        try {
+            copyHead(volume, part, bytes.longValue());
+            FileUtils.closeIgnoringError(cache.add(part, sha1));
+        } catch (IOException e) {
+            LOGGER.warning("could not add image to the image cache: " + e.getMessage());
+        } finally {
+            if (part.exists() && !part.delete()) {
+                LOGGER.warning("could not delete file: " + part.getAbsolutePath());
+            }
+        }
+    }
+
+    private static void copyHead(File src, File dst, long bytes) throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(dst);
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            for (long position = 0L; position < bytes;) {
+                long count = source.transferTo(position, bytes - position, target);
+                if (count <= 0) {
+                    throw new IOException("volume shorter than the image: " + src.getAbsolutePath());
+                }
+                position += count;
+            }
+        } finally {
+            FileUtils.closeIgnoringError(in);
+            FileUtils.closeIgnoringError(out);
+        }
+    }
+
+    /**
+     * Inflates a gzipped image directly into an existing volume, computing
+     * its size and SHA-1 digest in the same pass. The copy fails as soon as
+     * the image becomes larger than maxBytes.
+     */
+    public static Map<String, BigInteger> inflateToVolume(String uuid, InputStream gzipped, long maxBytes)
+            throws IOException {
+        return copyToVolume(uuid, new GZIPInputStream(gzipped, INFLATER_BUFFER_SIZE), maxBytes);
+    }
+
+    private static Map<String, BigInteger> copyToVolume(String uuid, InputStream in, long maxBytes)
+            throws IOException {
+
+        String diskLocation = attachDiskToThisHost(uuid);
+        try {
+            return SparseCopier.getInstance().copyWithDigest(in, new File(diskLocation), maxBytes);
+        } finally {
+            detachDiskFromThisHost(uuid);
+            getDiskStorage().unmap(uuid);
+        }
+    }
+
     public static long convertBytesToGibiBytes(long sizeInBytes) {
         long inGiB = (long) Math.ceil(sizeInBytes / BYTES_IN_GiB_DOUBLE);
         return (inGiB <= 0 ? 1L : inGiB);
     }
 
+    /**
+     * Compresses the disk into the export cache. The file is written under a
+     * temporary name and renamed once complete, so that downloads of a
+     * previous export are not disturbed.
+     */
     public static void createCompressedDisk(String uuid) {
 
+        File compressed = new File(getCompressedDiskLocation(uuid));
+        File part = new File(compressed.getPath() + ".part");
+
+        String diskLocation = attachDiskToThisHost(uuid);
+        try {
+            ParallelGzipCompressor compressor = ParallelGzipCompressor.getInstance();
+            if (compressor != null) {
+                compressDisk(compressor, uuid, diskLocation, part);
+            } else {
+                ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c",
+                        RootApplication.CONFIGURATION.GZIP_CMD + " -f -c " + diskLocation + " > " + part.getPath());
+                ProcessUtils.execute(CommandClass.COMPRESS, pb, "Unable to compress disk " + uuid);
+            }
+            if (!part.renameTo(compressed)) {
+                throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Unable to compress disk " + uuid);
+            }
+        } finally {
+            if (part.exists() && !part.delete()) {
+                LOGGER.warning("could not delete file: " + part.getPath());
+            }
+            detachDiskFromThisHost(uuid);
+        }
+    }
+
+    /**
+     * Compresses the disk into the stream while it is read, so the first
+     * bytes are sent right away. The stream is not closed. Requires the
+     * in-process compressor.
+     */
+    public static void streamCompressedDisk(String uuid, OutputStream out) throws IOException {
+
+        ParallelGzipCompressor compressor = ParallelGzipCompressor.getInstance();
+        if (compressor == null) {
+            throw new IllegalStateException("streaming needs disk.store.compress.threads > 0");
+        }
+
         String diskLocation = attachDiskToThisHost(uuid);
+        InputStream in = null;
+        try {
+            in = new FileInputStream(diskLocation);
+            compressor.compress(in, out);
+        } finally {
+            FileUtils.closeIgnoringError(in);
+            detachDiskFromThisHost(uuid);
+        }
+    }
 
-        ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c",
-                RootApplication.CONFIGURATION.GZIP_CMD + " -f -c " + diskLocation + " > " + getCompressedDiskLocation(
-                        uuid));
-        ProcessUtils.execute(pb, "Unable to compress disk " + uuid);
+    private static void compressDisk(ParallelGzipCompressor compressor, String uuid, String diskLocation,
+            File compressed) {
 
-        detachDiskFromThisHost(uuid);
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(diskLocation);
+            out = new FileOutputStream(compressed);
+            compressor.compress(in, out);
+            out.close();
+        } catch (IOException e) {
+            LOGGER.severe("unable to compress disk " + uuid + ": " + e.getMessage());
+            // the caller deletes the partial file
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Unable to compress disk " + uuid);
+        } finally {
+            FileUtils.closeIgnoringError(in);
+            FileUtils.closeIgnoringError(out);
+        }
     }
 
     private static String attachDiskToThisHost(String uuid) {
@@ -298,7 +582,7 @@ public final class DiskUtils {
         List<String> cmd = getCommandAttachAndLinkLocal(uuid, "https://localhost:" + port + "/pdisk", linkName, turl);
 
         ProcessBuilder pb = new ProcessBuilder(cmd);
-        ProcessUtils.execute(pb, "Unable to attach persistent disk");
+        ProcessUtils.execute(CommandClass.HOTPLUG, pb, "Unable to attach persistent disk");
 
         return linkName;
     }
@@ -308,13 +592,13 @@ public final class DiskUtils {
 
         int port = ServiceConfiguration.getInstance().PDISK_SERVER_PORT;
 
-        BackEndStorage backend = getDiskStorage();
+        StorageBackend backend = getDiskStorage();
         String turl = backend.getTurl(uuid);
 
         List<String> cmd = getCommandDetachLocal(uuid, "https://localhost:" + port + "/pdisk", turl);
 
         ProcessBuilder pb = new ProcessBuilder(cmd);
-        ProcessUtils.execute(pb, "Unable to detach persistent disk");
+        ProcessUtils.execute(CommandClass.HOTPLUG, pb, "Unable to detach persistent disk");
     }
 
     private static void unlinkVolumeFromDownloadCache(String uuid) {
@@ -372,7 +656,7 @@ public final class DiskUtils {
     }
 
     public static String getCompressedDiskLocation(String uuid) {
-        return RootApplication.CONFIGURATION.CACHE_LOCATION + "/" + uuid + ".gz";
+        return FileUtils.getCompressedDiskLocation(uuid);
     }
 
     public static Boolean isCompressedDiskBuilding(String uuid) {
@@ -385,8 +669,8 @@ public final class DiskUtils {
     }
 
     public static Boolean hasCompressedDiskExpire(File disk) {
-        Calendar cal = Calendar.getInstance();
-        return (cal.getTimeInMillis() > (disk.lastModified() + ServiceConfiguration.CACHE_EXPIRATION_DURATION));
+        long ttl = ServiceConfiguration.getInstance().EXPORT_CACHE_TTL * 1000L;
+        return (System.currentTimeMillis() > (disk.lastModified() + ttl));
     }
 
 }
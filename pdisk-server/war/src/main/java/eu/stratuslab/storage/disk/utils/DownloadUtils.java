@@ -9,8 +9,12 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.SSLContext;
@@ -28,68 +32,114 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.BasicClientConnectionManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.HttpContext;
 
 import eu.stratuslab.marketplace.metadata.MetadataUtils;
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
 
 public class DownloadUtils {
 	
+	private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
 	private static final String ENV_PROXY = "http_proxy";
+	private static final String ENV_NO_PROXY = "no_proxy";
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 64;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 16;
+
+    // In seconds
+    private static final long IDLE_CONNECTION_TIMEOUT = 60;
+    private static final int TLS_SESSION_TIMEOUT = 3600;
+
+    // The proxy settings are read from the environment once.
+    private static final HttpHost PROXY = getHttpProxyFromEnv();
+    private static final List<String> NO_PROXY = getNoProxyFromEnv();
+
+    private static final PoolingClientConnectionManager CONNECTIONS = createConnectionManager();
+
+    static {
+        Statistics.register("http_connections", new Statistics.Source() {
+            public Map<String, Object> getStatistics() {
+                return getConnectionPoolStatistics();
+            }
+        });
+    }
 	
     public static Map<String, BigInteger> copyUrlContentsToFile(String url, File file)
             throws IOException {
 
+        // FIXME: Compressed images could be downloaded in ranges too, but
+        // would then have to be inflated in a second pass.
+        if (!url.endsWith(".gz")) {
+            RangedDownloader downloader = createRangedDownloader();
+            RangedDownloader.Probe probe = downloader.probe(url);
+            if (probe != null) {
+                try {
+                    return downloader.download(url, file, probe);
+                } catch (RangedDownloader.RangesUnsupportedException e) {
+                    LOGGER.warning(e.getMessage() + "; downloading it again as a single stream");
+                }
+            }
+        }
+
         Map<String, BigInteger> streamInfo = new HashMap<String, BigInteger>();
 
         DefaultHttpClient client = getHttpClientWithProxy(url);
 
-        try {
+        HttpGet get = new HttpGet(url);
 
-            HttpGet get = new HttpGet(url);
+        HttpResponse response = client.execute(get);
 
-            HttpResponse response = client.execute(get);
+        HttpEntity entity = response.getEntity();
 
-            HttpEntity entity = response.getEntity();
+        if (entity != null) {
 
-            if (entity != null) {
+            InputStream is = null;
+            FileOutputStream os = null;
+            boolean completed = false;
 
-                InputStream is = null;
-                FileOutputStream os = null;
+            try {
+                is = entity.getContent();
 
-                try {
-                    is = entity.getContent();
-
-                    // FIXME: This information should be passed as a parameter.
-                    // FIXME: This should also support BZ2 compression.
-                    if (url.endsWith(".gz")) {
-                        is = new GZIPInputStream(is);
-                    }
+                // FIXME: This information should be passed as a parameter.
+                // FIXME: This should also support BZ2 compression.
+                if (url.endsWith(".gz")) {
+                    is = new GZIPInputStream(is);
+                }
 
-                    os = new FileOutputStream(file);
-                    streamInfo = MetadataUtils.copyWithStreamInfo(is, os);
+                os = new FileOutputStream(file);
+                streamInfo = MetadataUtils.copyWithStreamInfo(is, os);
+                completed = true;
 
-                } finally {
-                    FileUtils.closeIgnoringError(is);
-                    FileUtils.closeIgnoringError(os);
+            } finally {
+                // Drop the connection of an unfinished download rather than
+                // reading the rest of the image to return it to the pool.
+                if (!completed) {
+                    get.abort();
                 }
-
+                FileUtils.closeIgnoringError(is);
+                FileUtils.closeIgnoringError(os);
             }
 
-        } finally {
-            client.getConnectionManager().shutdown();
         }
 
         return streamInfo;
     }
 
+    private static RangedDownloader createRangedDownloader() {
+        ServiceConfiguration configuration = ServiceConfiguration.getInstance();
+        return new RangedDownloader(configuration.DOWNLOAD_CONNECTIONS,
+                configuration.DOWNLOAD_SEGMENT_SIZE * 1024L * 1024L, configuration.DOWNLOAD_RETRIES);
+    }
+
 	private static class GzipRequestInterceptor implements
             HttpRequestInterceptor {
 
@@ -126,17 +176,34 @@ public class DownloadUtils {
 
     }
 
+    /**
+     * Returns a client for the URL, going through the proxy given by the
+     * environment unless no_proxy excludes the host. All the clients share
+     * one connection pool, so they are cheap to create and must not be shut
+     * down; connections are kept alive between downloads from the same host.
+     */
     public static DefaultHttpClient getHttpClientWithProxy(String url) {
-		DefaultHttpClient client = getHttpClient();
-	    try {
-			setProxy(client, url);
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
-		}
-		return client;
-	}
+        CONNECTIONS.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
+
+        DefaultHttpClient client = new DefaultHttpClient(CONNECTIONS);
+        try {
+            setProxy(client, url);
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+        }
+        return client;
+    }
+
+    public static void configureConnectionPool(int maxConnections, int maxConnectionsPerRoute) {
+        CONNECTIONS.setMaxTotal(maxConnections);
+        CONNECTIONS.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+    }
+
+    public static void shutdownConnectionPool() {
+        CONNECTIONS.shutdown();
+    }
 
-	private static DefaultHttpClient getHttpClient() {
+    private static PoolingClientConnectionManager createConnectionManager() {
 
         try {
 
@@ -158,6 +225,9 @@ public class DownloadUtils {
 
             } }, new SecureRandom());
 
+            // Sessions are resumed on new connections to the same server.
+            sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT);
+
             SSLSocketFactory sf = new SSLSocketFactory(sslContext,
                     SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
 
@@ -167,15 +237,12 @@ public class DownloadUtils {
             schemeRegistry.register(httpsScheme);
             schemeRegistry.register(httpScheme);
 
-            ClientConnectionManager cm = new BasicClientConnectionManager(
+            PoolingClientConnectionManager cm = new PoolingClientConnectionManager(
                     schemeRegistry);
+            cm.setMaxTotal(DEFAULT_MAX_CONNECTIONS);
+            cm.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
 
-            DefaultHttpClient client = new DefaultHttpClient(cm);
-            
-            // client.addRequestInterceptor(new GzipRequestInterceptor());
-            // client.addResponseInterceptor(new GzipResponseInterceptor());
-
-            return client;
+            return cm;
 
         } catch (Exception e) {
             // FIXME: This should probably do something more intelligent!
@@ -183,36 +250,62 @@ public class DownloadUtils {
         }
     }
 
+    private static Map<String, Object> getConnectionPoolStatistics() {
+        PoolStats pool = CONNECTIONS.getTotalStats();
+
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("leased", pool.getLeased());
+        stats.put("available", pool.getAvailable());
+        stats.put("pending", pool.getPending());
+        stats.put("max", pool.getMax());
+        stats.put("max_per_route", CONNECTIONS.getDefaultMaxPerRoute());
+        return stats;
+    }
+
 	private static void setProxy(DefaultHttpClient client, String url)
 			throws MalformedURLException {
-		if (noProxy(url))
+		if (PROXY == null || noProxy(url))
 			return;
 
-		HttpHost proxy = getHttpProxyFromEnv();
-		if (proxy != null)
-			client.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,
-					proxy);
+		client.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, PROXY);
 	}
 
 	private static boolean noProxy(String destination)
 			throws MalformedURLException {
-		URL url = new URL(destination);
-		if (System.getenv("no_proxy") != null) {
-			return System.getenv("no_proxy").contains(url.getHost());
-		} else {
-			return false;
+		String host = new URL(destination).getHost();
+		for (String domain : NO_PROXY) {
+			if (host.equals(domain) || host.endsWith(domain.startsWith(".") ? domain : "." + domain)) {
+				return true;
+			}
 		}
+		return false;
 	}
 
-	private static HttpHost getHttpProxyFromEnv() throws MalformedURLException {
+	private static HttpHost getHttpProxyFromEnv() {
 		if (isEnvProxySet()) {
-			URL url = new URL(getEnvProxy());
-			return new HttpHost(url.getHost(), url.getPort(), "http");
-		} else {
-			return null;
+			try {
+				URL url = new URL(getEnvProxy());
+				return new HttpHost(url.getHost(), url.getPort(), "http");
+			} catch (MalformedURLException e) {
+				LOGGER.warning("ignoring invalid " + ENV_PROXY + ": " + getEnvProxy());
+			}
 		}
+		return null;
 	}
-	
+
+	private static List<String> getNoProxyFromEnv() {
+		List<String> domains = new ArrayList<String>();
+		String noProxy = System.getenv(ENV_NO_PROXY);
+		if (noProxy != null) {
+			for (String domain : noProxy.split(",")) {
+				if (domain.trim().length() > 0) {
+					domains.add(domain.trim());
+				}
+			}
+		}
+		return domains;
+	}
+
 	public static boolean isEnvProxySet() {
 		return isEnvVarInitialised(DownloadUtils.ENV_PROXY);
 	}
@@ -0,0 +1,298 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Index of the compressed disks kept for download. Exports expire after a
+ * time to live and the least recently used ones are removed when the cache
+ * grows beyond its size limit. Exports being downloaded are pinned and are
+ * never removed; a pinned export over the limit goes once released.
+ *
+ * Expired exports are removed by a background thread, so requests never scan
+ * the cache directory.
+ */
+public final class ExportCache implements Statistics.Source {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    public static final String SUFFIX = ".gz";
+
+    private static final String PART_SUFFIX = ".part";
+
+    private static final long MAX_EVICTION_PERIOD = 60000L;
+
+    private static ExportCache instance = null;
+
+    private final File directory;
+    private final long maxBytes;
+    private final long ttl;
+
+    // Exports by disk UUID in least recently used order
+    private final LinkedHashMap<String, Export> exports = new LinkedHashMap<String, Export>(16, 0.75f, true);
+    private long totalBytes = 0L;
+
+    private long hits = 0L;
+    private long misses = 0L;
+    private long evictions = 0L;
+    private long expirations = 0L;
+
+    private ScheduledExecutorService evictor = null;
+
+    /**
+     * Creates a cache of at most maxBytes whose exports expire after ttl
+     * milliseconds.
+     */
+    public ExportCache(File directory, long maxBytes, long ttl) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("unable to create export cache " + directory.getAbsolutePath());
+        }
+        loadExports();
+    }
+
+    public static synchronized ExportCache getInstance() {
+        if (instance == null) {
+            ServiceConfiguration configuration = ServiceConfiguration.getInstance();
+            instance = new ExportCache(FileUtils.getExportCacheDirectory(),
+                    configuration.EXPORT_CACHE_SIZE * DiskUtils.BYTES_IN_GiB,
+                    configuration.EXPORT_CACHE_TTL * 1000L);
+            instance.startEviction();
+            Statistics.register("export_cache", instance);
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            Statistics.unregister("export_cache");
+            instance.stopEviction();
+            instance = null;
+        }
+    }
+
+    /**
+     * Pins the export of the disk if it is in the cache and has not expired.
+     * Returns null otherwise.
+     */
+    public synchronized Pin pin(String uuid) {
+        Export export = exports.get(uuid);
+        if (export != null && !isExpired(export, System.currentTimeMillis()) && getFile(uuid).canRead()) {
+            hits++;
+            return new Pin(uuid, export);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Adds the export just written for the disk, replacing any previous one,
+     * and returns it pinned.
+     */
+    public synchronized Pin add(String uuid) {
+        remove(uuid, false);
+
+        Export export = new Export(getFile(uuid).length(), System.currentTimeMillis());
+        exports.put(uuid, export);
+        totalBytes += export.size;
+
+        Pin pin = new Pin(uuid, export);
+        evict();
+        return pin;
+    }
+
+    /**
+     * Forgets and deletes the export of the disk. Downloads in progress are
+     * not disturbed as they have already opened the file.
+     */
+    public synchronized void remove(String uuid) {
+        remove(uuid, true);
+    }
+
+    /**
+     * Removes the expired exports and those over the size limit.
+     */
+    public synchronized void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Export>> lru = exports.entrySet().iterator();
+        while (lru.hasNext()) {
+            Map.Entry<String, Export> entry = lru.next();
+            Export export = entry.getValue();
+            if (export.pins > 0) {
+                continue;
+            }
+            if (isExpired(export, now)) {
+                expirations++;
+            } else if (totalBytes > maxBytes) {
+                evictions++;
+            } else {
+                continue;
+            }
+            lru.remove();
+            totalBytes -= export.size;
+            deleteFile(getFile(entry.getKey()));
+        }
+    }
+
+    public File getFile(String uuid) {
+        return new File(directory, uuid + SUFFIX);
+    }
+
+    public synchronized Map<String, Object> getStatistics() {
+        int pinned = 0;
+        for (Export export : exports.values()) {
+            if (export.pins > 0) {
+                pinned++;
+            }
+        }
+
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("exports", exports.size());
+        stats.put("pinned", pinned);
+        stats.put("bytes", totalBytes);
+        stats.put("max_bytes", maxBytes);
+        stats.put("occupancy", Statistics.ratio(totalBytes, maxBytes));
+        stats.put("ttl_ms", ttl);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hit_ratio", Statistics.ratio(hits, hits + misses));
+        stats.put("evictions", evictions);
+        stats.put("expirations", expirations);
+        return stats;
+    }
+
+    private boolean isExpired(Export export, long now) {
+        return now - export.created > ttl;
+    }
+
+    private void remove(String uuid, boolean delete) {
+        Export export = exports.remove(uuid);
+        if (export != null) {
+            totalBytes -= export.size;
+            // a later release must not count the file of the new export
+            export.removed = true;
+        }
+        if (delete) {
+            deleteFile(getFile(uuid));
+        }
+    }
+
+    private synchronized void release(Export export) {
+        export.pins--;
+        if (export.pins == 0 && !export.removed) {
+            evict();
+        }
+    }
+
+    private void startEviction() {
+        long period = Math.max(1000L, Math.min(ttl, MAX_EVICTION_PERIOD));
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "export-cache-eviction");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evict();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopEviction() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+    }
+
+    // Picks up the exports kept by a previous run, the oldest first, and
+    // removes the ones it left unfinished.
+    private void loadExports() {
+        File[] files = directory.listFiles();
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return (m1 < m2) ? -1 : ((m1 == m2) ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(PART_SUFFIX)) {
+                deleteFile(file);
+            } else if (name.endsWith(SUFFIX) && file.isFile()) {
+                String uuid = name.substring(0, name.length() - SUFFIX.length());
+                exports.put(uuid, new Export(file.length(), file.lastModified()));
+                totalBytes += file.length();
+            }
+        }
+        evict();
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warning("could not delete file: " + file.getAbsolutePath());
+        }
+    }
+
+    private static final class Export {
+
+        final long size;
+        final long created;
+
+        int pins = 0;
+        boolean removed = false;
+
+        Export(long size, long created) {
+            this.size = size;
+            this.created = created;
+        }
+    }
+
+    /**
+     * An export that stays in the cache until released.
+     */
+    public final class Pin {
+
+        private final String uuid;
+        private final Export export;
+        private boolean released = false;
+
+        private Pin(String uuid, Export export) {
+            this.uuid = uuid;
+            this.export = export;
+            export.pins++;
+        }
+
+        public File getFile() {
+            return ExportCache.this.getFile(uuid);
+        }
+
+        public void release() {
+            synchronized (ExportCache.this) {
+                if (!released) {
+                    released = true;
+                    ExportCache.this.release(export);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,378 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+/**
+ * Single-flight coordination of disk exports. The first request for the
+ * compressed form of a disk does the work; requests for the same disk that
+ * arrive in the meantime share its result instead of compressing the disk
+ * again.
+ *
+ * Compressions into the cache are shared through a future. Streamed exports
+ * are shared through a file written along the first response: later requests
+ * send that file while it grows and are woken up whenever data is appended.
+ * If the first client goes away, the export goes on into the file as long
+ * as other requests follow it or the result is kept in the cache.
+ */
+public final class ExportRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final int FOLLOW_BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<String, FutureTask<ExportCache.Pin>> compressions =
+            new HashMap<String, FutureTask<ExportCache.Pin>>();
+
+    private static final Map<String, SharedStream> streams = new HashMap<String, SharedStream>();
+
+    private static final AtomicLong started = new AtomicLong();
+    private static final AtomicLong joined = new AtomicLong();
+
+    static {
+        Statistics.register("exports", new Statistics.Source() {
+            public Map<String, Object> getStatistics() {
+                Map<String, Object> stats = new HashMap<String, Object>();
+                synchronized (compressions) {
+                    stats.put("compressing", compressions.size());
+                }
+                synchronized (streams) {
+                    stats.put("streaming", streams.size());
+                }
+                stats.put("started", started.get());
+                stats.put("joined", joined.get());
+                return stats;
+            }
+        });
+    }
+
+    private ExportRegistry() {
+
+    }
+
+    /**
+     * Returns the compressed disk from the export cache, pinned, compressing
+     * it unless it is cached. If the disk is already being compressed, waits
+     * for that compression to finish.
+     */
+    public static ExportCache.Pin getCompressedDisk(final String uuid) {
+
+        final ExportCache cache = ExportCache.getInstance();
+
+        FutureTask<ExportCache.Pin> task;
+        boolean leader = false;
+
+        synchronized (compressions) {
+            task = compressions.get(uuid);
+            if (task == null) {
+                ExportCache.Pin cached = cache.pin(uuid);
+                if (cached != null) {
+                    return cached;
+                }
+                task = new FutureTask<ExportCache.Pin>(new Callable<ExportCache.Pin>() {
+                    public ExportCache.Pin call() {
+                        DiskUtils.createCompressedDisk(uuid);
+                        return cache.add(uuid);
+                    }
+                });
+                compressions.put(uuid, task);
+                leader = true;
+            }
+        }
+
+        if (leader) {
+            started.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                synchronized (compressions) {
+                    compressions.remove(uuid);
+                }
+            }
+            return await(task);
+        }
+
+        joined.incrementAndGet();
+        LOGGER.info("waiting for the compression of " + uuid + " in progress");
+        await(task);
+
+        // the export stays pinned by the first request while it is sent
+        ExportCache.Pin pin = cache.pin(uuid);
+        return (pin != null) ? pin : getCompressedDisk(uuid);
+    }
+
+    /**
+     * Compresses the disk into the stream. With keepCopy, the compressed
+     * disk is also stored in the cache once complete. If the disk is already
+     * being streamed to another client, the output of that export is sent
+     * instead.
+     */
+    public static void streamCompressedDisk(String uuid, OutputStream out, boolean keepCopy) throws IOException {
+
+        SharedStream shared;
+        InputStream follower = null;
+
+        synchronized (streams) {
+            shared = streams.get(uuid);
+            if (shared != null) {
+                follower = shared.open();
+            }
+            if (follower == null) {
+                File part = File.createTempFile(uuid, ".part", FileUtils.getExportCacheDirectory());
+                shared = new SharedStream(part);
+                streams.put(uuid, shared);
+            }
+        }
+
+        if (follower != null) {
+            joined.incrementAndGet();
+            LOGGER.info("joining the export of " + uuid + " in progress");
+            shared.follow(follower, out);
+            return;
+        }
+
+        started.incrementAndGet();
+        LeaderOutputStream leader = new LeaderOutputStream(out, shared, keepCopy);
+        CopyingOutputStream copy = new CopyingOutputStream(leader, shared.part);
+        boolean complete = false;
+        try {
+            DiskUtils.streamCompressedDisk(uuid, new SharingOutputStream(copy, shared));
+            complete = copy.isCopying();
+            if (keepCopy) {
+                ExportCache cache = ExportCache.getInstance();
+                if (copy.commit(cache.getFile(uuid))) {
+                    cache.add(uuid).release();
+                }
+            }
+        } finally {
+            synchronized (streams) {
+                streams.remove(uuid);
+            }
+            copy.close();
+            shared.finish(complete);
+        }
+
+        // The followers have been served: report the failure of this client.
+        leader.rethrowFailure();
+    }
+
+    private static ExportCache.Pin await(FutureTask<ExportCache.Pin> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, "interrupted while compressing disk");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, cause);
+        }
+    }
+
+    /**
+     * Output of an export in progress, as written to its part file. Readers
+     * wait for data to be appended or for the export to end.
+     */
+    static final class SharedStream {
+
+        final File part;
+
+        private long length = 0L;
+        private boolean finished = false;
+        private boolean failed = false;
+        private int followers = 0;
+
+        SharedStream(File part) {
+            this.part = part;
+        }
+
+        // Returns a stream on the output from its start, or null if it can
+        // no longer be followed.
+        synchronized InputStream open() {
+            if (failed) {
+                return null;
+            }
+            try {
+                // stays readable if the part is renamed or deleted later
+                InputStream in = new FileInputStream(part);
+                followers++;
+                return in;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        synchronized boolean hasFollowers() {
+            return followers > 0;
+        }
+
+        synchronized void appended(long bytes) {
+            length += bytes;
+            notifyAll();
+        }
+
+        synchronized void finish(boolean complete) {
+            finished = true;
+            failed = failed || !complete;
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        // Sends the output to the stream as it is produced. Closes 'in'.
+        void follow(InputStream in, OutputStream out) throws IOException {
+            byte[] buffer = new byte[FOLLOW_BUFFER_SIZE];
+            long position = 0L;
+            try {
+                long available;
+                while ((available = awaitData(position)) > position) {
+                    while (position < available) {
+                        int n = in.read(buffer, 0, (int) Math.min(buffer.length, available - position));
+                        if (n < 0) {
+                            throw new IOException("export truncated: " + part.getName());
+                        }
+                        out.write(buffer, 0, n);
+                        position += n;
+                    }
+                }
+            } finally {
+                FileUtils.closeIgnoringError(in);
+                synchronized (this) {
+                    followers--;
+                }
+            }
+        }
+
+        // Waits until more than 'position' bytes are available or the export
+        // has ended, and returns the number of bytes available.
+        private synchronized long awaitData(long position) throws IOException {
+            try {
+                while (length <= position && !finished && !failed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while following export");
+            }
+            if (failed) {
+                throw new IOException("export failed: " + part.getName());
+            }
+            return length;
+        }
+    }
+
+    // Response stream of the client that started an export. Once a write to
+    // it fails, the data is no longer sent to it but the export goes on for
+    // the followers, or for the cache with keepCopy; without either, the
+    // failure stops the export.
+    static final class LeaderOutputStream extends FilterOutputStream {
+
+        private final SharedStream shared;
+        private final boolean keepCopy;
+
+        private IOException failure = null;
+
+        LeaderOutputStream(OutputStream out, SharedStream shared, boolean keepCopy) {
+            super(out);
+            this.shared = shared;
+            this.keepCopy = keepCopy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (failure == null) {
+                try {
+                    out.write(b, off, len);
+                    return;
+                } catch (IOException e) {
+                    failure = e;
+                    LOGGER.info("client of export " + shared.part.getName() + " went away: " + e.getMessage());
+                }
+            }
+            if (!keepCopy && !shared.hasFollowers()) {
+                throw failure;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (failure == null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            // the response stream is closed by its owner
+        }
+
+        void rethrowFailure() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    // Reports the data written through a copying stream to the readers of
+    // the copy; they are told to give up if the copy is abandoned.
+    private static final class SharingOutputStream extends FilterOutputStream {
+
+        private final SharedStream shared;
+
+        SharingOutputStream(CopyingOutputStream out, SharedStream shared) {
+            super(out);
+            this.shared = shared;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            CopyingOutputStream copy = (CopyingOutputStream) out;
+            copy.write(b, off, len);
+            if (copy.isCopying()) {
+                shared.appended(len);
+            } else {
+                shared.fail();
+            }
+        }
+
+        @Override
+        public void close() {
+            // the response stream is closed by its owner
+        }
+    }
+
+}
@@ -7,11 +7,19 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.math.BigInteger;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 
 import org.restlet.data.Status;
@@ -23,6 +31,12 @@ public final class FileUtils {
 
     private static final Logger LOGGER = Logger.getLogger("org.restlet");
 
+    public static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    private static final Queue<byte[]> COPY_BUFFERS = new ConcurrentLinkedQueue<byte[]>();
+
     private FileUtils() {
 
     }
@@ -31,9 +45,18 @@ public final class FileUtils {
         return exec.isFile() && exec.canExecute();
     }
 
+    /**
+     * Copies an image into a volume, skipping its zero blocks when the
+     * volume allows it.
+     */
     public static void copyFile(String src, String dst) {
-        ProcessBuilder pb = new ProcessBuilder("dd", "if=" + src, "of=" + dst);
-        ProcessUtils.execute(pb, "Unable to copy file " + src + " to " + dst);
+        try {
+            long written = SparseCopier.getInstance().copy(new File(src), new File(dst), new LoggingProgress(src));
+            LOGGER.info("copied " + src + " to " + dst + ", " + written + " bytes written");
+        } catch (IOException e) {
+            LOGGER.severe("unable to copy " + src + " to " + dst + ": " + e.getMessage());
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Unable to copy file " + src + " to " + dst);
+        }
     }
 
     public static File getUploadCacheDirectory() {
@@ -44,8 +67,12 @@ public final class FileUtils {
         return new File(getUploadCacheDirectory(), uuid);
     }
 
+    public static File getExportCacheDirectory() {
+        return new File(getUploadCacheDirectory(), "exports");
+    }
+
     public static String getCompressedDiskLocation(String uuid) {
-        return getCachedDiskFile(uuid).getAbsolutePath() + ".gz";
+        return new File(getExportCacheDirectory(), uuid + ".gz").getAbsolutePath();
     }
 
     public static Boolean isCachedDiskExists(String uuid) {
@@ -57,6 +84,60 @@ public final class FileUtils {
         return cachedDisk.canRead(); // implies exists()
     }
 
+    /**
+     * Copies the stream, computing the SHA-1 digest and the length of the
+     * data on the way so that it never has to be read a second time. The
+     * result uses the same keys as MetadataUtils.streamInfo ("BYTES" and
+     * "SHA-1"). A positive maxBytes limits the amount of data accepted; an
+     * IOException is raised as soon as it is exceeded. The streams are not
+     * closed.
+     */
+    public static Map<String, BigInteger> copyWithDigest(InputStream in, OutputStream out, long maxBytes)
+            throws IOException {
+
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] buffer = takeCopyBuffer();
+        long bytes = 0L;
+        try {
+            int len;
+            while ((len = in.read(buffer)) >= 0) {
+                bytes += len;
+                if (maxBytes > 0 && bytes > maxBytes) {
+                    throw new IOException("stream is longer than " + maxBytes + " bytes");
+                }
+                sha1.update(buffer, 0, len);
+                out.write(buffer, 0, len);
+                Job.reportProgress(bytes, -1L);
+            }
+        } finally {
+            releaseCopyBuffer(buffer);
+        }
+
+        Map<String, BigInteger> info = new HashMap<String, BigInteger>();
+        info.put("BYTES", BigInteger.valueOf(bytes));
+        info.put("SHA-1", new BigInteger(1, sha1.digest()));
+        return info;
+    }
+
+    // Copy buffers are large, so a few are kept for reuse rather than
+    // allocating one per request.
+    private static byte[] takeCopyBuffer() {
+        byte[] buffer = COPY_BUFFERS.poll();
+        return (buffer != null) ? buffer : new byte[COPY_BUFFER_SIZE];
+    }
+
+    private static void releaseCopyBuffer(byte[] buffer) {
+        if (COPY_BUFFERS.size() < MAX_POOLED_BUFFERS) {
+            COPY_BUFFERS.offer(buffer);
+        }
+    }
+
     public static void closeIgnoringError(Closeable c) {
         try {
             if (c != null) {
@@ -80,4 +161,24 @@ public final class FileUtils {
         }
     }
 
+    // Logs the progress of a copy every tenth of the way.
+    private static final class LoggingProgress implements SparseCopier.Progress {
+
+        private final String name;
+        private long reported = 0L;
+
+        LoggingProgress(String name) {
+            this.name = name;
+        }
+
+        public void copied(long position, long total) {
+            Job.reportProgress(position, total);
+            long tenths = position * 10 / total;
+            if (tenths > reported) {
+                reported = tenths;
+                LOGGER.info("copying " + name + ": " + (tenths * 10) + "%");
+            }
+        }
+    }
+
 }
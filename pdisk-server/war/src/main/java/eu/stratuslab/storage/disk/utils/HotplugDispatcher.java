@@ -0,0 +1,288 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Admits hotplug commands to the cloud nodes. Each node runs a limited number
+ * of commands at once; the others wait in a queue per node, where the owners
+ * of the disks are served in turn so that one tenant starting many VMs does
+ * not hold back the others. A request arriving when the queue of its node is
+ * full is refused with a RetryLaterException.
+ *
+ * <pre>
+ * HotplugDispatcher.Ticket ticket = HotplugDispatcher.getInstance().acquire(node, owner);
+ * try {
+ *     ...
+ * } finally {
+ *     ticket.release();
+ * }
+ * </pre>
+ */
+public final class HotplugDispatcher implements Statistics.Source {
+
+    private static final String STATISTICS_NAME = "hotplug";
+
+    private static HotplugDispatcher instance = null;
+
+    private final int concurrency;
+    private final int queueSize;
+
+    private final Map<String, Node> nodes = new HashMap<String, Node>();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    /**
+     * Creates a dispatcher running at most concurrency commands per node,
+     * with at most queueSize commands waiting per node.
+     */
+    public HotplugDispatcher(int concurrency, int queueSize) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+        }
+        this.concurrency = concurrency;
+        this.queueSize = queueSize;
+    }
+
+    public static synchronized HotplugDispatcher getInstance() {
+        if (instance == null) {
+            ServiceConfiguration configuration = ServiceConfiguration.getInstance();
+            instance = new HotplugDispatcher(configuration.HOTPLUG_NODE_CONCURRENCY,
+                    configuration.HOTPLUG_NODE_QUEUE_SIZE);
+            Statistics.register(STATISTICS_NAME, instance);
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.unregisterNodes();
+            Statistics.unregister(STATISTICS_NAME);
+            instance = null;
+        }
+    }
+
+    /**
+     * Waits until a command for the owner may run on the node. Throws a
+     * RetryLaterException if too many commands are already waiting.
+     */
+    public Ticket acquire(String node, String owner) {
+        return getNode(node).acquire(owner == null ? "" : owner);
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        int running = 0;
+        int waiting = 0;
+        synchronized (nodes) {
+            for (Node node : nodes.values()) {
+                synchronized (node) {
+                    running += node.running;
+                    waiting += node.waiting;
+                }
+            }
+            stats.put("nodes", nodes.size());
+        }
+        long count = admitted.get();
+        stats.put("concurrency", concurrency);
+        stats.put("queue_size", queueSize);
+        stats.put("running", running);
+        stats.put("queued", waiting);
+        stats.put("admitted", count);
+        stats.put("waited", queued.get());
+        stats.put("rejected", rejected.get());
+        stats.put("mean_wait_ms", (count == 0) ? 0L : waitTime.get() / count);
+        stats.put("max_wait_ms", maxWaitTime.get());
+        return stats;
+    }
+
+    private Node getNode(String name) {
+        synchronized (nodes) {
+            Node node = nodes.get(name);
+            if (node == null) {
+                node = new Node(name);
+                nodes.put(name, node);
+                Statistics.register(STATISTICS_NAME + "." + name, node);
+            }
+            return node;
+        }
+    }
+
+    private void unregisterNodes() {
+        synchronized (nodes) {
+            for (String name : nodes.keySet()) {
+                Statistics.unregister(STATISTICS_NAME + "." + name);
+            }
+            nodes.clear();
+        }
+    }
+
+    private void admitted(long waited) {
+        admitted.incrementAndGet();
+        waitTime.addAndGet(waited);
+        for (long max = maxWaitTime.get(); waited > max; max = maxWaitTime.get()) {
+            if (maxWaitTime.compareAndSet(max, waited)) {
+                break;
+            }
+        }
+    }
+
+    private final class Node implements Statistics.Source {
+
+        private final String name;
+
+        // Waiting tickets by owner; the owner served next is moved last.
+        private final LinkedHashMap<String, LinkedList<Ticket>> queues = new LinkedHashMap<String, LinkedList<Ticket>>();
+
+        private int running = 0;
+        private int waiting = 0;
+
+        private long admittedHere = 0L;
+        private long rejectedHere = 0L;
+        private long waitTimeHere = 0L;
+        private long busyTime = 0L;
+
+        Node(String name) {
+            this.name = name;
+        }
+
+        synchronized Ticket acquire(String owner) {
+            Ticket ticket = new Ticket(this);
+
+            if (running < concurrency && waiting == 0) {
+                admit(ticket);
+                return ticket;
+            }
+
+            if (waiting >= queueSize) {
+                rejected.incrementAndGet();
+                rejectedHere++;
+                throw new RetryLaterException("too many hotplug requests queued for node " + name
+                        + ", retry later", getRetryAfter());
+            }
+
+            LinkedList<Ticket> queue = queues.get(owner);
+            if (queue == null) {
+                queue = new LinkedList<Ticket>();
+                queues.put(owner, queue);
+            }
+            queue.addLast(ticket);
+            waiting++;
+            queued.incrementAndGet();
+
+            try {
+                while (!ticket.admitted) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if (!ticket.admitted) {
+                    queue.remove(ticket);
+                    if (queue.isEmpty()) {
+                        queues.remove(owner);
+                    }
+                    waiting--;
+                    Thread.currentThread().interrupt();
+                    throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
+                            "interrupted while waiting for node " + name);
+                }
+                Thread.currentThread().interrupt();
+            }
+            return ticket;
+        }
+
+        synchronized void release(Ticket ticket) {
+            running--;
+            busyTime += System.currentTimeMillis() - ticket.admittedAt;
+            dispatch();
+        }
+
+        // Admits the first ticket of each owner in turn.
+        private void dispatch() {
+            while (running < concurrency && waiting > 0) {
+                Iterator<Map.Entry<String, LinkedList<Ticket>>> owners = queues.entrySet().iterator();
+                Map.Entry<String, LinkedList<Ticket>> next = owners.next();
+                owners.remove();
+
+                LinkedList<Ticket> queue = next.getValue();
+                Ticket ticket = queue.removeFirst();
+                if (!queue.isEmpty()) {
+                    queues.put(next.getKey(), queue);
+                }
+                waiting--;
+                admit(ticket);
+            }
+            notifyAll();
+        }
+
+        private void admit(Ticket ticket) {
+            running++;
+            ticket.admittedAt = System.currentTimeMillis();
+            ticket.admitted = true;
+
+            long waited = ticket.admittedAt - ticket.created;
+            admittedHere++;
+            waitTimeHere += waited;
+            admitted(waited);
+        }
+
+        // Time for the queue ahead to drain, from the mean command duration.
+        private int getRetryAfter() {
+            long completed = admittedHere - running;
+            long meanMillis = (completed <= 0) ? 1000L : busyTime / completed;
+            long seconds = (meanMillis * (waiting + running) / concurrency + 999L) / 1000L;
+            return (int) Math.max(1L, seconds);
+        }
+
+        public synchronized Map<String, Object> getStatistics() {
+            Map<String, Object> stats = new HashMap<String, Object>();
+            stats.put("running", running);
+            stats.put("queued", waiting);
+            stats.put("owners_queued", queues.size());
+            stats.put("admitted", admittedHere);
+            stats.put("rejected", rejectedHere);
+            stats.put("mean_wait_ms", (admittedHere == 0) ? 0L : waitTimeHere / admittedHere);
+            return stats;
+        }
+    }
+
+    /**
+     * Permission to run one command on a node.
+     */
+    public static final class Ticket {
+
+        private final Node node;
+        private final long created = System.currentTimeMillis();
+
+        private volatile boolean admitted = false;
+        private long admittedAt = 0L;
+        private boolean released = false;
+
+        private Ticket(Node node) {
+            this.node = node;
+        }
+
+        public void release() {
+            synchronized (node) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            node.release(this);
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import eu.stratuslab.marketplace.metadata.MetadataUtils;
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Content-addressed store of downloaded images, so that disks initialized
+ * from the same image do not download it again. Images are kept in a
+ * directory of the upload cache, each in a file named after its SHA-1
+ * digest, and the least recently used ones are removed when the store grows
+ * beyond its size limit. Images can also be found by their Marketplace
+ * identifier, which is derived from the same digest.
+ *
+ * Downloads are written to a temporary file which is renamed once its digest
+ * is known, so a partial image can never be found. Removing an image does not
+ * disturb readers that have already opened it.
+ */
+public final class ImageCache implements Statistics.Source {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final String DIRECTORY_NAME = "images";
+
+    private static final String PART_SUFFIX = ".part";
+
+    private static ImageCache instance = null;
+
+    private final File directory;
+    private final long maxBytes;
+
+    // Images in least recently used order, with their size in bytes
+    private final LinkedHashMap<String, Long> images = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes = 0L;
+
+    // Names of the images by Marketplace identifier
+    private final Map<String, String> identifiers = new HashMap<String, String>();
+
+    private long hits = 0L;
+    private long misses = 0L;
+    private long bytesSaved = 0L;
+    private long evictions = 0L;
+
+    public ImageCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        if (isEnabled()) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalStateException("unable to create image cache " + directory.getAbsolutePath());
+            }
+            loadImages();
+        }
+    }
+
+    public static synchronized ImageCache getInstance() {
+        if (instance == null) {
+            ServiceConfiguration configuration = ServiceConfiguration.getInstance();
+            instance = new ImageCache(new File(configuration.CACHE_LOCATION, DIRECTORY_NAME),
+                    configuration.IMAGE_CACHE_SIZE * DiskUtils.BYTES_IN_GiB);
+            Statistics.register("image_cache", instance);
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Opens the image with the given SHA-1 digest, or returns null if it is
+     * not in the store or the digest is not known (null).
+     */
+    public InputStream open(BigInteger sha1) {
+        return open(sha1, null);
+    }
+
+    /**
+     * Opens the image with the given SHA-1 digest or, when the digest is not
+     * known (null), with the given Marketplace identifier. Returns null if
+     * there is no such image.
+     */
+    public synchronized InputStream open(BigInteger sha1, String identifier) {
+        String name = (sha1 != null) ? getName(sha1) : null;
+        if (name == null && identifier != null) {
+            name = identifiers.get(identifier);
+        }
+        Long size = (name != null) ? images.get(name) : null;
+        if (size != null) {
+            try {
+                File file = new File(directory, name);
+                InputStream image = new FileInputStream(file);
+                // keeps the order of use across restarts
+                file.setLastModified(System.currentTimeMillis());
+                hits++;
+                bytesSaved += size;
+                return image;
+            } catch (FileNotFoundException e) {
+                LOGGER.warning("image cache entry vanished: " + name);
+                remove(name);
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Returns a new temporary file in which an image can be downloaded
+     * before being added to the store.
+     */
+    public File createPartFile() {
+        return new File(directory, UUID.randomUUID().toString() + PART_SUFFIX);
+    }
+
+    /**
+     * Returns true if an image of the given size can be kept.
+     */
+    public boolean accepts(long size) {
+        return isEnabled() && size <= maxBytes;
+    }
+
+    /**
+     * Adds a downloaded image to the store under its SHA-1 digest and
+     * returns a stream on it. Images larger than the store are not kept; the
+     * stream then reads the temporary file, which is already deleted.
+     */
+    public InputStream add(File part, BigInteger sha1) throws IOException {
+
+        InputStream image = new FileInputStream(part);
+
+        long size = part.length();
+        String name = getName(sha1);
+        File file = new File(directory, name);
+
+        synchronized (this) {
+            if (size <= maxBytes && !images.containsKey(name) && part.renameTo(file)) {
+                images.put(name, size);
+                totalBytes += size;
+                addIdentifier(name);
+                evict();
+            } else if (!part.delete()) {
+                LOGGER.warning("could not delete file: " + part.getAbsolutePath());
+            }
+        }
+
+        return image;
+    }
+
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("images", images.size());
+        stats.put("bytes", totalBytes);
+        stats.put("max_bytes", maxBytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hit_ratio", Statistics.ratio(hits, hits + misses));
+        stats.put("bytes_saved", bytesSaved);
+        stats.put("evictions", evictions);
+        return stats;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> lru = images.entrySet().iterator();
+        while (totalBytes > maxBytes && lru.hasNext()) {
+            Map.Entry<String, Long> entry = lru.next();
+            deleteImage(entry.getKey());
+            removeIdentifier(entry.getKey());
+            totalBytes -= entry.getValue();
+            evictions++;
+            lru.remove();
+        }
+    }
+
+    private void remove(String name) {
+        Long size = images.remove(name);
+        if (size != null) {
+            totalBytes -= size;
+            removeIdentifier(name);
+        }
+    }
+
+    private void addIdentifier(String name) {
+        String identifier = getIdentifier(name);
+        if (identifier != null) {
+            identifiers.put(identifier, name);
+        }
+    }
+
+    private void removeIdentifier(String name) {
+        String identifier = getIdentifier(name);
+        if (identifier != null) {
+            identifiers.remove(identifier);
+        }
+    }
+
+    private void deleteImage(String name) {
+        File file = new File(directory, name);
+        if (!file.delete()) {
+            LOGGER.warning("could not delete cached image: " + file.getAbsolutePath());
+        }
+    }
+
+    // Picks up the images kept by a previous run, the oldest first, and
+    // removes the downloads it left unfinished.
+    private void loadImages() {
+        File[] files = directory.listFiles();
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return (m1 < m2) ? -1 : ((m1 == m2) ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            if (file.getName().endsWith(PART_SUFFIX)) {
+                if (!file.delete()) {
+                    LOGGER.warning("could not delete file: " + file.getAbsolutePath());
+                }
+            } else if (file.isFile()) {
+                images.put(file.getName(), file.length());
+                totalBytes += file.length();
+                addIdentifier(file.getName());
+            }
+        }
+        evict();
+    }
+
+    private static String getName(BigInteger sha1) {
+        return String.format("%040x", sha1);
+    }
+
+    // Null for files that are not named after a digest
+    private static String getIdentifier(String name) {
+        try {
+            return MetadataUtils.sha1ToIdentifier(new BigInteger(name, 16));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
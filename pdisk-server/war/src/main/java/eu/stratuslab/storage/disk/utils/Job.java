@@ -0,0 +1,143 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.restlet.resource.ResourceException;
+
+/**
+ * A long-running disk operation run in the background on behalf of a user.
+ * The result of a successful job is the UUID of the disk it produced.
+ *
+ * The job being run is attached to the worker thread, so that the code doing
+ * the work can report its phase and progress through the static methods
+ * without knowing whether it runs in a job; they do nothing otherwise.
+ */
+public final class Job {
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final ThreadLocal<Job> CURRENT = new ThreadLocal<Job>();
+
+    private final String id = UUID.randomUUID().toString();
+    private final String type;
+    private final String owner;
+    private final long created = System.currentTimeMillis();
+
+    private volatile State state = State.QUEUED;
+    private volatile String phase = "";
+    private volatile long bytesDone = 0L;
+    private volatile long bytesTotal = -1L;
+    private volatile String result = null;
+    private volatile String error = null;
+    private volatile int errorStatus = 0;
+    private volatile long finished = 0L;
+
+    public Job(String type, String owner) {
+        this.type = type;
+        this.owner = owner;
+    }
+
+    public static void setPhase(String phase) {
+        Job job = CURRENT.get();
+        if (job != null) {
+            job.phase = phase;
+            job.bytesDone = 0L;
+            job.bytesTotal = -1L;
+        }
+    }
+
+    /**
+     * Reports the bytes processed in the current phase, out of total (-1 if
+     * not known).
+     */
+    public static void reportProgress(long done, long total) {
+        Job job = CURRENT.get();
+        if (job != null) {
+            job.bytesDone = done;
+            job.bytesTotal = total;
+        }
+    }
+
+    void run(Callable<String> work) {
+        CURRENT.set(this);
+        state = State.RUNNING;
+        try {
+            result = work.call();
+            state = State.SUCCEEDED;
+        } catch (ResourceException e) {
+            fail(e.getStatus().getCode(), e.getStatus().getDescription());
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "job " + id + " (" + type + ") failed", e);
+            fail(500, e.getMessage());
+        } finally {
+            finished = System.currentTimeMillis();
+            CURRENT.remove();
+        }
+    }
+
+    private void fail(int status, String message) {
+        errorStatus = status;
+        error = (message != null) ? message : "";
+        state = State.FAILED;
+    }
+
+    public boolean isFinished() {
+        return finished > 0L;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getFinished() {
+        return finished;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public long getBytesDone() {
+        return bytesDone;
+    }
+
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    public String getResult() {
+        return result;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public int getErrorStatus() {
+        return errorStatus;
+    }
+
+}
@@ -0,0 +1,157 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Runs jobs on a fixed number of worker threads with a bounded queue, so
+ * that long operations requested asynchronously do not hold request threads
+ * and their number is limited. Jobs are refused when the queue is full.
+ *
+ * Finished jobs are kept for a retention period so that their result can be
+ * read, then forgotten.
+ */
+public final class JobManager implements Statistics.Source {
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static JobManager instance = null;
+
+    private final ThreadPoolExecutor workers;
+    private final long retention;
+
+    // Jobs by identifier, oldest first
+    private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a manager running jobs on the given number of threads, with
+     * at most queueSize jobs waiting, and keeping finished jobs for
+     * retention milliseconds.
+     */
+    public JobManager(int threads, int queueSize, long retention) {
+        this.retention = retention;
+
+        workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "job-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    public static synchronized JobManager getInstance() {
+        if (instance == null) {
+            ServiceConfiguration configuration = ServiceConfiguration.getInstance();
+            instance = new JobManager(configuration.JOB_WORKERS, configuration.JOB_QUEUE_SIZE,
+                    configuration.JOB_RETENTION * 1000L);
+            Statistics.register("jobs", instance);
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            Statistics.unregister("jobs");
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Queues the work as a new job of the given type. Throws a 503 error if
+     * too many jobs are waiting.
+     */
+    public Job submit(String type, String owner, final Callable<String> work) {
+        purge();
+
+        final Job job = new Job(type, owner);
+        synchronized (jobs) {
+            jobs.put(job.getId(), job);
+        }
+
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    job.run(work);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (jobs) {
+                jobs.remove(job.getId());
+            }
+            rejected.incrementAndGet();
+            throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, "too many jobs queued, retry later");
+        }
+
+        submitted.incrementAndGet();
+        return job;
+    }
+
+    /**
+     * Returns the job, or null if it does not exist or has been forgotten.
+     */
+    public Job get(String id) {
+        purge();
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        Map<Job.State, Integer> states = new HashMap<Job.State, Integer>();
+        for (Job.State state : Job.State.values()) {
+            states.put(state, 0);
+        }
+        synchronized (jobs) {
+            for (Job job : jobs.values()) {
+                states.put(job.getState(), states.get(job.getState()) + 1);
+            }
+        }
+        for (Job.State state : Job.State.values()) {
+            stats.put(state.name().toLowerCase(), states.get(state));
+        }
+        stats.put("workers", workers.getMaximumPoolSize());
+        stats.put("submitted", submitted.get());
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+
+    private void purge() {
+        long oldest = System.currentTimeMillis() - retention;
+        synchronized (jobs) {
+            Iterator<Job> iterator = jobs.values().iterator();
+            while (iterator.hasNext()) {
+                Job job = iterator.next();
+                if (job.isFinished() && job.getFinished() < oldest) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks protecting disks and virtual machines against concurrent
+ * modification. Disk UUIDs and VM identifiers are hashed onto a fixed set of
+ * reentrant locks, so that operations on unrelated disks almost never wait
+ * for each other while conflicting operations on the same disk or VM queue.
+ *
+ * All the locks needed by an operation must be taken in a single call: the
+ * stripes are then always acquired in ascending order, which rules out
+ * deadlocks between operations touching several disks or a disk and a VM.
+ * Re-acquiring stripes that are already held is allowed.
+ *
+ * <pre>
+ * LockManager.Locks locks = LockManager.lockDiskAndInstance(uuid, vmId);
+ * try {
+ *     ...
+ * } finally {
+ *     locks.release();
+ * }
+ * </pre>
+ */
+public final class LockManager {
+
+    private static final int STRIPES = 256;
+
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+
+    private static final AtomicLong acquisitions = new AtomicLong();
+    private static final AtomicLong contentions = new AtomicLong();
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+
+        Statistics.register("locks", new Statistics.Source() {
+            public Map<String, Object> getStatistics() {
+                Map<String, Object> stats = new HashMap<String, Object>();
+                long total = acquisitions.get();
+                long contended = contentions.get();
+                stats.put("stripes", STRIPES);
+                stats.put("acquisitions", total);
+                stats.put("contentions", contended);
+                stats.put("contention_ratio", Statistics.ratio(contended, total));
+                return stats;
+            }
+        });
+    }
+
+    private LockManager() {
+
+    }
+
+    public static Locks lockDisks(String... uuids) {
+        String[] keys = new String[uuids.length];
+        for (int i = 0; i < uuids.length; i++) {
+            keys[i] = (uuids[i] == null) ? null : diskKey(uuids[i]);
+        }
+        return acquire(keys);
+    }
+
+    public static Locks lockInstance(String vmId) {
+        return acquire(instanceKey(vmId));
+    }
+
+    public static Locks lockDiskAndInstance(String uuid, String vmId) {
+        return acquire(diskKey(uuid), instanceKey(vmId));
+    }
+
+    public static Locks lockInstanceAndDisks(String vmId, Collection<String> uuids) {
+        List<String> keys = new ArrayList<String>();
+        keys.add(instanceKey(vmId));
+        for (String uuid : uuids) {
+            keys.add(diskKey(uuid));
+        }
+        return acquire(keys.toArray(new String[keys.size()]));
+    }
+
+    private static String diskKey(String uuid) {
+        return "disk:" + uuid;
+    }
+
+    private static String instanceKey(String vmId) {
+        return "vm:" + vmId;
+    }
+
+    private static Locks acquire(String... keys) {
+        SortedSet<Integer> stripes = new TreeSet<Integer>();
+        for (String key : keys) {
+            if (key != null) {
+                stripes.add(stripe(key));
+            }
+        }
+
+        int[] held = new int[stripes.size()];
+        int count = 0;
+        try {
+            for (int stripe : stripes) {
+                ReentrantLock lock = LOCKS[stripe];
+                if (!lock.tryLock()) {
+                    contentions.incrementAndGet();
+                    lock.lock();
+                }
+                acquisitions.incrementAndGet();
+                held[count++] = stripe;
+            }
+        } catch (RuntimeException e) {
+            release(held, count);
+            throw e;
+        } catch (Error e) {
+            release(held, count);
+            throw e;
+        }
+
+        return new Locks(held);
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % STRIPES;
+    }
+
+    private static void release(int[] stripes, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            LOCKS[stripes[i]].unlock();
+        }
+    }
+
+    /**
+     * Locks held by the current thread; must be released by the same thread.
+     */
+    public static final class Locks {
+
+        private final int[] stripes;
+        private boolean released = false;
+
+        private Locks(int[] stripes) {
+            this.stripes = stripes;
+        }
+
+        public void release() {
+            if (!released) {
+                released = true;
+                LockManager.release(stripes, stripes.length);
+            }
+        }
+    }
+
+}
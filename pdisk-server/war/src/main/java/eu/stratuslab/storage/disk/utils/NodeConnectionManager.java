@@ -0,0 +1,362 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+import eu.stratuslab.storage.disk.utils.CommandExecutor.CommandClass;
+
+/**
+ * Keeps one authenticated ssh connection per cloud node, so that hotplug
+ * commands do not pay for a TCP connection, key exchange and authentication
+ * each. The connection is an OpenSSH control master: commands open sessions
+ * over its control socket and the master exits by itself after being idle
+ * for the configured time.
+ *
+ * The master is checked before use when it has not been used or checked
+ * recently, and replaced if it died. If it cannot be started, commands
+ * connect directly as before, and no new master is tried for a while. The number of commands running at once on a
+ * node is limited, to stay below the sessions sshd accepts per connection.
+ *
+ * <pre>
+ * NodeConnectionManager.Session session = NodeConnectionManager.getInstance().open(node);
+ * try {
+ *     List&lt;String&gt; cmd = session.createCommand();
+ *     ...
+ * } finally {
+ *     session.close();
+ * }
+ * </pre>
+ */
+public final class NodeConnectionManager implements Statistics.Source {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    // A master used within this time is not checked again (ms)
+    private static final long CHECK_INTERVAL = 30000L;
+
+    private static NodeConnectionManager instance = null;
+
+    private final File controlDirectory;
+    private final String user;
+    private final String keyFile;
+    private final int idleTimeout;
+    private final int maxSessions;
+
+    private final Map<String, Node> nodes = new HashMap<String, Node>();
+
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong mastersStarted = new AtomicLong();
+    private final AtomicLong masterFailures = new AtomicLong();
+
+    /**
+     * Creates a manager logging on the nodes as user with the given key.
+     * Masters exit after idleTimeout seconds without sessions (0 disables
+     * them) and at most maxSessions commands run at once on a node.
+     */
+    public NodeConnectionManager(File controlDirectory, String user, String keyFile, int idleTimeout,
+            int maxSessions) {
+        this.controlDirectory = controlDirectory;
+        this.user = user;
+        this.keyFile = keyFile;
+        this.idleTimeout = idleTimeout;
+        this.maxSessions = maxSessions;
+
+        if (idleTimeout > 0 && !controlDirectory.isDirectory() && !controlDirectory.mkdirs()) {
+            LOGGER.warning("could not create ssh control directory " + controlDirectory.getAbsolutePath());
+        }
+    }
+
+    public static synchronized NodeConnectionManager getInstance() {
+        if (instance == null) {
+            ServiceConfiguration configuration = ServiceConfiguration.getInstance();
+            instance = new NodeConnectionManager(new File(configuration.CACHE_LOCATION, "ssh"),
+                    configuration.CLOUD_NODE_ADMIN, configuration.CLOUD_NODE_SSH_KEY,
+                    configuration.CLOUD_NODE_SSH_PERSIST, configuration.CLOUD_NODE_SSH_SESSIONS);
+            Statistics.register("ssh", instance);
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            Statistics.unregister("ssh");
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Waits for a free session on the node and makes sure its master is
+     * running. The session must be closed by the caller.
+     */
+    public Session open(String node) {
+        Node entry = getNode(node);
+
+        if (!entry.permits.tryAcquire()) {
+            waits.incrementAndGet();
+            try {
+                entry.permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "interrupted while waiting for node "
+                        + node);
+            }
+        }
+        sessions.incrementAndGet();
+
+        try {
+            return new Session(entry, entry.ensureMaster());
+        } catch (RuntimeException e) {
+            entry.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops all the masters.
+     */
+    public void shutdown() {
+        List<Node> all;
+        synchronized (nodes) {
+            all = new ArrayList<Node>(nodes.values());
+            nodes.clear();
+        }
+        for (Node node : all) {
+            node.stopMaster();
+        }
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        int masters = 0;
+        int active = 0;
+        synchronized (nodes) {
+            for (Node node : nodes.values()) {
+                if (node.masterRunning) {
+                    masters++;
+                }
+                active += maxSessions - node.permits.availablePermits();
+            }
+            stats.put("nodes", nodes.size());
+        }
+        stats.put("masters", masters);
+        stats.put("active_sessions", active);
+        stats.put("max_sessions", maxSessions);
+        stats.put("idle_timeout", idleTimeout);
+        stats.put("sessions", sessions.get());
+        stats.put("waits", waits.get());
+        stats.put("checks", checks.get());
+        stats.put("masters_started", mastersStarted.get());
+        stats.put("master_failures", masterFailures.get());
+        return stats;
+    }
+
+    private Node getNode(String node) {
+        synchronized (nodes) {
+            Node entry = nodes.get(node);
+            if (entry == null) {
+                entry = new Node(node);
+                nodes.put(node, entry);
+            }
+            return entry;
+        }
+    }
+
+    // Options common to all connections to a node.
+    private List<String> createSshCommand() {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add("ssh");
+        cmd.add("-p");
+        cmd.add("22");
+        cmd.add("-o");
+        cmd.add("ConnectTimeout=5");
+        cmd.add("-o");
+        cmd.add("StrictHostKeyChecking=no");
+        cmd.add("-i");
+        cmd.add(keyFile);
+        return cmd;
+    }
+
+    private final class Node {
+
+        private final String name;
+        private final File socket;
+        private final Semaphore permits = new Semaphore(maxSessions, true);
+
+        private boolean masterRunning = false;
+        private long lastCheck = 0L;
+        private long lastUsed = 0L;
+        private long lastFailure = 0L;
+
+        Node(String name) {
+            this.name = name;
+            this.socket = new File(controlDirectory, user + "@" + name);
+        }
+
+        String getDestination() {
+            return user + "@" + name;
+        }
+
+        // Returns true if the sessions can go through the master.
+        synchronized boolean ensureMaster() {
+            if (idleTimeout <= 0) {
+                return false;
+            }
+
+            long now = System.currentTimeMillis();
+            boolean idle = now - lastUsed >= idleTimeout * 1000L;
+            if (masterRunning && !idle && now - lastCheck < CHECK_INTERVAL) {
+                lastUsed = now;
+                return true;
+            }
+
+            // A node whose master could not be started is likely down:
+            // connect directly rather than trying again on every command.
+            if (!masterRunning && now - lastFailure < CHECK_INTERVAL) {
+                return false;
+            }
+
+            lastCheck = now;
+            masterRunning = isMasterAlive() || startMaster();
+            if (masterRunning) {
+                lastUsed = now;
+            } else {
+                lastFailure = now;
+            }
+            return masterRunning;
+        }
+
+        private boolean isMasterAlive() {
+            if (!socket.exists()) {
+                return false;
+            }
+            checks.incrementAndGet();
+
+            List<String> cmd = createControlCommand("check");
+            if (ProcessUtils.executeGetStatus(CommandClass.HOTPLUG, new ProcessBuilder(cmd)) == 0) {
+                return true;
+            }
+
+            // A master that died leaves its socket behind.
+            if (socket.exists() && !socket.delete()) {
+                LOGGER.warning("could not delete stale ssh control socket " + socket.getAbsolutePath());
+            }
+            return false;
+        }
+
+        // The master forks once authenticated. It is started through a shell
+        // with its output redirected, so that it does not keep the pipe of the
+        // command open.
+        private boolean startMaster() {
+            List<String> ssh = createSshCommand();
+            ssh.add("-o");
+            ssh.add("ControlPersist=" + idleTimeout);
+            ssh.add("-M");
+            ssh.add("-N");
+            ssh.add("-f");
+            ssh.add("-S");
+            ssh.add(socket.getAbsolutePath());
+            ssh.add(getDestination());
+
+            List<String> cmd = new ArrayList<String>();
+            cmd.add("/bin/sh");
+            cmd.add("-c");
+            cmd.add("exec " + quote(ssh) + " </dev/null >/dev/null 2>&1");
+
+            try {
+                ProcessUtils.execute(CommandClass.HOTPLUG, new ProcessBuilder(cmd), "Unable to connect to " + name);
+                mastersStarted.incrementAndGet();
+                return true;
+            } catch (ResourceException e) {
+                masterFailures.incrementAndGet();
+                LOGGER.warning("no ssh control master for " + name + ", connecting directly");
+                return false;
+            }
+        }
+
+        synchronized void stopMaster() {
+            if (masterRunning && socket.exists()) {
+                ProcessUtils.executeGetStatus(CommandClass.HOTPLUG, new ProcessBuilder(createControlCommand("exit")));
+            }
+            masterRunning = false;
+        }
+
+        private List<String> createControlCommand(String operation) {
+            List<String> cmd = createSshCommand();
+            cmd.add("-S");
+            cmd.add(socket.getAbsolutePath());
+            cmd.add("-O");
+            cmd.add(operation);
+            cmd.add(getDestination());
+            return cmd;
+        }
+    }
+
+    private static String quote(List<String> args) {
+        StringBuilder sb = new StringBuilder();
+        for (String arg : args) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('\'').append(arg.replace("'", "'\\''")).append('\'');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A slot for one command on a node.
+     */
+    public final class Session {
+
+        private final Node node;
+        private final boolean multiplexed;
+        private boolean closed = false;
+
+        private Session(Node node, boolean multiplexed) {
+            this.node = node;
+            this.multiplexed = multiplexed;
+        }
+
+        public boolean isMultiplexed() {
+            return multiplexed;
+        }
+
+        /**
+         * Returns the ssh command logging on the node, to which the remote
+         * command is appended.
+         */
+        public List<String> createCommand() {
+            List<String> cmd = createSshCommand();
+            cmd.add("-o");
+            if (multiplexed) {
+                cmd.add("ControlMaster=no");
+                cmd.add("-S");
+                cmd.add(node.socket.getAbsolutePath());
+            } else {
+                cmd.add("ControlPath=none");
+            }
+            cmd.add(node.getDestination());
+            return cmd;
+        }
+
+        public void close() {
+            if (!closed) {
+                closed = true;
+                node.permits.release();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Compresses a stream on several threads. The input is cut into blocks which
+ * are compressed independently, each into a complete gzip member, and the
+ * members are written in order. The concatenation is a valid gzip file that
+ * gunzip inflates as a whole; the ratio is only slightly worse than that of a
+ * single member because the blocks are large.
+ *
+ * The caller reads the blocks and writes the result, so at most a bounded
+ * number of blocks per compression is in memory. The worker threads are
+ * shared by all compressions.
+ */
+public final class ParallelGzipCompressor implements Statistics.Source {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static ParallelGzipCompressor instance = null;
+
+    private final ExecutorService workers;
+    private final int threads;
+    private final int level;
+    private final int blockSize;
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong blocks = new AtomicLong();
+
+    public ParallelGzipCompressor(int threads, int level, int blockSize) {
+        this.threads = threads;
+        this.level = level;
+        this.blockSize = blockSize;
+
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "gzip-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the compressor configured for the service, or null if disks
+     * are compressed with the external gzip command.
+     */
+    public static synchronized ParallelGzipCompressor getInstance() {
+        if (instance == null) {
+            ServiceConfiguration configuration = ServiceConfiguration.getInstance();
+            if (configuration.COMPRESS_THREADS <= 0) {
+                return null;
+            }
+            instance = new ParallelGzipCompressor(configuration.COMPRESS_THREADS, configuration.COMPRESS_LEVEL,
+                    DEFAULT_BLOCK_SIZE);
+            Statistics.register("compression", instance);
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdownInstance() {
+        if (instance != null) {
+            Statistics.unregister("compression");
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Compresses the whole input into the output. Neither stream is closed.
+     */
+    public void compress(InputStream in, OutputStream out) throws IOException {
+
+        // Twice as many blocks as threads keeps the workers busy while the
+        // caller waits for the oldest block.
+        int window = 2 * threads;
+        LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+        try {
+            byte[] block;
+            while ((block = readBlock(in)) != null) {
+                if (pending.size() >= window) {
+                    write(pending.removeFirst(), out);
+                }
+                pending.addLast(workers.submit(new Block(block)));
+            }
+
+            while (!pending.isEmpty()) {
+                write(pending.removeFirst(), out);
+            }
+
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        long in = bytesIn.get();
+        long out = bytesOut.get();
+        stats.put("threads", threads);
+        stats.put("level", level);
+        stats.put("blocks", blocks.get());
+        stats.put("bytes_in", in);
+        stats.put("bytes_out", out);
+        stats.put("ratio", Statistics.ratio(out, in));
+        return stats;
+    }
+
+    // Returns the next block, shorter at the end of the input, or null.
+    private byte[] readBlock(InputStream in) throws IOException {
+        byte[] block = new byte[blockSize];
+        int length = 0;
+        int n;
+        while (length < blockSize && (n = in.read(block, length, blockSize - length)) >= 0) {
+            length += n;
+        }
+        if (length == 0) {
+            return null;
+        }
+        bytesIn.addAndGet(length);
+        return (length == blockSize) ? block : Arrays.copyOf(block, length);
+    }
+
+    private void write(Future<byte[]> member, OutputStream out) throws IOException {
+        try {
+            byte[] compressed = member.get();
+            out.write(compressed);
+            bytesOut.addAndGet(compressed.length);
+            blocks.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("compression interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("compression failed: " + cause);
+        }
+    }
+
+    private class Block implements Callable<byte[]> {
+
+        private final byte[] data;
+
+        Block(byte[] data) {
+            this.data = data;
+        }
+
+        public byte[] call() throws IOException {
+            ByteArrayOutputStream member = new ByteArrayOutputStream(data.length / 2);
+            GZIPOutputStream gzip = new LevelGZIPOutputStream(member, level);
+            gzip.write(data);
+            gzip.close();
+            return member.toByteArray();
+        }
+    }
+
+    // GZIPOutputStream with a configurable compression level.
+    private static final class LevelGZIPOutputStream extends GZIPOutputStream {
+
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, 64 * 1024);
+            def.setLevel(level);
+        }
+    }
+
+}
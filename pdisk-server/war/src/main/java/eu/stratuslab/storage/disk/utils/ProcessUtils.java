@@ -1,16 +1,8 @@
 package eu.stratuslab.storage.disk.utils;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.util.Iterator;
-import java.util.List;
 import java.util.logging.Logger;
 
-import org.restlet.data.Status;
-import org.restlet.resource.ResourceException;
+import eu.stratuslab.storage.disk.utils.CommandExecutor.CommandClass;
 
 public final class ProcessUtils {
 
@@ -29,143 +21,40 @@ public final class ProcessUtils {
         executeWithOutput(pb, errorMsg);
     }
 
-    public static String executeWithOutput(ProcessBuilder pb, String errorMsg) {
-        int returnCode = 1;
-        String stdout = "";
-        String stderr = "";
-        Process process;
-        StringBuffer outputBuf = new StringBuffer();
+    public static void execute(CommandClass commandClass, ProcessBuilder pb, String errorMsg) {
+        executeWithOutput(commandClass, pb, errorMsg);
+    }
 
-        pb.redirectErrorStream(true);
+    public static String executeWithOutput(ProcessBuilder pb, String errorMsg) {
+        return executeWithOutput(CommandClass.OTHER, pb, errorMsg);
+    }
 
+    public static String executeWithOutput(CommandClass commandClass, ProcessBuilder pb, String errorMsg) {
         if (verboseLevel == VerboseLevel.Debug) {
             info(pb);
         }
 
-        try {
-            process = pb.start();
-
-            BufferedReader stdOutErr = new BufferedReader(
-                    new InputStreamReader(process.getInputStream(), "UTF-8"));
-            String line;
-            while ((line = stdOutErr.readLine()) != null) {
-                outputBuf.append(line);
-                outputBuf.append("\n");
-            }
-
-            processWait(process);
-
-            stdOutErr.close();
-
-            returnCode = process.exitValue();
-            stdout = streamToString(process.getInputStream());
-            stderr = streamToString(process.getErrorStream());
-        } catch (IOException e) {
-
-            String msg = "An error occurred while executing command: "
-                    + MiscUtils.join(pb.command(), " ") + ".\n" + errorMsg
-                    + ".";
-
-            LOGGER.severe(msg);
-            LOGGER.severe(e.getMessage());
-
-            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, msg);
-        }
-
-        if (returnCode != 0) {
-
-            process.getErrorStream();
-
-            String msg = "An error occurred while executing command: "
-                    + MiscUtils.join(pb.command(), " ") + ".\n"
-                    + outputBuf.toString() + "\n" + errorMsg
-                    + ".\nReturn code was: " + String.valueOf(returnCode);
-
-            LOGGER.severe(msg);
-            LOGGER.severe("Standard Output: \n" + stdout + "\n");
-            LOGGER.severe("Standard Error: \n" + stderr + "\n");
-
-            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, msg);
-        }
-
-        return outputBuf.toString();
-    }
-
-    private static void info(ProcessBuilder processBuilder) {
-        LOGGER.info(joinList(processBuilder.command(), " "));
-    }
-
-    private static String joinList(List<String> list, String glue) {
-        Iterator<String> i = list.iterator();
-        if (i.hasNext() == false) {
-            return "";
-        }
-        StringBuffer res = new StringBuffer();
-        res.append(i.next());
-        while (i.hasNext()) {
-            res.append(glue + i.next());
-        }
-        return res.toString();
+        return CommandExecutor.getInstance().execute(commandClass, pb, errorMsg);
     }
 
     public static int executeGetStatus(ProcessBuilder pb) {
-        Process process;
-        try {
-            process = pb.start();
-            return processWaitGetStatus(process);
-        } catch (IOException e) {
-            return -1;
-        }
+        return executeGetStatus(CommandClass.OTHER, pb);
     }
 
-    private static void processWait(Process process) {
-        boolean blocked = true;
-        while (blocked) {
-            try {
-                process.waitFor();
-                blocked = false;
-            } catch (InterruptedException consumed) {
-                // just continue to wait
-            }
+    /**
+     * Runs a probe and returns its exit code, without logging a non-zero
+     * exit code as an error.
+     */
+    public static int executeGetStatus(CommandClass commandClass, ProcessBuilder pb) {
+        if (verboseLevel == VerboseLevel.Debug) {
+            info(pb);
         }
 
+        return CommandExecutor.getInstance().executeGetStatus(commandClass, pb);
     }
 
-    private static int processWaitGetStatus(Process process) {
-        int rc = -1;
-        boolean blocked = true;
-        while (blocked) {
-            try {
-                rc = process.waitFor();
-                blocked = false;
-            } catch (InterruptedException consumed) {
-                // just continue to wait
-            }
-        }
-        return rc;
-    }
-
-    private static String streamToString(InputStream is) {
-
-        StringBuilder sb = new StringBuilder();
-        char[] c = new char[1024];
-
-        Reader r = null;
-
-        try {
-
-            r = new InputStreamReader(is, "UTF-8");
-            for (int n = r.read(c); n > 0; n = r.read(c)) {
-                sb.append(c, 0, n);
-            }
-
-        } catch (IOException consumed) {
-            // Do nothing.
-        } finally {
-            FileUtils.closeIgnoringError(r);
-        }
-
-        return sb.toString();
+    private static void info(ProcessBuilder processBuilder) {
+        LOGGER.info(MiscUtils.join(processBuilder.command(), " "));
     }
 
 }
@@ -0,0 +1,331 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+
+/**
+ * Downloads a file with several concurrent HTTP range requests. The file is
+ * cut into fixed-size segments which are fetched by a small pool of
+ * connections and written in place with positional writes, so that the
+ * segments can complete in any order. A segment interrupted by a network
+ * error is resumed from the last byte written.
+ *
+ * Only plain (not content-encoded) resources whose server advertises byte
+ * ranges are handled; see {@link #probe(String)}. Because the data arrives
+ * out of order, the SHA-1 digest is computed by reading the file back once
+ * the download is complete.
+ */
+public final class RangedDownloader {
+
+    private static final Logger LOGGER = Logger.getLogger("org.restlet");
+
+    private static final int SEGMENT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int SOCKET_TIMEOUT = 60 * 1000;
+
+    private static final long RETRY_DELAY = 1000L;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final int connections;
+    private final long segmentSize;
+    private final int retries;
+
+    public RangedDownloader(int connections, long segmentSize, int retries) {
+        this.connections = connections;
+        this.segmentSize = segmentSize;
+        this.retries = retries;
+    }
+
+    /**
+     * Checks with a HEAD request whether the resource can be downloaded in
+     * ranges and is large enough to be worth it. Returns null otherwise, in
+     * which case the caller should stream the resource.
+     */
+    public Probe probe(String url) {
+
+        if (connections <= 1) {
+            return null;
+        }
+
+        DefaultHttpClient client = DownloadUtils.getHttpClientWithProxy(url);
+        HttpHead head = new HttpHead(url);
+        try {
+            HttpResponse response = client.execute(head);
+
+            if (response.getStatusLine().getStatusCode() != 200
+                    || !"bytes".equalsIgnoreCase(getHeader(response, "Accept-Ranges"))
+                    || getHeader(response, "Content-Encoding") != null) {
+                return null;
+            }
+
+            long length = Long.parseLong(getHeader(response, "Content-Length"));
+            if (length <= segmentSize) {
+                return null;
+            }
+
+            // If-Range only accepts strong entity tags
+            String validator = getHeader(response, "ETag");
+            if (validator == null || validator.startsWith("W/")) {
+                validator = getHeader(response, "Last-Modified");
+            }
+
+            return new Probe(length, validator);
+
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.warning("unable to probe " + url + " for range requests: " + e.getMessage());
+            return null;
+        } finally {
+            head.releaseConnection();
+        }
+    }
+
+    /**
+     * Downloads the resource into the file, which is neither truncated nor
+     * extended beyond the resource length, so that it may be a block device.
+     * Returns the number of bytes ("BYTES") and their digest ("SHA-1").
+     *
+     * @throws RangesUnsupportedException
+     *             if the server ignores a range request or the resource
+     *             changed since the probe; streaming it may still work
+     */
+    public Map<String, BigInteger> download(String url, File file, Probe probe) throws IOException {
+
+        long length = probe.getLength();
+        int segments = (int) ((length + segmentSize - 1) / segmentSize);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(connections, segments),
+                new DownloadThreadFactory());
+
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = output.getChannel();
+
+            List<Future<Long>> results = new ArrayList<Future<Long>>(segments);
+            for (long start = 0; start < length; start += segmentSize) {
+                long end = Math.min(start + segmentSize, length) - 1;
+                results.add(pool.submit(new Segment(url, probe.getValidator(), channel, start, end)));
+            }
+
+            try {
+                for (Future<Long> result : results) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("download of " + url + " interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("download of " + url + " failed: " + cause);
+            }
+
+            return digest(channel, length);
+
+        } finally {
+            pool.shutdownNow();
+            FileUtils.closeIgnoringError(output);
+        }
+    }
+
+    private static Map<String, BigInteger> digest(FileChannel channel, long length) throws IOException {
+
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(FileUtils.COPY_BUFFER_SIZE);
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("downloaded file is shorter than " + length + " bytes");
+            }
+            buffer.flip();
+            sha1.update(buffer);
+            position += n;
+        }
+
+        Map<String, BigInteger> info = new HashMap<String, BigInteger>();
+        info.put("BYTES", BigInteger.valueOf(length));
+        info.put("SHA-1", new BigInteger(1, sha1.digest()));
+        return info;
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return (header != null) ? header.getValue() : null;
+    }
+
+    private class Segment implements Callable<Long> {
+
+        private final String url;
+        private final String validator;
+        private final FileChannel channel;
+        private final long end;
+
+        private long position;
+
+        Segment(String url, String validator, FileChannel channel, long start, long end) {
+            this.url = url;
+            this.validator = validator;
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        public Long call() throws Exception {
+
+            int failures = 0;
+            while (position <= end) {
+                try {
+                    fetch();
+                } catch (RangesUnsupportedException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (++failures > retries || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    LOGGER.warning("retrying range " + position + "-" + end + " of " + url + ": "
+                            + e.getMessage());
+                    Thread.sleep(RETRY_DELAY * failures);
+                }
+            }
+            return position;
+        }
+
+        private void fetch() throws IOException {
+
+            DefaultHttpClient client = DownloadUtils.getHttpClientWithProxy(url);
+            HttpConnectionParams.setSoTimeout(client.getParams(), SOCKET_TIMEOUT);
+
+            HttpGet get = new HttpGet(url);
+            get.addHeader("Range", "bytes=" + position + "-" + end);
+            if (validator != null) {
+                get.addHeader("If-Range", validator);
+            }
+
+            InputStream in = null;
+            boolean completed = false;
+            try {
+                HttpResponse response = client.execute(get);
+
+                String range = getHeader(response, "Content-Range");
+                if (response.getStatusLine().getStatusCode() != 206 || range == null
+                        || !range.startsWith("bytes " + position + "-")) {
+                    throw new RangesUnsupportedException("server did not honour range " + position + "-" + end
+                            + " of " + url + ": " + response.getStatusLine());
+                }
+
+                in = response.getEntity().getContent();
+                copy(in);
+
+                if (position <= end) {
+                    throw new EOFException("connection closed before the end of the range");
+                }
+                completed = true;
+
+            } finally {
+                // The rest of a failed response is not worth reading just to
+                // keep its connection.
+                if (!completed) {
+                    get.abort();
+                }
+                FileUtils.closeIgnoringError(in);
+            }
+        }
+
+        private void copy(InputStream in) throws IOException {
+            byte[] buffer = new byte[SEGMENT_BUFFER_SIZE];
+            int n;
+            while (position <= end && (n = in.read(buffer)) >= 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("download of " + url + " cancelled");
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, (int) Math.min(n, end - position + 1));
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+            }
+        }
+    }
+
+    /**
+     * Result of a successful probe: the resource length and the validator
+     * (entity tag or modification date) used to detect changes.
+     */
+    public static final class Probe {
+
+        private final long length;
+        private final String validator;
+
+        public Probe(long length, String validator) {
+            this.length = length;
+            this.validator = validator;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getValidator() {
+            return validator;
+        }
+    }
+
+    public static final class RangesUnsupportedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public RangesUnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class DownloadThreadFactory implements ThreadFactory {
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ranged-download-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package eu.stratuslab.storage.disk.utils;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+/**
+ * Request refused because the service is overloaded. The client is told to
+ * retry after the given number of seconds.
+ */
+public class RetryLaterException extends ResourceException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfter;
+
+    public RetryLaterException(String message, int retryAfter) {
+        super(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, message);
+        this.retryAfter = retryAfter;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+}
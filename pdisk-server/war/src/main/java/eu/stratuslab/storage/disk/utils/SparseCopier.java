@@ -0,0 +1,346 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
+
+/**
+ * Copies images into volumes without writing their zero blocks. Disk images
+ * are mostly empty, and writing the zeros is slow and allocates the whole of
+ * a thin-provisioned volume.
+ *
+ * Skipping a block is only correct if the destination already reads as zero
+ * there. This holds for the files the copier creates, where the skipped
+ * blocks become holes. Existing files (such as the volumes of the file
+ * backend) are never truncated, as they may be larger than the image: a zero
+ * block is only written where the file does not read as zero already, and
+ * so is the part of the file beyond the image. Zero blocks are written to
+ * block devices unless the volumes are known to be created zeroed (thin LVM
+ * or NetApp LUNs).
+ */
+public final class SparseCopier {
+
+    public interface Progress {
+        void copied(long position, long total);
+    }
+
+    // Granularity of the zero detection: the usual filesystem block size
+    private static final int CHUNK_SIZE = 4096;
+
+    private static final AtomicLong copies = new AtomicLong();
+    private static final AtomicLong bytesWritten = new AtomicLong();
+    private static final AtomicLong bytesSkipped = new AtomicLong();
+
+    private static SparseCopier instance = null;
+
+    static {
+        Statistics.register("copies", new Statistics.Source() {
+            public Map<String, Object> getStatistics() {
+                Map<String, Object> stats = new HashMap<String, Object>();
+                long written = bytesWritten.get();
+                long skipped = bytesSkipped.get();
+                stats.put("copies", copies.get());
+                stats.put("bytes_written", written);
+                stats.put("bytes_skipped", skipped);
+                stats.put("skipped_ratio", Statistics.ratio(skipped, written + skipped));
+                return stats;
+            }
+        });
+    }
+
+    private final int blockSize;
+    private final long maxBytesPerSecond;
+    private final boolean zeroedDevices;
+
+    /**
+     * Creates a copier reading blocks of blockSize bytes, at most
+     * maxBytesPerSecond (0 for no limit). With zeroedDevices, zero blocks
+     * are skipped on block devices as well.
+     */
+    public SparseCopier(int blockSize, long maxBytesPerSecond, boolean zeroedDevices) {
+        if (blockSize % CHUNK_SIZE != 0) {
+            throw new IllegalArgumentException("block size must be a multiple of " + CHUNK_SIZE);
+        }
+        this.blockSize = blockSize;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.zeroedDevices = zeroedDevices;
+    }
+
+    public static synchronized SparseCopier getInstance() {
+        if (instance == null) {
+            ServiceConfiguration configuration = ServiceConfiguration.getInstance();
+            instance = new SparseCopier(FileUtils.COPY_BUFFER_SIZE, configuration.COPY_MAX_RATE * 1024L * 1024L,
+                    configuration.COPY_ZEROED_VOLUMES);
+        }
+        return instance;
+    }
+
+    public void copy(File src, File dst) throws IOException {
+        copy(src, dst, null);
+    }
+
+    /**
+     * Copies the source over the destination, reporting the progress after
+     * each block if progress is not null. Returns the number of bytes
+     * actually written.
+     */
+    public long copy(File src, File dst, Progress progress) throws IOException {
+
+        boolean created = !dst.exists();
+        boolean regularFile = created || dst.isFile();
+        boolean skipZeros = regularFile || zeroedDevices;
+
+        FileInputStream in = new FileInputStream(src);
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(dst, "rw");
+            long size = out.length();
+            ByteBuffer existing = (regularFile && !created) ? ByteBuffer.allocate(CHUNK_SIZE) : null;
+
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+
+            long total = source.size();
+            long written = 0L;
+            long start = System.currentTimeMillis();
+
+            ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+            long position = 0L;
+            while (position < total) {
+                int length = read(source, buffer, position, (int) Math.min(blockSize, total - position));
+                written += skipZeros ? writeNonZero(target, buffer, length, position, existing) : write(target,
+                        buffer, 0, length, position);
+                position += length;
+
+                throttle(start, position);
+                if (progress != null) {
+                    progress.copied(position, total);
+                }
+            }
+
+            if (regularFile) {
+                written += finishFile(out, existing, total, size);
+            }
+            target.force(false);
+
+            copies.incrementAndGet();
+            bytesWritten.addAndGet(written);
+            bytesSkipped.addAndGet(total - written);
+            return written;
+
+        } finally {
+            FileUtils.closeIgnoringError(in);
+            FileUtils.closeIgnoringError(out);
+        }
+    }
+
+    /**
+     * Copies the stream over the destination in the same way, and returns
+     * its size and SHA-1 digest like FileUtils.copyWithDigest. The copy
+     * fails as soon as more than maxBytes (if positive) have been read.
+     */
+    public Map<String, BigInteger> copyWithDigest(InputStream in, File dst, long maxBytes) throws IOException {
+
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        boolean created = !dst.exists();
+        boolean regularFile = created || dst.isFile();
+        boolean skipZeros = regularFile || zeroedDevices;
+
+        RandomAccessFile out = new RandomAccessFile(dst, "rw");
+        try {
+            long size = out.length();
+            ByteBuffer existing = (regularFile && !created) ? ByteBuffer.allocate(CHUNK_SIZE) : null;
+
+            FileChannel target = out.getChannel();
+
+            long written = 0L;
+            long start = System.currentTimeMillis();
+
+            byte[] block = new byte[blockSize];
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            long position = 0L;
+            int length;
+            while ((length = fill(in, block)) > 0) {
+                if (maxBytes > 0 && position + length > maxBytes) {
+                    throw new IOException("stream is longer than " + maxBytes + " bytes");
+                }
+                sha1.update(block, 0, length);
+                written += skipZeros ? writeNonZero(target, buffer, length, position, existing) : write(target,
+                        buffer, 0, length, position);
+                position += length;
+
+                throttle(start, position);
+                Job.reportProgress(position, -1L);
+            }
+
+            if (regularFile) {
+                written += finishFile(out, existing, position, size);
+            }
+            target.force(false);
+
+            copies.incrementAndGet();
+            bytesWritten.addAndGet(written);
+            bytesSkipped.addAndGet(position - written);
+
+            Map<String, BigInteger> info = new HashMap<String, BigInteger>();
+            info.put("BYTES", BigInteger.valueOf(position));
+            info.put("SHA-1", new BigInteger(1, sha1.digest()));
+            return info;
+
+        } finally {
+            FileUtils.closeIgnoringError(out);
+        }
+    }
+
+    // Reads a full block unless the stream ends first.
+    private static int fill(InputStream in, byte[] block) throws IOException {
+        int length = 0;
+        while (length < block.length) {
+            int n = in.read(block, length, block.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+
+    private static int read(FileChannel source, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("source shrank during copy");
+            }
+        }
+        return length;
+    }
+
+    // Extends a file to the end of the image, or clears what follows the
+    // image in an existing file that was larger. Returns the bytes written.
+    private static long finishFile(RandomAccessFile out, ByteBuffer existing, long end, long size)
+            throws IOException {
+        long written = 0L;
+        if (existing != null && size > end) {
+            written = zeroRange(out.getChannel(), existing, end, size);
+        }
+        if (size < end) {
+            // a trailing hole
+            out.setLength(end);
+        }
+        return written;
+    }
+
+    // Writes zeros over the chunks of the range that do not read as zero.
+    private static long zeroRange(FileChannel target, ByteBuffer existing, long from, long to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(CHUNK_SIZE);
+        long written = 0L;
+        for (long position = from; position < to; position += CHUNK_SIZE) {
+            int length = (int) Math.min(CHUNK_SIZE, to - position);
+            if (!readsAsZero(target, existing, position, length)) {
+                written += write(target, zeros, 0, length, position);
+            }
+        }
+        return written;
+    }
+
+    // Writes the runs of chunks of the block that are not zero, and with an
+    // existing buffer, the zero chunks where the target is not zero yet.
+    private static long writeNonZero(FileChannel target, ByteBuffer buffer, int length, long position,
+            ByteBuffer existing) throws IOException {
+        long written = 0L;
+        int run = -1;
+        for (int offset = 0; offset < length; offset += CHUNK_SIZE) {
+            int end = Math.min(offset + CHUNK_SIZE, length);
+            if (!isZero(buffer, offset, end)
+                    || (existing != null && !readsAsZero(target, existing, position + offset, end - offset))) {
+                if (run < 0) {
+                    run = offset;
+                }
+            } else if (run >= 0) {
+                written += write(target, buffer, run, offset, position);
+                run = -1;
+            }
+        }
+        if (run >= 0) {
+            written += write(target, buffer, run, length, position);
+        }
+        return written;
+    }
+
+    private static long write(FileChannel target, ByteBuffer buffer, int from, int to, long position)
+            throws IOException {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        while (slice.hasRemaining()) {
+            target.write(slice, position + slice.position());
+        }
+        return to - from;
+    }
+
+    // Reads a chunk of the target; data beyond its end reads as zero.
+    private static boolean readsAsZero(FileChannel target, ByteBuffer existing, long position, int length)
+            throws IOException {
+        existing.clear();
+        existing.limit(length);
+        while (existing.hasRemaining()) {
+            if (target.read(existing, position + existing.position()) < 0) {
+                break;
+            }
+        }
+        return isZero(existing, 0, existing.position());
+    }
+
+    static boolean isZero(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            if (buffer.getLong(i) != 0L) {
+                return false;
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Sleeps while the copy is ahead of the allowed rate.
+    private void throttle(long start, long copied) throws IOException {
+        if (maxBytesPerSecond <= 0) {
+            return;
+        }
+        long ahead = copied * 1000L / maxBytesPerSecond - (System.currentTimeMillis() - start);
+        if (ahead > 0) {
+            try {
+                Thread.sleep(ahead);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("copy interrupted");
+            }
+        }
+    }
+
+}
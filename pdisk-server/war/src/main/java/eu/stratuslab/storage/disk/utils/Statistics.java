@@ -0,0 +1,43 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Registry of the counters published by the service components. Each source
+ * provides a snapshot of its counters by name; the snapshots are rendered by
+ * the administration resource.
+ */
+public final class Statistics {
+
+    public interface Source {
+        Map<String, Object> getStatistics();
+    }
+
+    private static final Map<String, Source> SOURCES = new TreeMap<String, Source>();
+
+    private Statistics() {
+
+    }
+
+    public static synchronized void register(String name, Source source) {
+        SOURCES.put(name, source);
+    }
+
+    public static synchronized void unregister(String name) {
+        SOURCES.remove(name);
+    }
+
+    public static synchronized Map<String, Map<String, Object>> snapshot() {
+        Map<String, Map<String, Object>> snapshot = new TreeMap<String, Map<String, Object>>();
+        for (Map.Entry<String, Source> entry : SOURCES.entrySet()) {
+            snapshot.put(entry.getKey(), new TreeMap<String, Object>(entry.getValue().getStatistics()));
+        }
+        return snapshot;
+    }
+
+    public static double ratio(long part, long total) {
+        return (total == 0) ? 0.0 : ((double) part) / total;
+    }
+
+}
@@ -0,0 +1,143 @@
+package eu.stratuslab.storage.persistence;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+/**
+ * Free device targets of an instance, kept as a bitmap. The devices are
+ * numbered in allocation order: vdz down to vda first, as they always were,
+ * then vdaa, vdab, ... up to the configured maximum number of devices.
+ * 
+ * The methods are synchronized, but the allocator only reflects the mounts
+ * of the instance it was built from: callers hold the lock of the instance
+ * (see LockManager) between allocating and storing the mounts.
+ */
+public final class DeviceAllocator {
+
+	public static final String DEVICE_PREFIX = "vd";
+
+	private static final int LETTERS = 26;
+
+	// Longer names are not devices of ours (and would overflow the index)
+	private static final int MAX_SUFFIX_LENGTH = 4;
+
+	private final int maxDevices;
+
+	private final BitSet used = new BitSet();
+
+	public DeviceAllocator(int maxDevices) {
+		if (maxDevices < 1) {
+			throw new IllegalArgumentException("maxDevices must be positive: " + maxDevices);
+		}
+		this.maxDevices = maxDevices;
+	}
+
+	/**
+	 * Marks the device as used. Returns false if it is not a device name the
+	 * allocator hands out.
+	 */
+	public synchronized boolean markUsed(String device) {
+		int index = indexOf(device);
+		if (index < 0) {
+			return false;
+		}
+		used.set(index);
+		return true;
+	}
+
+	public synchronized void release(String device) {
+		int index = indexOf(device);
+		if (index >= 0) {
+			used.clear(index);
+		}
+	}
+
+	public synchronized boolean isUsed(String device) {
+		int index = indexOf(device);
+		return index >= 0 && used.get(index);
+	}
+
+	public String allocate() {
+		return allocate(1).get(0);
+	}
+
+	/**
+	 * Allocates count free devices at once, so that a batch of disks is
+	 * either given all its targets or none.
+	 */
+	public synchronized List<String> allocate(int count) {
+
+		List<Integer> free = new ArrayList<Integer>(count);
+		for (int index = used.nextClearBit(0); index < maxDevices && free.size() < count; index = used
+				.nextClearBit(index + 1)) {
+			free.add(index);
+		}
+
+		if (free.size() < count) {
+			if (count == 1) {
+				throw new ResourceException(Status.CLIENT_ERROR_CONFLICT, "no free devices available");
+			}
+			throw new ResourceException(Status.CLIENT_ERROR_CONFLICT, "not enough free devices available: "
+					+ free.size() + " free, " + count + " requested");
+		}
+
+		List<String> devices = new ArrayList<String>(count);
+		for (int index : free) {
+			used.set(index);
+			devices.add(deviceName(index));
+		}
+		return devices;
+	}
+
+	public synchronized int getFreeCount() {
+		int count = maxDevices - used.get(0, maxDevices).cardinality();
+		return Math.max(0, count);
+	}
+
+	/**
+	 * Name of the device allocated in the given position: vdz for 0, vda
+	 * for 25, vdaa for 26.
+	 */
+	public static String deviceName(int index) {
+		// Position in the usual order of the names: vda, ..., vdz, vdaa, ...
+		int n = (index < LETTERS) ? LETTERS - 1 - index : index;
+
+		StringBuilder suffix = new StringBuilder();
+		for (n++; n > 0; n /= LETTERS) {
+			n--;
+			suffix.insert(0, (char) ('a' + n % LETTERS));
+		}
+		return DEVICE_PREFIX + suffix;
+	}
+
+	/**
+	 * Position of the device in the allocation order, or -1 if the name is
+	 * not a device of this form.
+	 */
+	public static int indexOf(String device) {
+		if (device == null || !device.startsWith(DEVICE_PREFIX)) {
+			return -1;
+		}
+		String suffix = device.substring(DEVICE_PREFIX.length());
+		if (suffix.length() == 0 || suffix.length() > MAX_SUFFIX_LENGTH) {
+			return -1;
+		}
+
+		int n = 0;
+		for (int i = 0; i < suffix.length(); i++) {
+			char c = suffix.charAt(i);
+			if (c < 'a' || c > 'z') {
+				return -1;
+			}
+			n = n * LETTERS + (c - 'a' + 1);
+		}
+		n--;
+
+		return (n < LETTERS) ? LETTERS - 1 - n : n;
+	}
+
+}
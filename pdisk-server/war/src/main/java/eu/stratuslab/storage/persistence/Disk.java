@@ -8,7 +8,6 @@ import java.util.Map;
 
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
-import javax.persistence.EntityTransaction;
 import javax.persistence.FetchType;
 import javax.persistence.Id;
 import javax.persistence.MapKey;
@@ -16,7 +15,13 @@ import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.Query;
+import javax.persistence.QueryHint;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
+import org.hibernate.annotations.Index;
 import org.simpleframework.xml.ElementMap;
 
 import eu.stratuslab.storage.disk.resources.BaseResource.DiskVisibility;
@@ -24,12 +29,13 @@ import eu.stratuslab.storage.disk.utils.DiskUtils;
 import eu.stratuslab.storage.disk.utils.MiscUtils;
 
 @Entity
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @SuppressWarnings("serial")
 @NamedQueries({
-		@NamedQuery(name = "allDisks", query = "SELECT d FROM Disk d ORDER BY d.creation DESC"),
-		@NamedQuery(name = "allDisksByUser", query = "SELECT d FROM Disk d WHERE d.owner = :user ORDER BY d.creation DESC"),
-		@NamedQuery(name = "countAllDisksByIdentifier", query = "SELECT COUNT(d) FROM Disk d WHERE d.identifier = :identifier"),
-		@NamedQuery(name = "allDisksByIdentifier", query = "SELECT d FROM Disk d WHERE d.identifier = :identifier ORDER BY d.creation DESC") })
+		@NamedQuery(name = "countSnapshotsByIdentifier", query = "SELECT d.identifier, COUNT(d) FROM Disk d WHERE d.identifier LIKE 'snapshot:%' GROUP BY d.identifier", hints = @QueryHint(name = PersistenceUtil.CACHEABLE_HINT, value = "true")),
+		@NamedQuery(name = "countSnapshotsByIdentifiers", query = "SELECT d.identifier, COUNT(d) FROM Disk d WHERE d.identifier IN (:identifiers) GROUP BY d.identifier", hints = @QueryHint(name = PersistenceUtil.CACHEABLE_HINT, value = "true")),
+		@NamedQuery(name = "countAllDisksByIdentifier", query = "SELECT COUNT(d) FROM Disk d WHERE d.identifier = :identifier", hints = @QueryHint(name = PersistenceUtil.CACHEABLE_HINT, value = "true")),
+		@NamedQuery(name = "allDisksByIdentifier", query = "SELECT d FROM Disk d WHERE d.identifier = :identifier ORDER BY d.creation DESC", hints = @QueryHint(name = PersistenceUtil.CACHEABLE_HINT, value = "true")) })
 public class Disk implements Serializable {
 
 	public enum DiskType {
@@ -65,6 +71,11 @@ public class Disk implements Serializable {
 	public static final String DISK_SIZE_KEY = "size";
 	public static final String DISK_IDENTIFER_KEY = "Marketplace_id";
 
+	private static final String SNAPSHOT_IDENTIFIER_PREFIX = "snapshot:";
+
+	// Above this many listed disks, users are counted for all disks at once
+	private static final int MAX_IN_CLAUSE_SIZE = 500;
+
 	public static Disk load(String uuid) {
 		EntityManager em = PersistenceUtil.createEntityManager();
 		Disk disk = em.find(Disk.class, uuid);
@@ -73,13 +84,14 @@ public class Disk implements Serializable {
 	}
 
 	public Disk store() {
-		EntityManager em = PersistenceUtil.createEntityManager();
-		EntityTransaction transaction = em.getTransaction();
-		transaction.begin();
-		Disk obj = em.merge(this);
-		transaction.commit();
-		em.close();
-		return obj;
+		UnitOfWork work = UnitOfWork.begin();
+		try {
+			Disk obj = work.getEntityManager().merge(this);
+			work.commit();
+			return obj;
+		} finally {
+			work.end();
+		}
 	}
 
 	public void remove() {
@@ -87,46 +99,135 @@ public class Disk implements Serializable {
 	}
 
 	public static void remove(String uuid) {
-		EntityManager em = PersistenceUtil.createEntityManager();
-		EntityTransaction transaction = em.getTransaction();
-		transaction.begin();
-		Disk fromDb = em.find(Disk.class, uuid);
-		if (fromDb != null) {
-			em.remove(fromDb);
+		UnitOfWork work = UnitOfWork.begin();
+		try {
+			EntityManager em = work.getEntityManager();
+			Disk fromDb = em.find(Disk.class, uuid);
+			if (fromDb != null) {
+				em.remove(fromDb);
+			}
+			work.commit();
+		} finally {
+			work.end();
 		}
-		transaction.commit();
-		em.close();
 	}
 
-	@SuppressWarnings("unchecked")
 	public static List<DiskView> listAll() {
-		EntityManager em = PersistenceUtil.createEntityManager();
-		Query q = em.createNamedQuery("allDisks");
-		List<Disk> disks = q.getResultList();
-		List<DiskView> views = convertDisksToDiskViews(disks);
-		em.close();
-		return views;
+		return list(new DiskFilter());
 	}
 
-	@SuppressWarnings("unchecked")
 	public static List<DiskView> listAllByUser(String user) {
+		DiskFilter filter = new DiskFilter();
+		filter.setOwner(user);
+		return list(filter);
+	}
+
+	/**
+	 * Lists the disks matching the filter, newest first. The rows are
+	 * projected straight into views, so no Disk entity (and no mounts map)
+	 * is loaded.
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<DiskView> list(DiskFilter filter) {
+		List<String> conditions = new ArrayList<String>();
+		Map<String, Object> parameters = new HashMap<String, Object>();
+
+		if (filter.getType() != null) {
+			conditions.add("d.type = :type");
+			parameters.put("type", filter.getType());
+		}
+		if (filter.getOwner() != null) {
+			conditions.add("d.owner = :owner");
+			parameters.put("owner", filter.getOwner());
+		}
+		if (filter.getTag() != null) {
+			conditions.add("d.tag = :tag");
+			parameters.put("tag", filter.getTag());
+		}
+		if (filter.getIdentifier() != null) {
+			conditions.add("d.identifier = :identifier");
+			parameters.put("identifier", filter.getIdentifier());
+		}
+		if (filter.getQuarantined() != null) {
+			conditions.add(filter.getQuarantined() ? "d.quarantine <> ''" : "d.quarantine = ''");
+		}
+		if (filter.getAfterCreation() != null) {
+			conditions.add("(d.creation < :afterCreation OR (d.creation = :afterCreation AND d.uuid < :afterUuid))");
+			parameters.put("afterCreation", filter.getAfterCreation());
+			parameters.put("afterUuid", filter.getAfterUuid());
+		}
+
+		StringBuilder jpql = new StringBuilder("SELECT NEW eu.stratuslab.storage.persistence.DiskView("
+				+ "d.uuid, d.tag, d.size, d.owner, d.quarantine, d.identifier, d.type, d.creation) FROM Disk d");
+		if (!conditions.isEmpty()) {
+			jpql.append(" WHERE ").append(MiscUtils.join(conditions, " AND "));
+		}
+		jpql.append(" ORDER BY d.creation DESC, d.uuid DESC");
+
 		EntityManager em = PersistenceUtil.createEntityManager();
-		Query q = em.createNamedQuery("allDisksByUser");
-		q.setParameter("user", user);
-		List<Disk> disks = q.getResultList();
-		List<DiskView> views = convertDisksToDiskViews(disks);
+		Query q = em.createQuery(jpql.toString());
+		for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+			q.setParameter(parameter.getKey(), parameter.getValue());
+		}
+		q.setHint(PersistenceUtil.CACHEABLE_HINT, true);
+		if (filter.getLimit() > 0) {
+			q.setMaxResults(filter.getLimit());
+		}
+		List<DiskView> views = q.getResultList();
+		setUsersCounts(em, views);
 		em.close();
 		return views;
 	}
 
-	private static List<DiskView> convertDisksToDiskViews(List<Disk> disks) {
-		List<DiskView> views = new ArrayList<DiskView>();
-		for (Disk d : disks) {
-			views.add(new DiskView(d.getUuid(), d.getTag(), d.getSize(), d
-					.getUsersCount(), d.getOwner(), d.getQuarantine(), d
-					.getIdentifier()));
+	// The users of an origin are its snapshots, those of other disks their
+	// mounts. Both are counted with one aggregate query each, restricted to
+	// the listed disks unless there are too many of them for an IN clause.
+	private static void setUsersCounts(EntityManager em, List<DiskView> views) {
+		List<String> snapshotIdentifiers = new ArrayList<String>();
+		List<String> mountedUuids = new ArrayList<String>();
+		for (DiskView view : views) {
+			if (view.getType() == DiskType.MACHINE_IMAGE_ORIGIN) {
+				snapshotIdentifiers.add(SNAPSHOT_IDENTIFIER_PREFIX + view.getUuid());
+			} else {
+				mountedUuids.add(view.getUuid());
+			}
 		}
-		return views;
+
+		Map<String, Integer> snapshotCounts = countByKey(em, "countSnapshotsByIdentifier",
+				"countSnapshotsByIdentifiers", "identifiers", snapshotIdentifiers);
+		Map<String, Integer> mountCounts = countByKey(em, "countMountsByDisk", "countMountsByDisks", "uuids",
+				mountedUuids);
+
+		for (DiskView view : views) {
+			Integer count;
+			if (view.getType() == DiskType.MACHINE_IMAGE_ORIGIN) {
+				count = snapshotCounts.get(SNAPSHOT_IDENTIFIER_PREFIX + view.getUuid());
+			} else {
+				count = mountCounts.get(view.getUuid());
+			}
+			view.setUsersClount((count == null) ? 0 : count);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Integer> countByKey(EntityManager em, String allQuery, String inQuery,
+			String parameter, List<String> keys) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		if (keys.isEmpty()) {
+			return counts;
+		}
+
+		Query q;
+		if (keys.size() > MAX_IN_CLAUSE_SIZE) {
+			q = em.createNamedQuery(allQuery);
+		} else {
+			q = em.createNamedQuery(inQuery);
+			q.setParameter(parameter, keys);
+		}
+		for (Object[] row : (List<Object[]>) q.getResultList()) {
+			counts.put((String) row[0], ((Long) row[1]).intValue());
+		}
+		return counts;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -145,7 +246,7 @@ public class Disk implements Serializable {
 	public static int countSnapshots(String uuid) {
 		EntityManager em = PersistenceUtil.createEntityManager();
 		Query q = em.createNamedQuery("countAllDisksByIdentifier");
-		q.setParameter("identifier", "snapshot:" + uuid);
+		q.setParameter("identifier", SNAPSHOT_IDENTIFIER_PREFIX + uuid);
 		long count = (Long) q.getSingleResult();
 		em.close();
 		return (int) count;
@@ -166,10 +267,12 @@ public class Disk implements Serializable {
 	@Id
 	private String uuid;
 
+	@Index(name = "disk_owner_idx")
 	private String owner = "";
 	private ArrayList<String> group_ = new ArrayList<String>();
 	private DiskVisibility visibility = DiskVisibility.PRIVATE;
 
+	@Index(name = "disk_creation_idx")
 	private String creation = MiscUtils.getTimestamp();
 	private String deletion = ""; // deleted timestamp
 
@@ -177,6 +280,7 @@ public class Disk implements Serializable {
 	private long size = -1;
 	private String quarantine = ""; // quarantine start date
 
+	@Index(name = "disk_identifier_idx")
 	private String identifier = ""; // Marketplace identifier
 
 	private String homeUrl = ""; // Marketplace url
@@ -189,6 +293,7 @@ public class Disk implements Serializable {
 
 	@MapKey(name = "id")
 	@OneToMany(mappedBy = "disk", fetch = FetchType.EAGER)
+	@Fetch(FetchMode.SUBSELECT)
 	@ElementMap(name = "mounts", required = false, data = true, valueType = Mount.class)
 	private Map<String, Mount> mounts = new HashMap<String, Mount>(); // key is
 																		// vmId
@@ -0,0 +1,97 @@
+package eu.stratuslab.storage.persistence;
+
+import eu.stratuslab.storage.persistence.Disk.DiskType;
+
+/**
+ * Criteria of a disk listing. Null criteria are not applied. Listings are
+ * ordered from the newest disk to the oldest; a page starts after the
+ * (creation, uuid) cursor of the last disk of the previous page.
+ */
+public class DiskFilter {
+
+	private static final String CURSOR_SEPARATOR = "|";
+
+	private DiskType type = null;
+	private String owner = null;
+	private String tag = null;
+	private String identifier = null;
+	private Boolean quarantined = null;
+
+	private String afterCreation = null;
+	private String afterUuid = null;
+
+	private int limit = 0; // no limit
+
+	public static String cursorOf(DiskView disk) {
+		return disk.getCreation() + CURSOR_SEPARATOR + disk.getUuid();
+	}
+
+	public DiskType getType() {
+		return type;
+	}
+
+	public void setType(DiskType type) {
+		this.type = type;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public void setOwner(String owner) {
+		this.owner = owner;
+	}
+
+	public String getTag() {
+		return tag;
+	}
+
+	public void setTag(String tag) {
+		this.tag = tag;
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	public void setIdentifier(String identifier) {
+		this.identifier = identifier;
+	}
+
+	public Boolean getQuarantined() {
+		return quarantined;
+	}
+
+	public void setQuarantined(Boolean quarantined) {
+		this.quarantined = quarantined;
+	}
+
+	public String getAfterCreation() {
+		return afterCreation;
+	}
+
+	public String getAfterUuid() {
+		return afterUuid;
+	}
+
+	/**
+	 * Sets the cursor returned by cursorOf for the last disk already seen.
+	 */
+	public void setAfter(String cursor) {
+		int separator = cursor.lastIndexOf(CURSOR_SEPARATOR);
+		if (separator < 0) {
+			throw new IllegalArgumentException("invalid cursor: " + cursor);
+		}
+		afterCreation = cursor.substring(0, separator);
+		afterUuid = cursor.substring(separator + 1);
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+}
@@ -24,6 +24,10 @@ public class DiskView {
 
 	private String identifier;
 
+	private Disk.DiskType type;
+
+	private String creation;
+
 	public DiskView(String uuid, String tag, long size, int usersCount,
 			String owner, String quarantine, String identifier) {
 		this.uuid = uuid;
@@ -35,6 +39,15 @@ public class DiskView {
 		this.setIdentifier(identifier);
 	}
 
+	// Used by the listing projection; the users count is filled in afterwards.
+	public DiskView(String uuid, String tag, long size, String owner,
+			String quarantine, String identifier, Disk.DiskType type,
+			String creation) {
+		this(uuid, tag, size, 0, owner, quarantine, identifier);
+		this.type = type;
+		this.creation = creation;
+	}
+
 	@Root(name = "list")
 	public static class DiskViewList {
 
@@ -94,4 +107,12 @@ public class DiskView {
 		return identifier;
 	}
 
+	public Disk.DiskType getType() {
+		return type;
+	}
+
+	public String getCreation() {
+		return creation;
+	}
+
 }
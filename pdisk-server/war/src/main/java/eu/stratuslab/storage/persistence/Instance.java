@@ -8,7 +8,6 @@ import java.util.Map;
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
-import javax.persistence.EntityTransaction;
 import javax.persistence.FetchType;
 import javax.persistence.Id;
 import javax.persistence.MapKey;
@@ -16,22 +15,23 @@ import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.Query;
+import javax.persistence.QueryHint;
 
-import org.restlet.data.Status;
-import org.restlet.resource.ResourceException;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.simpleframework.xml.ElementMap;
 
+import eu.stratuslab.storage.disk.main.ServiceConfiguration;
 import eu.stratuslab.storage.disk.utils.MiscUtils;
 
 @SuppressWarnings("serial")
 @Entity
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @NamedQueries({
-	@NamedQuery(name = "allInstances", query = "SELECT NEW eu.stratuslab.storage.persistence.InstanceView(i.vmId, i.owner) FROM Instance i ORDER BY i.vmId DESC"),
-	@NamedQuery(name = "allInstancesByUser", query = "SELECT NEW eu.stratuslab.storage.persistence.InstanceView(i.vmId, i.owner) FROM Instance i WHERE i.owner = :user ORDER BY i.vmId DESC")})
+	@NamedQuery(name = "allInstances", query = "SELECT NEW eu.stratuslab.storage.persistence.InstanceView(i.vmId, i.owner) FROM Instance i ORDER BY i.vmId DESC", hints = @QueryHint(name = PersistenceUtil.CACHEABLE_HINT, value = "true")),
+	@NamedQuery(name = "allInstancesByUser", query = "SELECT NEW eu.stratuslab.storage.persistence.InstanceView(i.vmId, i.owner) FROM Instance i WHERE i.owner = :user ORDER BY i.vmId DESC", hints = @QueryHint(name = PersistenceUtil.CACHEABLE_HINT, value = "true"))})
 public class Instance implements Serializable {
 
-	private static final String DEVICE_PREFIX = "vd";
-
 	public static Instance load(String vmId) {
 		EntityManager em = PersistenceUtil.createEntityManager();
 		Instance disk = em.find(Instance.class, vmId);
@@ -59,13 +59,14 @@ public class Instance implements Serializable {
 	}
 
 	public Instance store() {
-		EntityManager em = PersistenceUtil.createEntityManager();
-		EntityTransaction transaction = em.getTransaction();
-		transaction.begin();
-		Instance obj = em.merge(this);
-		transaction.commit();
-		em.close();
-		return obj;
+		UnitOfWork work = UnitOfWork.begin();
+		try {
+			Instance obj = work.getEntityManager().merge(this);
+			work.commit();
+			return obj;
+		} finally {
+			work.end();
+		}
 	}
 
 	public void remove() {
@@ -73,15 +74,17 @@ public class Instance implements Serializable {
 	}
 
 	public static void remove(String vmId) {
-		EntityManager em = PersistenceUtil.createEntityManager();
-		EntityTransaction transaction = em.getTransaction();
-		transaction.begin();
-		Instance fromDb = em.find(Instance.class, vmId);
-		if (fromDb != null) {
-			em.remove(fromDb);
+		UnitOfWork work = UnitOfWork.begin();
+		try {
+			EntityManager em = work.getEntityManager();
+			Instance fromDb = em.find(Instance.class, vmId);
+			if (fromDb != null) {
+				em.remove(fromDb);
+			}
+			work.commit();
+		} finally {
+			work.end();
 		}
-		transaction.commit();
-		em.close();
 	}
 
 	public Instance() {
@@ -101,6 +104,9 @@ public class Instance implements Serializable {
 	
 	private String owner;
 
+	// Built from the mounts on first use
+	private transient DeviceAllocator allocator = null;
+
 	@MapKey(name = "id")
 	@OneToMany(mappedBy = "instance", cascade = CascadeType.ALL, fetch = FetchType.EAGER)
 	@ElementMap(name = "mounts", required = false, data = true, valueType = Mount.class)
@@ -119,34 +125,37 @@ public class Instance implements Serializable {
 		return vmId;
 	}
 
-	public String nextDiskTarget(String vmId) {
-
-		String nextTarget = null;
-
-		for (char driveLetter = 'z'; driveLetter >= 'a'; driveLetter--) {
-			String device = DEVICE_PREFIX + driveLetter;
-			if (containsDevice(device)) {
-				continue;
-			}
-			nextTarget = device;
-			break;
-		}
+	/**
+	 * Allocates the next free device of the instance.
+	 */
+	public String nextDiskTarget() {
+		return getDeviceAllocator().allocate();
+	}
 
-		if (nextTarget == null) {
-			throw new ResourceException(Status.CLIENT_ERROR_CONFLICT,
-					"no free devices available");
-		}
+	/**
+	 * Allocates count free devices at once, so that a batch of disks is
+	 * either given all its targets or none.
+	 */
+	public List<String> nextDiskTargets(int count) {
+		return getDeviceAllocator().allocate(count);
+	}
 
-		return nextTarget;
+	/**
+	 * Makes a device allocated by this object available again, when the disk
+	 * could not be attached.
+	 */
+	public void releaseDiskTarget(String device) {
+		getDeviceAllocator().release(device);
 	}
 
-	private boolean containsDevice(String device) {
-		for (String mount : mounts.keySet()) {
-			if (device.equals(mounts.get(mount).getDevice())) {
-				return true;
+	private synchronized DeviceAllocator getDeviceAllocator() {
+		if (allocator == null) {
+			allocator = new DeviceAllocator(ServiceConfiguration.getInstance().HOTPLUG_MAX_DEVICES);
+			for (Mount mount : mounts.values()) {
+				allocator.markUsed(mount.getDevice());
 			}
 		}
-		return false;
+		return allocator;
 	}
 
 	public void setTimestamp(String timestamp) {
@@ -1,32 +1,34 @@
 package eu.stratuslab.storage.persistence;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
-import javax.persistence.EntityTransaction;
 import javax.persistence.FetchType;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.Query;
+import javax.persistence.QueryHint;
 
-import org.restlet.data.Status;
-import org.restlet.resource.ResourceException;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import eu.stratuslab.storage.disk.utils.MiscUtils;
 
 @SuppressWarnings("serial")
 @Entity
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @NamedQueries({
-	@NamedQuery(name = "allMounts", query = "SELECT m FROM eu.stratuslab.storage.persistence.Mount m ORDER BY m.device DESC"),
-	@NamedQuery(name = "mounts", query = "SELECT m FROM eu.stratuslab.storage.persistence.Mount m WHERE m.uuid = :uuid ORDER BY m.device")})
+	@NamedQuery(name = "allMounts", query = "SELECT m FROM eu.stratuslab.storage.persistence.Mount m ORDER BY m.device DESC", hints = @QueryHint(name = PersistenceUtil.CACHEABLE_HINT, value = "true")),
+	@NamedQuery(name = "countMountsByDisk", query = "SELECT m.uuid, COUNT(m) FROM eu.stratuslab.storage.persistence.Mount m GROUP BY m.uuid", hints = @QueryHint(name = PersistenceUtil.CACHEABLE_HINT, value = "true")),
+	@NamedQuery(name = "countMountsByDisks", query = "SELECT m.uuid, COUNT(m) FROM eu.stratuslab.storage.persistence.Mount m WHERE m.uuid IN (:uuids) GROUP BY m.uuid", hints = @QueryHint(name = PersistenceUtil.CACHEABLE_HINT, value = "true")),
+	@NamedQuery(name = "mounts", query = "SELECT m FROM eu.stratuslab.storage.persistence.Mount m WHERE m.uuid = :uuid ORDER BY m.device", hints = @QueryHint(name = PersistenceUtil.CACHEABLE_HINT, value = "true"))})
 public class Mount implements Serializable {
 
-	private static final String DEVICE_PREFIX = "vd";
-
 	public static Mount load(String id) {
 		EntityManager em = PersistenceUtil.createEntityManager();
 		Mount mount = em.find(Mount.class, id);
@@ -46,13 +48,30 @@ public class Mount implements Serializable {
 	}
 
 	public Mount store() {
-		EntityManager em = PersistenceUtil.createEntityManager();
-		EntityTransaction transaction = em.getTransaction();
-		transaction.begin();
-		Mount obj = em.merge(this);
-		transaction.commit();
-		em.close();
-		return obj;
+		UnitOfWork work = UnitOfWork.begin();
+		try {
+			Mount obj = work.getEntityManager().merge(this);
+			work.commit();
+			return obj;
+		} finally {
+			work.end();
+		}
+	}
+
+	/**
+	 * Stores the instance and its new mounts in a single transaction.
+	 */
+	public static void store(Instance instance, Collection<Mount> mounts) {
+		UnitOfWork work = UnitOfWork.begin();
+		try {
+			instance.store();
+			for (Mount mount : mounts) {
+				mount.store();
+			}
+			work.commit();
+		} finally {
+			work.end();
+		}
 	}
 
 	public void remove() {
@@ -60,15 +79,32 @@ public class Mount implements Serializable {
 	}
 
 	public static void remove(String id) {
-		EntityManager em = PersistenceUtil.createEntityManager();
-		EntityTransaction transaction = em.getTransaction();
-		transaction.begin();
-		Mount fromDb = em.find(Mount.class, id);
-		if (fromDb != null) {
-			em.remove(fromDb);
+		UnitOfWork work = UnitOfWork.begin();
+		try {
+			EntityManager em = work.getEntityManager();
+			Mount fromDb = em.find(Mount.class, id);
+			if (fromDb != null) {
+				em.remove(fromDb);
+			}
+			work.commit();
+		} finally {
+			work.end();
+		}
+	}
+
+	/**
+	 * Removes the mounts in a single transaction.
+	 */
+	public static void remove(Collection<String> ids) {
+		UnitOfWork work = UnitOfWork.begin();
+		try {
+			for (String id : ids) {
+				remove(id);
+			}
+			work.commit();
+		} finally {
+			work.end();
 		}
-		transaction.commit();
-		em.close();
 	}
 
 	public Mount() {
@@ -124,27 +160,6 @@ public class Mount implements Serializable {
 		return disk;
 	}
 
-	public String nextDiskTarget(String vmId) {
-
-		String nextTarget = null;
-
-		for (char driveLetter = 'z'; driveLetter >= 'a'; driveLetter--) {
-			String device = DEVICE_PREFIX + driveLetter;
-			if (instance.getMounts().containsKey(device)) {
-				continue;
-			}
-			nextTarget = device;
-			break;
-		}
-
-		if (nextTarget == null) {
-			throw new ResourceException(Status.CLIENT_ERROR_CONFLICT,
-					"no free devices available");
-		}
-
-		return nextTarget;
-	}
-
 	public void setTimestamp(String timestamp) {
 		this.timestamp = timestamp;
 	}
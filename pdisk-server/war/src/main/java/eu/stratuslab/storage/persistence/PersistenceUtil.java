@@ -1,18 +1,43 @@
 package eu.stratuslab.storage.persistence;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 
+import org.hibernate.Cache;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+
+import eu.stratuslab.storage.disk.utils.Statistics;
+
 public class PersistenceUtil {
 
+	// Query hint making Hibernate keep the results in the query cache
+	public static final String CACHEABLE_HINT = "org.hibernate.cacheable";
+
+	public static final String ALL_REGIONS = "all";
+	public static final String QUERY_REGIONS = "queries";
+
+	private static final Class<?>[] CACHED_ENTITIES = { Disk.class, Instance.class, Mount.class };
+
 	private static final EntityManagerFactory emf = buildEntityManagerFactory();
 
+	static {
+		Statistics.register("hibernate_cache", new Statistics.Source() {
+			public Map<String, Object> getStatistics() {
+				return getCacheSummary();
+			}
+		});
+	}
+
 	private static EntityManagerFactory buildEntityManagerFactory() {
 		String persistenceUnit = System.getProperty("persistence.unit","hsqldb-mem-schema");
-		
+
 		try {
 			return Persistence.createEntityManagerFactory(persistenceUnit);
 		} catch (Exception ex) {
@@ -30,4 +55,96 @@ public class PersistenceUtil {
 		return getEntityManagerFactory().createEntityManager();
 	}
 
+	/**
+	 * Counters of each second-level cache region (entities and queries).
+	 */
+	public static Map<String, Map<String, Object>> getCacheStatistics() {
+		org.hibernate.stat.Statistics stats = getHibernateStatistics();
+
+		Map<String, Map<String, Object>> regions = new TreeMap<String, Map<String, Object>>();
+		for (String region : stats.getSecondLevelCacheRegionNames()) {
+			SecondLevelCacheStatistics regionStats = stats.getSecondLevelCacheStatistics(region);
+			if (regionStats == null) {
+				continue;
+			}
+			Map<String, Object> values = new HashMap<String, Object>();
+			long hits = regionStats.getHitCount();
+			long misses = regionStats.getMissCount();
+			values.put("hits", hits);
+			values.put("misses", misses);
+			values.put("hit_ratio", Statistics.ratio(hits, hits + misses));
+			values.put("puts", regionStats.getPutCount());
+			values.put("elements", regionStats.getElementCountInMemory());
+			values.put("bytes", regionStats.getSizeInMemory());
+			regions.put(region, values);
+		}
+		return regions;
+	}
+
+	private static Map<String, Object> getCacheSummary() {
+		org.hibernate.stat.Statistics stats = getHibernateStatistics();
+
+		Map<String, Object> values = new HashMap<String, Object>();
+		long hits = stats.getSecondLevelCacheHitCount();
+		long misses = stats.getSecondLevelCacheMissCount();
+		values.put("entity_hits", hits);
+		values.put("entity_misses", misses);
+		values.put("entity_hit_ratio", Statistics.ratio(hits, hits + misses));
+
+		long queryHits = stats.getQueryCacheHitCount();
+		long queryMisses = stats.getQueryCacheMissCount();
+		values.put("query_hits", queryHits);
+		values.put("query_misses", queryMisses);
+		values.put("query_hit_ratio", Statistics.ratio(queryHits, queryHits + queryMisses));
+
+		values.put("statements", stats.getPrepareStatementCount());
+		return values;
+	}
+
+	/**
+	 * Empties a cache region: the name of a cached entity class, "queries"
+	 * for all query results or "all" for everything.
+	 */
+	public static void evictCacheRegion(String region) {
+		Cache cache = getHibernateFactory().getSessionFactory().getCache();
+
+		if (ALL_REGIONS.equals(region)) {
+			cache.evictEntityRegions();
+			cache.evictCollectionRegions();
+			cache.evictDefaultQueryRegion();
+			cache.evictQueryRegions();
+			return;
+		}
+
+		if (QUERY_REGIONS.equals(region)) {
+			cache.evictDefaultQueryRegion();
+			cache.evictQueryRegions();
+			return;
+		}
+
+		for (Class<?> entity : CACHED_ENTITIES) {
+			if (entity.getName().equals(region)) {
+				cache.evictEntityRegion(entity);
+				return;
+			}
+		}
+
+		throw new IllegalArgumentException("unknown cache region: " + region);
+	}
+
+	/**
+	 * Number of JDBC statements prepared since startup.
+	 */
+	public static long getStatementCount() {
+		return getHibernateStatistics().getPrepareStatementCount();
+	}
+
+	private static org.hibernate.stat.Statistics getHibernateStatistics() {
+		return getHibernateFactory().getSessionFactory().getStatistics();
+	}
+
+	private static HibernateEntityManagerFactory getHibernateFactory() {
+		return (HibernateEntityManagerFactory) emf;
+	}
+
 }
@@ -0,0 +1,121 @@
+package eu.stratuslab.storage.persistence;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+/**
+ * Groups the changes made by a request into one transaction. While a unit of
+ * work is open on the thread, the store() and remove() methods of the
+ * entities join it instead of committing on their own, and everything is
+ * flushed and committed once at the end. Units opened while another is open
+ * join the outer one, which alone commits.
+ *
+ * <pre>
+ * UnitOfWork work = UnitOfWork.begin();
+ * try {
+ *     disk.store();
+ *     mount.store();
+ *     work.commit();
+ * } finally {
+ *     work.end();
+ * }
+ * </pre>
+ *
+ * A unit ended without being committed is rolled back, and so is the outer
+ * unit it joined. The load() and list methods still read committed data in
+ * their own entity managers.
+ */
+public final class UnitOfWork {
+
+	private static final ThreadLocal<Context> CURRENT = new ThreadLocal<Context>();
+
+	private final Context context;
+
+	private boolean committed = false;
+	private boolean ended = false;
+
+	private UnitOfWork(Context context) {
+		this.context = context;
+	}
+
+	/**
+	 * Opens a unit of work on the thread, or joins the one already open.
+	 */
+	public static UnitOfWork begin() {
+		Context context = CURRENT.get();
+		if (context == null) {
+			context = new Context(PersistenceUtil.createEntityManager());
+			CURRENT.set(context);
+			context.transaction.begin();
+		}
+		context.depth++;
+		return new UnitOfWork(context);
+	}
+
+	public static boolean isActive() {
+		return CURRENT.get() != null;
+	}
+
+	public EntityManager getEntityManager() {
+		return context.em;
+	}
+
+	/**
+	 * Commits the transaction if this is the outermost unit; a joined unit
+	 * only records that its part succeeded.
+	 */
+	public void commit() {
+		if (ended || committed) {
+			throw new IllegalStateException("unit of work already committed or ended");
+		}
+		committed = true;
+		if (context.depth == 1) {
+			if (context.rollbackOnly) {
+				throw new IllegalStateException("unit of work marked for rollback by a joined unit");
+			}
+			context.transaction.commit();
+		}
+	}
+
+	/**
+	 * Ends the unit, rolling back if it was not committed. Must be called in
+	 * a finally block.
+	 */
+	public void end() {
+		if (ended) {
+			return;
+		}
+		ended = true;
+
+		if (!committed) {
+			context.rollbackOnly = true;
+		}
+
+		context.depth--;
+		if (context.depth == 0) {
+			CURRENT.remove();
+			try {
+				if (context.transaction.isActive()) {
+					context.transaction.rollback();
+				}
+			} finally {
+				context.em.close();
+			}
+		}
+	}
+
+	private static final class Context {
+
+		private final EntityManager em;
+		private final EntityTransaction transaction;
+
+		private int depth = 0;
+		private boolean rollbackOnly = false;
+
+		Context(EntityManager em) {
+			this.em = em;
+			this.transaction = em.getTransaction();
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+<#include "/html/header.ftl">
+
+<#if errors??>
+  <ul class="error">
+    <#list errors as error>
+      <li>${error}.</li>
+    </#list>
+  </ul>
+</#if>
+
+<#if sources?has_content>
+  <#escape x as x?html>
+    <#list sources?keys as source>
+      <h2>${source}</h2>
+      <#assign values=sources[source]>
+      <table class="display">
+        <tbody>
+          <#list values?keys as key>
+            <tr>
+              <td>${key}</td>
+              <td class="center"><#if values[key]?is_number>${values[key]?c}<#else>${values[key]?string}</#if></td>
+            </tr>
+          </#list>
+        </tbody>
+      </table>
+      <#if source?starts_with("eu.stratuslab.")>
+        <form action="${currenturl}" enctype="application/x-www-form-urlencoded" method="POST">
+          <input type="hidden" name="region" value="${source}"/>
+          <input type="submit" value="Flush"/>
+        </form>
+      </#if>
+    </#list>
+  </#escape>
+<#else>
+  <p>No cache regions.</p>
+</#if>
+
+<form action="${currenturl}" enctype="application/x-www-form-urlencoded" method="POST">
+  <input type="hidden" name="region" value="queries"/>
+  <input type="submit" value="Flush queries"/>
+</form>
+<form action="${currenturl}" enctype="application/x-www-form-urlencoded" method="POST">
+  <input type="hidden" name="region" value="all"/>
+  <input type="submit" value="Flush all"/>
+</form>
+
+<#include "/html/footer.ftl">
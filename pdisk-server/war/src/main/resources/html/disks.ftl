@@ -101,6 +101,9 @@
         </#list>
       </tbody>
     </table>
+    <#if next??>
+      <p><a href="${next}">Next page</a></p>
+    </#if>
   </#escape>
 <#else>
   <p>No disks.</p>
@@ -0,0 +1,43 @@
+
+<#function zebra index>
+  <#if (index % 2) == 0>
+    <#return "even" />
+  <#else>
+    <#return "odd" />
+  </#if>
+</#function>
+
+<#include "/html/header.ftl">
+
+<#if errors??>
+  <ul class="error">
+    <#list errors as error>
+      <li>${error}.</li>
+    </#list>
+  </ul>
+</#if>
+
+<p>Instance: ${vm_id}<#if node?has_content> on ${node}</#if></p>
+
+<#if mounts?has_content>
+	<table class="display">
+	  <thead>
+	    <tr>
+	      <th>Disk</th>
+	      <th>Device</th>
+	    </tr>
+	  </thead>
+	  <tbody>
+	    <#list mounts as mount>
+	      <tr class="${zebra(mount_index)}">
+	        <td><a href="${baseurl}disks/${mount.uuid}/mounts/${mount.id}/">${mount.uuid}</a></td>
+	        <td class="center">${mount.device}</td>
+	      </tr>
+	    </#list>
+	  </tbody>
+	</table>
+<#else>
+  <p>No mounts.</p>
+</#if>
+
+<#include "/html/footer.ftl">
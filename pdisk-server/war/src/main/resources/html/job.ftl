@@ -0,0 +1,29 @@
+<#include "/html/header.ftl">
+
+<#if errors??>
+  <ul class="error">
+    <#list errors as error>
+      <li>${error}.</li>
+    </#list>
+  </ul>
+</#if>
+
+<#escape x as x?html>
+  <table class="display">
+    <tbody>
+      <tr><td>Job</td><td>${job.id}</td></tr>
+      <tr><td>Type</td><td>${job.type}</td></tr>
+      <tr><td>State</td><td>${job.state}</td></tr>
+      <tr><td>Phase</td><td>${job.phase}</td></tr>
+      <tr><td>Progress</td><td>${job.bytesDone?c}<#if (job.bytesTotal >= 0)> / ${job.bytesTotal?c}</#if> bytes</td></tr>
+      <#if job.result??>
+      <tr><td>Disk</td><td><a href="${baseurl}disks/${job.result}">${job.result}</a></td></tr>
+      </#if>
+      <#if job.error??>
+      <tr><td>Error</td><td>${job.error} (${job.errorStatus?c})</td></tr>
+      </#if>
+    </tbody>
+  </table>
+</#escape>
+
+<#include "/html/footer.ftl">
@@ -0,0 +1,33 @@
+
+<#include "/html/header.ftl">
+
+<#if errors??>
+  <ul class="error">
+    <#list errors as error>
+      <li>${error}.</li>
+    </#list>
+  </ul>
+</#if>
+
+<#if sources?has_content>
+  <#escape x as x?html>
+    <#list sources?keys as source>
+      <h2>${source}</h2>
+      <#assign values=sources[source]>
+      <table class="display">
+        <tbody>
+          <#list values?keys as key>
+            <tr>
+              <td>${key}</td>
+              <td class="center"><#if values[key]?is_number>${values[key]?c}<#else>${values[key]?string}</#if></td>
+            </tr>
+          </#list>
+        </tbody>
+      </table>
+    </#list>
+  </#escape>
+<#else>
+  <p>No statistics.</p>
+</#if>
+
+<#include "/html/footer.ftl">
@@ -0,0 +1,12 @@
+{
+  "vm_id" : "${vm_id}",
+  "node" : "${node}",
+  "mounts" : [
+    <#list mounts as mount>
+    {
+      "uuid" : "${mount.uuid}",
+      "device" : "${mount.device}"
+    }<#if mount_has_next>,</#if>
+    </#list>
+  ]
+}
@@ -0,0 +1,8 @@
+[
+  <#list instances as instance>
+  {
+    "vm_id" : "${instance.vmId}",
+    "owner" : "${instance.owner}"
+  }<#if instance_has_next>,</#if>
+  </#list>
+]
@@ -0,0 +1,16 @@
+{
+  "id" : "${job.id}",
+  "type" : "${job.type}",
+  "state" : "${job.state}",
+  "phase" : "${job.phase?j_string}",
+  "bytes_done" : ${job.bytesDone?c},
+  "bytes_total" : ${job.bytesTotal?c},
+  <#if job.result??>
+  "result" : "${baseurl}disks/${job.result}",
+  </#if>
+  <#if job.error??>
+  "error" : "${job.error?j_string}",
+  "error_status" : ${job.errorStatus?c},
+  </#if>
+  "created" : ${job.created?c}
+}
@@ -0,0 +1,10 @@
+{
+  <#list sources?keys as source>
+  "${source}" : {
+    <#assign values=sources[source]>
+    <#list values?keys as key>
+    "${key}" : <#if values[key]?is_number>${values[key]?c}<#else>"${values[key]?string?j_string}"</#if><#if key_has_next>,</#if>
+    </#list>
+  }<#if source_has_next>,</#if>
+  </#list>
+}
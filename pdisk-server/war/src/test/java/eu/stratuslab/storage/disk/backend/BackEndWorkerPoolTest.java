@@ -0,0 +1,92 @@
+package eu.stratuslab.storage.disk.backend;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.disk.utils.CommandException;
+
+public class BackEndWorkerPoolTest {
+
+    // Minimal worker: replies with "<pid> <action> <last argument>", fails
+    // with status 3 for the action "fail" and never replies to "hang".
+    private static final String WORKER = "while read n; do "
+            + "read action; i=1; while [ $i -lt $n ]; do read arg; i=$((i+1)); done; "
+            + "[ \"$action\" = hang ] && sleep 60; "
+            + "out=\"$$ $action $arg\"; status=0; [ \"$action\" = fail ] && status=3; "
+            + "printf '%d %d\\n%s' $status ${#out} \"$out\"; done";
+
+    private static final List<String> COMMAND = Arrays.asList("/bin/sh", "-c", WORKER);
+
+    @Test
+    public void replyIsReturned() {
+        BackEndWorkerPool pool = new BackEndWorkerPool(COMMAND, 1, 10);
+        try {
+            String[] reply = pool.execute("getturl", "error", "a", "uuid").split(" ");
+            assertThat(reply[1], is("getturl"));
+            assertThat(reply[2], is("uuid"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void workerIsReused() {
+        BackEndWorkerPool pool = new BackEndWorkerPool(COMMAND, 1, 10);
+        try {
+            String first = pool.execute("map", "error", "uuid").split(" ")[0];
+            String second = pool.execute("map", "error", "uuid").split(" ")[0];
+            assertThat(second, is(first));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void workerIsRecycled() {
+        BackEndWorkerPool pool = new BackEndWorkerPool(COMMAND, 1, 1);
+        try {
+            String first = pool.execute("map", "error", "uuid").split(" ")[0];
+            String second = pool.execute("map", "error", "uuid").split(" ")[0];
+            assertTrue("worker not recycled", !first.equals(second));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = ResourceException.class)
+    public void failureRaisesError() {
+        BackEndWorkerPool pool = new BackEndWorkerPool(COMMAND, 1, 10);
+        try {
+            pool.execute("fail", "error", "uuid");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void silentWorkerIsKilledAndReplaced() {
+        BackEndWorkerPool pool = new BackEndWorkerPool(COMMAND, 1, 10, 1);
+        try {
+            String first = pool.execute("map", "error", "uuid").split(" ")[0];
+            try {
+                pool.execute("hang", "error", "uuid");
+                fail("no reply expected");
+            } catch (CommandException e) {
+                assertTrue("not reported as a timeout", e.isTimedOut());
+            }
+            String second = pool.execute("map", "error", "uuid").split(" ")[0];
+            assertTrue("worker not replaced", !first.equals(second));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
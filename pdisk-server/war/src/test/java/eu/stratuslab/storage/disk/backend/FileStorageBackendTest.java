@@ -0,0 +1,86 @@
+package eu.stratuslab.storage.disk.backend;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.restlet.resource.ResourceException;
+
+public class FileStorageBackendTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("pdisk", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void removeDirectory() {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void createdVolumeHasRequestedSize() {
+        FileStorageBackend backend = new FileStorageBackend(directory, false);
+        backend.create("a", 1);
+        assertThat(new File(directory, "a").length(), is(1024L * 1024L * 1024L));
+        backend.create("b", 4096);
+        assertThat(new File(directory, "b").length(), is(4096L));
+    }
+
+    @Test
+    public void turlPointsToVolume() {
+        FileStorageBackend backend = new FileStorageBackend(directory, false);
+        assertThat(backend.getTurl("a"), is("file://" + new File(directory, "a").getAbsolutePath()));
+    }
+
+    @Test
+    public void copyOnWriteVolumeHasBaseContents() throws IOException {
+        FileStorageBackend backend = new FileStorageBackend(directory, false);
+        backend.create("base", 8192);
+
+        RandomAccessFile base = new RandomAccessFile(new File(directory, "base"), "rw");
+        base.seek(4096);
+        base.write(42);
+        base.close();
+
+        backend.createCopyOnWrite("base", "cow", 8192);
+
+        RandomAccessFile cow = new RandomAccessFile(new File(directory, "cow"), "r");
+        assertThat(cow.length(), is(8192L));
+        cow.seek(4096);
+        assertThat(cow.read(), is(42));
+        cow.close();
+    }
+
+    @Test
+    public void deletedVolumeNoLongerExists() {
+        FileStorageBackend backend = new FileStorageBackend(directory, false);
+        backend.create("a", 4096);
+        backend.checkDiskExists("a");
+        backend.delete("a");
+        assertFalse(new File(directory, "a").exists());
+
+        try {
+            backend.checkDiskExists("a");
+            fail("volume should not exist");
+        } catch (ResourceException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package eu.stratuslab.storage.disk.backend;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import eu.stratuslab.storage.disk.utils.MiscUtils;
+
+public class TurlCacheTest {
+
+    @Test
+    public void cachedValueIsReturned() {
+        TurlCache cache = new TurlCache(10, 60000L);
+        assertNull(cache.get("a"));
+        cache.put("a", "iscsi://a");
+        assertThat(cache.get("a"), is("iscsi://a"));
+        assertThat((Long) cache.getStatistics().get("hits"), is(1L));
+        assertThat((Long) cache.getStatistics().get("misses"), is(1L));
+    }
+
+    @Test
+    public void invalidatedValueIsRemoved() {
+        TurlCache cache = new TurlCache(10, 60000L);
+        cache.put("a", "iscsi://a");
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void leastRecentlyUsedValueIsEvicted() {
+        TurlCache cache = new TurlCache(2, 60000L);
+        cache.put("a", "iscsi://a");
+        cache.put("b", "iscsi://b");
+        cache.get("a");
+        cache.put("c", "iscsi://c");
+        assertNull(cache.get("b"));
+        assertThat(cache.get("a"), is("iscsi://a"));
+        assertThat(cache.size(), is(2));
+    }
+
+    @Test
+    public void expiredValueIsRemoved() {
+        TurlCache cache = new TurlCache(10, 1L);
+        cache.put("a", "iscsi://a");
+        MiscUtils.sleep(10);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void lookupOverlappingInvalidationIsNotCached() {
+        TurlCache cache = new TurlCache(10, 60000L);
+        long generation = cache.getGeneration();
+        cache.invalidate("a");
+        cache.put("a", "iscsi://old", generation);
+        assertNull(cache.get("a"));
+
+        cache.put("a", "iscsi://new", cache.getGeneration());
+        assertThat(cache.get("a"), is("iscsi://new"));
+    }
+
+    @Test
+    public void invalidationOfOtherDiskDoesNotDropLookup() {
+        TurlCache cache = new TurlCache(10, 60000L);
+        long generation = cache.getGeneration();
+        cache.invalidate("a");
+        cache.put("b", "iscsi://b", generation);
+        assertThat(cache.get("b"), is("iscsi://b"));
+    }
+
+    @Test
+    public void forgottenInvalidationStillDropsLookup() {
+        TurlCache cache = new TurlCache(2, 60000L);
+        long generation = cache.getGeneration();
+        cache.invalidate("a");
+        cache.invalidate("b");
+        cache.invalidate("c");
+        cache.put("a", "iscsi://old", generation);
+        assertNull(cache.get("a"));
+    }
+
+}
@@ -0,0 +1,101 @@
+package eu.stratuslab.storage.disk.resources;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.restlet.data.Range;
+import org.restlet.data.Tag;
+
+import eu.stratuslab.storage.disk.utils.ExportCache;
+
+public class CachedExportRepresentationTest {
+
+    private final byte[] data = new byte[1000];
+
+    private File directory;
+    private CachedExportRepresentation export;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        directory = File.createTempFile("exports", "");
+        directory.delete();
+
+        ExportCache cache = new ExportCache(directory, 10000L, 60000L);
+        FileOutputStream out = new FileOutputStream(cache.getFile("disk"));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        export = new CachedExportRepresentation(cache.add("disk"));
+    }
+
+    @After
+    public void tearDown() {
+        export.release();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void writesWholeExport() throws IOException {
+        assertArrayEquals(data, write());
+    }
+
+    @Test
+    public void writesSelectedRanges() throws IOException {
+        assertTrue(export.selectRange(new Range(100, 50)));
+        assertArrayEquals(Arrays.copyOfRange(data, 100, 150), write());
+
+        assertTrue(export.selectRange(new Range(900, Range.SIZE_MAX)));
+        assertArrayEquals(Arrays.copyOfRange(data, 900, 1000), write());
+
+        assertTrue(export.selectRange(new Range(Range.INDEX_LAST, 10)));
+        assertArrayEquals(Arrays.copyOfRange(data, 990, 1000), write());
+
+        assertTrue(export.selectRange(new Range(990, 100)));
+        assertArrayEquals(Arrays.copyOfRange(data, 990, 1000), write());
+    }
+
+    @Test
+    public void rejectsRangesBeyondEnd() {
+        assertFalse(export.selectRange(new Range(1000, 10)));
+    }
+
+    @Test
+    public void matchesOnlyItsStrongTag() {
+        Tag tag = export.getTag();
+        assertFalse(tag.isWeak());
+
+        assertTrue(export.matches(null, null));
+        assertTrue(export.matches(new Tag(tag.getName(), false), null));
+        assertFalse(export.matches(new Tag(tag.getName(), true), null));
+        assertFalse(export.matches(new Tag("other", false), null));
+        assertTrue(export.matches(null, new Date(export.getModificationDate().getTime())));
+        assertFalse(export.matches(null, new Date(0L)));
+    }
+
+    private byte[] write() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        export.write(out);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,175 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterThresholdAndFailsFast() {
+        CircuitBreaker breaker = new CircuitBreaker("node:test", 2, 60000L, 1, 0L);
+        AtomicInteger runs = new AtomicInteger();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                breaker.call(failing(runs, true, 1));
+                fail("command did not fail");
+            } catch (CommandException e) {
+                assertTrue(e.isTimedOut());
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        try {
+            breaker.call(failing(runs, true, 1));
+            fail("open circuit let the call through");
+        } catch (RetryLaterException e) {
+            assertTrue(e.getRetryAfter() > 0);
+        }
+        assertEquals(2, runs.get());
+        assertEquals(1L, breaker.getStatistics().get("trips"));
+        assertEquals(1L, breaker.getStatistics().get("rejected"));
+    }
+
+    @Test
+    public void trialClosesHalfOpenCircuit() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("node:test", 1, 50L, 1, 0L);
+        AtomicInteger runs = new AtomicInteger();
+
+        try {
+            breaker.call(failing(runs, true, 1));
+            fail("command did not fail");
+        } catch (CommandException e) {
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(100L);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        assertEquals("ok", breaker.call(failing(runs, true, 0)));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void failedTrialReopensCircuit() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("node:test", 3, 50L, 1, 0L);
+        AtomicInteger runs = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                breaker.call(failing(runs, true, 1));
+            } catch (CommandException e) {
+            }
+        }
+        Thread.sleep(100L);
+
+        try {
+            breaker.call(failing(runs, true, 1));
+            fail("command did not fail");
+        } catch (CommandException e) {
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void connectionFailuresAreRetried() {
+        CircuitBreaker breaker = new CircuitBreaker("node:test", 5, 60000L, 3, 1L);
+        AtomicInteger runs = new AtomicInteger();
+
+        assertEquals("ok", breaker.call(failing(runs, false, 2)));
+        assertEquals(3, runs.get());
+        assertEquals(2L, breaker.getStatistics().get("retries"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getStatistics().get("failures"));
+    }
+
+    @Test
+    public void droppedConnectionsAreNotRetried() {
+        CircuitBreaker breaker = new CircuitBreaker("node:test", 5, 60000L, 3, 1L);
+        final AtomicInteger runs = new AtomicInteger();
+
+        try {
+            breaker.call(new Callable<String>() {
+                public String call() {
+                    runs.incrementAndGet();
+                    throw new CommandException("connection closed", 255, false, "started");
+                }
+            });
+            fail("command did not fail");
+        } catch (CommandException e) {
+            assertEquals(255, e.getExitCode());
+        }
+        assertEquals(1, runs.get());
+        assertEquals(1, breaker.getStatistics().get("failures"));
+    }
+
+    @Test
+    public void timeoutsAreNotRetried() {
+        CircuitBreaker breaker = new CircuitBreaker("node:test", 5, 60000L, 3, 1L);
+        AtomicInteger runs = new AtomicInteger();
+
+        try {
+            breaker.call(failing(runs, true, 1));
+            fail("command did not fail");
+        } catch (CommandException e) {
+        }
+        assertEquals(1, runs.get());
+        assertEquals(1, breaker.getStatistics().get("failures"));
+    }
+
+    @Test
+    public void commandErrorsDoNotOpenCircuit() {
+        CircuitBreaker breaker = new CircuitBreaker("node:test", 1, 60000L, 3, 1L);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                breaker.call(new Callable<String>() {
+                    public String call() {
+                        throw new CommandException("no such volume", 1, false, "");
+                    }
+                });
+                fail("command did not fail");
+            } catch (CommandException e) {
+                assertEquals(1, e.getExitCode());
+            }
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(3L, breaker.getStatistics().get("calls"));
+    }
+
+    @Test
+    public void resetClosesCircuit() {
+        CircuitBreaker breaker = new CircuitBreaker("node:test", 1, 60000L, 1, 0L);
+        try {
+            breaker.call(failing(new AtomicInteger(), true, 1));
+        } catch (CommandException e) {
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        breaker.reset();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    // Fails the given number of times, timing out or failing to connect.
+    private static Callable<String> failing(final AtomicInteger runs, final boolean timedOut, final int failures) {
+        final int start = runs.get();
+        return new Callable<String>() {
+            public String call() {
+                if (runs.incrementAndGet() - start <= failures) {
+                    if (timedOut) {
+                        throw new CommandException("node timed out", -1, true, "");
+                    }
+                    throw new CommandNotStartedException(new CommandException("cannot reach node", 255, false, ""));
+                }
+                return "ok";
+            }
+        };
+    }
+
+}
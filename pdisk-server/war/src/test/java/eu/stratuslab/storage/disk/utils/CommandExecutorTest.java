@@ -0,0 +1,87 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.stratuslab.storage.disk.utils.CommandExecutor.CommandClass;
+
+public class CommandExecutorTest {
+
+    private CommandExecutor executor;
+
+    @Before
+    public void createExecutor() {
+        executor = new CommandExecutor(16);
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void outputIsReturned() {
+        String output = executor.execute(CommandClass.OTHER, shell("echo hello"), "");
+        assertThat(output, is("hello\n"));
+    }
+
+    @Test
+    public void onlyTheTailOfTheOutputIsKept() {
+        String output = executor.execute(CommandClass.OTHER, shell("echo 0123456789; echo abcdefghij"), "");
+        assertThat(output, is("6789\nabcdefghij\n"));
+    }
+
+    @Test
+    public void failureReportsExitCode() {
+        try {
+            executor.execute(CommandClass.OTHER, shell("echo failed; exit 3"), "");
+            fail("command should have failed");
+        } catch (CommandException e) {
+            assertThat(e.getExitCode(), is(3));
+            assertThat(e.isTimedOut(), is(false));
+            assertThat(e.getOutput(), is("failed\n"));
+        }
+    }
+
+    @Test
+    public void probeReturnsExitCode() {
+        assertThat(executor.executeGetStatus(CommandClass.OTHER, shell("exit 0")), is(0));
+        assertThat(executor.executeGetStatus(CommandClass.OTHER, shell("echo no; exit 2")), is(2));
+    }
+
+    @Test
+    public void commandIsKilledAtDeadline() {
+        executor.configure(CommandClass.OTHER, 1, 1);
+        long start = System.currentTimeMillis();
+        try {
+            executor.execute(CommandClass.OTHER, shell("sleep 60"), "");
+            fail("command should have timed out");
+        } catch (CommandException e) {
+            assertThat(e.isTimedOut(), is(true));
+        }
+        assertTrue(System.currentTimeMillis() - start < 30000L);
+    }
+
+    @Test
+    public void concurrencyIsCapped() throws Exception {
+        executor.configure(CommandClass.COPY, 1, 0);
+        Future<String> first = executor.submit(CommandClass.COPY, shell("sleep 1; echo first"), "");
+        Future<String> second = executor.submit(CommandClass.COPY, shell("echo second"), "");
+
+        assertThat(second.get(), is("second\n"));
+        assertTrue(first.isDone());
+    }
+
+    private static ProcessBuilder shell(String script) {
+        return new ProcessBuilder("/bin/sh", "-c", script);
+    }
+
+}
@@ -0,0 +1,96 @@
+package eu.stratuslab.storage.disk.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Throughput of the in-process parallel compressor against the gzip command
+ * used before, on a partly compressible image. Run manually: it takes too
+ * long for the normal build.
+ */
+@Ignore
+public class CompressionBenchmark {
+
+    private static final String GZIP_CMD = "/usr/bin/gzip";
+
+    private static final int IMAGE_SIZE_MB = 512;
+
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+
+    @Test
+    public void compressionThroughput() throws Exception {
+        File image = createImage();
+        File compressed = File.createTempFile("benchmark", ".gz");
+        try {
+            long start = System.nanoTime();
+            Process gzip = new ProcessBuilder("/bin/sh", "-c",
+                    GZIP_CMD + " -f -c " + image.getAbsolutePath() + " > " + compressed.getAbsolutePath()).start();
+            gzip.waitFor();
+            report("gzip command", start, compressed);
+
+            for (int threads : THREADS) {
+                ParallelGzipCompressor compressor = new ParallelGzipCompressor(threads, 6,
+                        ParallelGzipCompressor.DEFAULT_BLOCK_SIZE);
+                InputStream in = new FileInputStream(image);
+                OutputStream out = new FileOutputStream(compressed);
+                try {
+                    start = System.nanoTime();
+                    compressor.compress(in, out);
+                } finally {
+                    in.close();
+                    out.close();
+                    compressor.shutdown();
+                }
+                report(threads + " thread(s)", start, compressed);
+            }
+        } finally {
+            image.delete();
+            compressed.delete();
+        }
+    }
+
+    private static void report(String name, long start, File compressed) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%s: %.0f MB/s, %d MB compressed", name, IMAGE_SIZE_MB / seconds,
+                compressed.length() / (1024 * 1024)));
+    }
+
+    // Random blocks alternating with runs of text and zeros, roughly like a
+    // filesystem image.
+    private static File createImage() throws IOException {
+        File image = File.createTempFile("benchmark", ".img");
+        Random random = new Random(0);
+        byte[] block = new byte[1024 * 1024];
+        OutputStream out = new FileOutputStream(image);
+        try {
+            for (int i = 0; i < IMAGE_SIZE_MB; i++) {
+                switch (i % 3) {
+                case 0:
+                    random.nextBytes(block);
+                    break;
+                case 1:
+                    for (int j = 0; j < block.length; j++) {
+                        block[j] = (byte) ('a' + random.nextInt(16));
+                    }
+                    break;
+                default:
+                    Arrays.fill(block, (byte) 0);
+                }
+                out.write(block);
+            }
+        } finally {
+            out.close();
+        }
+        return image;
+    }
+
+}
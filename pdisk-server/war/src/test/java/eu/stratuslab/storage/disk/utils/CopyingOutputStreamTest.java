@@ -0,0 +1,62 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CopyingOutputStreamTest {
+
+    private File part;
+    private File target;
+
+    @Before
+    public void setUp() throws IOException {
+        target = File.createTempFile("copy", ".gz");
+        target.delete();
+        part = new File(target.getAbsolutePath() + ".part");
+    }
+
+    @After
+    public void tearDown() {
+        part.delete();
+        target.delete();
+    }
+
+    @Test
+    public void committedCopyMatchesStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CopyingOutputStream copying = new CopyingOutputStream(out, part);
+        copying.write(new byte[] { 1, 2, 3 }, 0, 3);
+        copying.write(4);
+
+        assertTrue(copying.commit(target));
+        copying.close();
+
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, out.toByteArray());
+        assertEquals(4L, target.length());
+        assertFalse(part.exists());
+    }
+
+    @Test
+    public void closedCopyIsDropped() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CopyingOutputStream copying = new CopyingOutputStream(out, part);
+        copying.write(new byte[10], 0, 10);
+        copying.close();
+
+        assertFalse(copying.commit(target));
+        assertEquals(10, out.size());
+        assertFalse(part.exists());
+        assertFalse(target.exists());
+    }
+
+}
@@ -0,0 +1,124 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExportCacheTest {
+
+    private static final long TTL = 60000L;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("exports", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void addedExportsCanBePinned() throws IOException {
+        ExportCache cache = new ExportCache(directory, 100L, TTL);
+
+        assertNull(cache.pin("a"));
+        write(cache, "a", 10);
+        cache.add("a").release();
+
+        ExportCache.Pin pin = cache.pin("a");
+        assertNotNull(pin);
+        assertEquals(10L, pin.getFile().length());
+        pin.release();
+
+        assertEquals(1L, cache.getStatistics().get("hits"));
+        assertEquals(1L, cache.getStatistics().get("misses"));
+        assertEquals(10L, cache.getStatistics().get("bytes"));
+    }
+
+    @Test
+    public void leastRecentlyUsedExportsAreEvicted() throws IOException {
+        ExportCache cache = new ExportCache(directory, 100L, TTL);
+
+        write(cache, "a", 40);
+        cache.add("a").release();
+        write(cache, "b", 40);
+        cache.add("b").release();
+        cache.pin("a").release();
+        write(cache, "c", 40);
+        cache.add("c").release();
+
+        assertNotNull(cache.pin("a"));
+        assertNull(cache.pin("b"));
+        assertFalse(cache.getFile("b").exists());
+        assertEquals(80L, cache.getStatistics().get("bytes"));
+    }
+
+    @Test
+    public void pinnedExportsAreKeptUntilReleased() throws IOException {
+        ExportCache cache = new ExportCache(directory, 100L, TTL);
+
+        write(cache, "a", 200);
+        ExportCache.Pin pin = cache.add("a");
+        cache.evict();
+        assertTrue(pin.getFile().exists());
+
+        pin.release();
+        assertFalse(pin.getFile().exists());
+        assertEquals(0L, cache.getStatistics().get("bytes"));
+    }
+
+    @Test
+    public void expiredExportsAreRemoved() throws IOException {
+        ExportCache cache = new ExportCache(directory, 100L, -1L);
+
+        write(cache, "a", 10);
+        cache.add("a").release();
+
+        assertNull(cache.pin("a"));
+        assertFalse(cache.getFile("a").exists());
+        assertEquals(1L, cache.getStatistics().get("expirations"));
+    }
+
+    @Test
+    public void exportsSurviveRestart() throws IOException {
+        ExportCache cache = new ExportCache(directory, 100L, TTL);
+        write(cache, "a", 10);
+        cache.add("a").release();
+        File unfinished = new File(directory, "b.gz.part");
+        unfinished.createNewFile();
+
+        cache = new ExportCache(directory, 100L, TTL);
+        assertNotNull(cache.pin("a"));
+        assertFalse(unfinished.exists());
+    }
+
+    private static void write(ExportCache cache, String uuid, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(cache.getFile(uuid));
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+}
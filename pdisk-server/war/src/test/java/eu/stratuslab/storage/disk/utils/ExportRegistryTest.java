@@ -0,0 +1,110 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExportRegistryTest {
+
+    private File part;
+
+    @Before
+    public void setUp() throws IOException {
+        part = File.createTempFile("export", ".part");
+    }
+
+    @After
+    public void tearDown() {
+        part.delete();
+    }
+
+    @Test
+    public void followerReceivesOutputWrittenLater() throws Exception {
+        final ExportRegistry.SharedStream shared = new ExportRegistry.SharedStream(part);
+        final byte[] data = new byte[300 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        InputStream in = shared.open();
+
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    FileOutputStream out = new FileOutputStream(part);
+                    for (int offset = 0; offset < data.length; offset += 1000) {
+                        int length = Math.min(1000, data.length - offset);
+                        out.write(data, offset, length);
+                        shared.appended(length);
+                    }
+                    out.close();
+                    shared.finish(true);
+                } catch (IOException e) {
+                    shared.fail();
+                }
+            }
+        };
+        leader.start();
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        shared.follow(in, received);
+        leader.join();
+
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void followerFailsWithLeader() throws IOException {
+        ExportRegistry.SharedStream shared = new ExportRegistry.SharedStream(part);
+        InputStream in = shared.open();
+        shared.finish(false);
+
+        shared.follow(in, new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void exportGoesOnForFollowersWhenLeaderLeaves() throws IOException {
+        ExportRegistry.SharedStream shared = new ExportRegistry.SharedStream(part);
+        InputStream in = shared.open();
+
+        ExportRegistry.LeaderOutputStream leader = new ExportRegistry.LeaderOutputStream(new FailingOutputStream(),
+                shared, false);
+        leader.write(new byte[10], 0, 10);
+        leader.write(new byte[10], 0, 10);
+
+        try {
+            leader.rethrowFailure();
+            fail("failure of the leader was lost");
+        } catch (IOException e) {
+        }
+        FileUtils.closeIgnoringError(in);
+    }
+
+    @Test(expected = IOException.class)
+    public void exportStopsWhenNobodyFollows() throws IOException {
+        ExportRegistry.SharedStream shared = new ExportRegistry.SharedStream(part);
+
+        ExportRegistry.LeaderOutputStream leader = new ExportRegistry.LeaderOutputStream(new FailingOutputStream(),
+                shared, false);
+        leader.write(new byte[10], 0, 10);
+    }
+
+    private static final class FailingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("client went away");
+        }
+    }
+
+}
@@ -1,10 +1,17 @@
 package eu.stratuslab.storage.disk.utils;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Map;
 
 import org.junit.Test;
 import org.restlet.resource.ResourceException;
@@ -61,6 +68,29 @@ public class FileUtilsTest {
         assertTrue("close() not called on closeable", c.wasClosed());
     }
 
+    @Test
+    public void copyWithDigestCopiesAndHashes() throws Exception {
+        byte[] data = new byte[3 * FileUtils.COPY_BUFFER_SIZE + 17];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<String, BigInteger> info = FileUtils.copyWithDigest(new ByteArrayInputStream(data), out, 0L);
+
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(BigInteger.valueOf(data.length), info.get("BYTES"));
+
+        BigInteger expected = new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(data));
+        assertEquals(expected, info.get("SHA-1"));
+    }
+
+    @Test(expected = IOException.class)
+    public void copyWithDigestStopsAtLimit() throws IOException {
+        byte[] data = new byte[1024];
+        FileUtils.copyWithDigest(new ByteArrayInputStream(data), new ByteArrayOutputStream(), 1000L);
+    }
+
     private static class CloseableTester implements Closeable {
 
         private boolean closed = false;
@@ -0,0 +1,100 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HotplugDispatcherTest {
+
+    @Test
+    public void ownersAreServedInTurn() throws InterruptedException {
+        final HotplugDispatcher dispatcher = new HotplugDispatcher(1, 10);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        HotplugDispatcher.Ticket running = dispatcher.acquire("node1", "a");
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final String request : Arrays.asList("a1", "a2", "a3", "b1", "b2")) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    HotplugDispatcher.Ticket ticket = dispatcher.acquire("node1", request.substring(0, 1));
+                    order.add(request);
+                    ticket.release();
+                }
+            };
+            thread.start();
+            threads.add(thread);
+            waitForQueued(dispatcher, threads.size());
+        }
+
+        running.release();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+
+        assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3"), order);
+        assertEquals(0, dispatcher.getStatistics().get("running"));
+        assertEquals(6L, dispatcher.getStatistics().get("admitted"));
+    }
+
+    @Test
+    public void nodesAreIndependent() {
+        HotplugDispatcher dispatcher = new HotplugDispatcher(1, 0);
+
+        HotplugDispatcher.Ticket first = dispatcher.acquire("node1", "a");
+        HotplugDispatcher.Ticket second = dispatcher.acquire("node2", "a");
+        assertEquals(2, dispatcher.getStatistics().get("running"));
+
+        first.release();
+        first.release();
+        second.release();
+        assertEquals(0, dispatcher.getStatistics().get("running"));
+    }
+
+    @Test
+    public void fullQueuesRefuseRequests() throws InterruptedException {
+        final HotplugDispatcher dispatcher = new HotplugDispatcher(1, 1);
+
+        HotplugDispatcher.Ticket running = dispatcher.acquire("node1", "a");
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                dispatcher.acquire("node1", "b").release();
+            }
+        };
+        waiter.start();
+        waitForQueued(dispatcher, 1);
+
+        try {
+            dispatcher.acquire("node1", "c");
+            fail("the queue should be full");
+        } catch (RetryLaterException e) {
+            assertEquals(503, e.getStatus().getCode());
+            assertTrue(e.getRetryAfter() >= 1);
+        }
+        assertEquals(1L, dispatcher.getStatistics().get("rejected"));
+
+        running.release();
+        waiter.join(10000);
+        assertEquals(0, dispatcher.getStatistics().get("queued"));
+    }
+
+    private static void waitForQueued(HotplugDispatcher dispatcher, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (((Number) dispatcher.getStatistics().get("waited")).longValue() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("requests were not queued");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.stratuslab.marketplace.metadata.MetadataUtils;
+
+public class ImageCacheTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("images", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void addedImagesCanBeOpened() throws IOException {
+        ImageCache cache = new ImageCache(directory, 100L);
+
+        assertNull(cache.open(BigInteger.ONE));
+        close(cache.add(createPart(cache, 10), BigInteger.ONE));
+
+        InputStream image = cache.open(BigInteger.ONE);
+        assertNotNull(image);
+        assertEquals(10, count(image));
+
+        assertEquals(1L, cache.getStatistics().get("hits"));
+        assertEquals(1L, cache.getStatistics().get("misses"));
+        assertEquals(10L, cache.getStatistics().get("bytes_saved"));
+    }
+
+    @Test
+    public void imagesCanBeOpenedByIdentifier() throws IOException {
+        ImageCache cache = new ImageCache(directory, 100L);
+        String identifier = MetadataUtils.sha1ToIdentifier(BigInteger.ONE);
+
+        assertNull(cache.open(null, identifier));
+        close(cache.add(createPart(cache, 10), BigInteger.ONE));
+        close(cache.add(createPart(cache, 95), BigInteger.valueOf(2)));
+
+        // the first image was evicted with its identifier
+        assertNull(cache.open(null, identifier));
+
+        close(cache.add(createPart(cache, 10), BigInteger.ONE));
+        cache = new ImageCache(directory, 100L);
+        InputStream image = cache.open(null, identifier);
+        assertNotNull(image);
+        assertEquals(10, count(image));
+    }
+
+    @Test
+    public void leastRecentlyUsedImagesAreEvicted() throws IOException {
+        ImageCache cache = new ImageCache(directory, 100L);
+
+        close(cache.add(createPart(cache, 40), BigInteger.valueOf(1)));
+        close(cache.add(createPart(cache, 40), BigInteger.valueOf(2)));
+        close(cache.open(BigInteger.valueOf(1)));
+        close(cache.add(createPart(cache, 40), BigInteger.valueOf(3)));
+
+        assertNotNull(cache.open(BigInteger.valueOf(1)));
+        assertNull(cache.open(BigInteger.valueOf(2)));
+        assertNotNull(cache.open(BigInteger.valueOf(3)));
+        assertEquals(80L, cache.getStatistics().get("bytes"));
+        assertEquals(2, directory.list().length);
+    }
+
+    @Test
+    public void oversizedImagesAreNotKept() throws IOException {
+        ImageCache cache = new ImageCache(directory, 100L);
+
+        File part = createPart(cache, 200);
+        InputStream image = cache.add(part, BigInteger.ONE);
+        assertEquals(200, count(image));
+
+        assertFalse(part.exists());
+        assertNull(cache.open(BigInteger.ONE));
+    }
+
+    @Test
+    public void imagesSurviveRestart() throws IOException {
+        ImageCache cache = new ImageCache(directory, 100L);
+        close(cache.add(createPart(cache, 10), BigInteger.ONE));
+        File unfinished = createPart(cache, 10);
+
+        cache = new ImageCache(directory, 100L);
+        assertNotNull(cache.open(BigInteger.ONE));
+        assertFalse(unfinished.exists());
+    }
+
+    @Test
+    public void disabledWithoutSize() {
+        ImageCache cache = new ImageCache(directory, 0L);
+        assertFalse(cache.isEnabled());
+        assertFalse(directory.exists());
+        assertTrue(new ImageCache(directory, 1L).isEnabled());
+    }
+
+    private static File createPart(ImageCache cache, int size) throws IOException {
+        File part = cache.createPartFile();
+        FileOutputStream out = new FileOutputStream(part);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return part;
+    }
+
+    private static int count(InputStream in) throws IOException {
+        try {
+            int count = 0;
+            while (in.read() >= 0) {
+                count++;
+            }
+            return count;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void close(InputStream in) throws IOException {
+        in.close();
+    }
+
+}
@@ -0,0 +1,141 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+public class JobManagerTest {
+
+    private JobManager manager;
+
+    @After
+    public void tearDown() {
+        if (manager != null) {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    public void successfulJobsKeepTheirResult() throws InterruptedException {
+        manager = new JobManager(1, 4, 60000L);
+
+        Job job = manager.submit("test", "owner", new Callable<String>() {
+            public String call() {
+                Job.setPhase("working");
+                Job.reportProgress(5L, 10L);
+                return "uuid";
+            }
+        });
+
+        waitFor(job);
+        assertEquals(Job.State.SUCCEEDED, job.getState());
+        assertEquals("uuid", job.getResult());
+        assertEquals("working", job.getPhase());
+        assertEquals(5L, job.getBytesDone());
+        assertEquals(10L, job.getBytesTotal());
+        assertEquals("owner", job.getOwner());
+        assertTrue(manager.get(job.getId()) == job);
+    }
+
+    @Test
+    public void failedJobsKeepTheError() throws InterruptedException {
+        manager = new JobManager(1, 4, 60000L);
+
+        Job conflict = manager.submit("test", "owner", new Callable<String>() {
+            public String call() {
+                throw new ResourceException(Status.CLIENT_ERROR_CONFLICT, "busy");
+            }
+        });
+        Job crash = manager.submit("test", "owner", new Callable<String>() {
+            public String call() {
+                throw new IllegalStateException("broken");
+            }
+        });
+
+        waitFor(conflict);
+        waitFor(crash);
+        assertEquals(Job.State.FAILED, conflict.getState());
+        assertEquals(409, conflict.getErrorStatus());
+        assertEquals("busy", conflict.getError());
+        assertEquals(Job.State.FAILED, crash.getState());
+        assertEquals(500, crash.getErrorStatus());
+        assertNull(crash.getResult());
+    }
+
+    @Test
+    public void jobsAreRefusedWhenTheQueueIsFull() throws InterruptedException {
+        manager = new JobManager(1, 1, 60000L);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        Callable<String> blocked = new Callable<String>() {
+            public String call() throws InterruptedException {
+                started.countDown();
+                release.await();
+                return "done";
+            }
+        };
+
+        Job running = manager.submit("test", "owner", blocked);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Job queued = manager.submit("test", "owner", blocked);
+        assertEquals(Job.State.QUEUED, queued.getState());
+
+        try {
+            manager.submit("test", "owner", blocked);
+            fail("the queue should be full");
+        } catch (ResourceException e) {
+            assertEquals(503, e.getStatus().getCode());
+        }
+        assertEquals(1L, manager.getStatistics().get("rejected"));
+
+        release.countDown();
+        waitFor(running);
+        waitFor(queued);
+        assertEquals(Job.State.SUCCEEDED, queued.getState());
+    }
+
+    @Test
+    public void finishedJobsAreForgottenAfterTheRetention() throws InterruptedException {
+        manager = new JobManager(1, 4, 0L);
+
+        Job job = manager.submit("test", "owner", new Callable<String>() {
+            public String call() {
+                return "uuid";
+            }
+        });
+        waitFor(job);
+        Thread.sleep(10);
+
+        assertNull(manager.get(job.getId()));
+    }
+
+    @Test
+    public void progressOutsideJobsIsIgnored() {
+        Job.setPhase("nothing");
+        Job.reportProgress(1L, 2L);
+    }
+
+    private static void waitFor(Job job) throws InterruptedException {
+        assertNotNull(job);
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (!job.isFinished()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("job " + job.getId() + " did not finish");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+}
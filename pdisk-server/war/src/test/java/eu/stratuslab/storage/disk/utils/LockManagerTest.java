@@ -0,0 +1,76 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class LockManagerTest {
+
+    @Test
+    public void locksAreReentrant() {
+        LockManager.Locks outer = LockManager.lockDiskAndInstance("disk-a", "vm-1");
+        LockManager.Locks inner = LockManager.lockDisks("disk-a");
+        inner.release();
+        outer.release();
+    }
+
+    @Test
+    public void sameDiskIsSerialized() throws InterruptedException {
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger maxInside = new AtomicInteger();
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        LockManager.Locks locks = LockManager.lockDisks("disk-b");
+                        try {
+                            int n = inside.incrementAndGet();
+                            maxInside.set(Math.max(maxInside.get(), n));
+                            inside.decrementAndGet();
+                        } finally {
+                            locks.release();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(maxInside.get() == 1);
+    }
+
+    @Test
+    public void opposingOrderDoesNotDeadlock() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(2);
+
+        startLocking("disk-c", "disk-d", done);
+        startLocking("disk-d", "disk-c", done);
+
+        assertTrue("deadlock", done.await(30, TimeUnit.SECONDS));
+    }
+
+    private static void startLocking(final String first, final String second, final CountDownLatch done) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10000; i++) {
+                    LockManager.lockDisks(first, second).release();
+                }
+                done.countDown();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+}
@@ -0,0 +1,68 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class NodeConnectionManagerTest {
+
+    private static final File CONTROL_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "ssh-test");
+
+    @Test
+    public void directSessionsDisableMultiplexing() {
+        NodeConnectionManager manager = new NodeConnectionManager(CONTROL_DIRECTORY, "oneadmin", "/key", 0, 2);
+
+        NodeConnectionManager.Session session = manager.open("node1");
+        try {
+            assertFalse(session.isMultiplexed());
+
+            List<String> cmd = session.createCommand();
+            assertEquals("ssh", cmd.get(0));
+            assertTrue(cmd.contains("ControlPath=none"));
+            assertEquals("oneadmin@node1", cmd.get(cmd.size() - 1));
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void sessionsPerNodeAreLimited() throws InterruptedException {
+        final NodeConnectionManager manager = new NodeConnectionManager(CONTROL_DIRECTORY, "oneadmin", "/key", 0,
+                1);
+
+        NodeConnectionManager.Session first = manager.open("node1");
+
+        // Other nodes are not affected.
+        manager.open("node2").close();
+
+        final CountDownLatch opened = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                manager.open("node1").close();
+                opened.countDown();
+            }
+        };
+        waiter.start();
+
+        assertFalse(opened.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, manager.getStatistics().get("active_sessions"));
+
+        first.close();
+        first.close();
+        assertTrue(opened.await(10, TimeUnit.SECONDS));
+        waiter.join();
+
+        assertEquals(0, manager.getStatistics().get("active_sessions"));
+        assertEquals(1L, manager.getStatistics().get("waits"));
+        assertEquals(3L, manager.getStatistics().get("sessions"));
+    }
+
+}
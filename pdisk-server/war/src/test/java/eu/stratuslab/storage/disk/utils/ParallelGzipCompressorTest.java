@@ -0,0 +1,73 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelGzipCompressorTest {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private ParallelGzipCompressor compressor;
+
+    @Before
+    public void setUp() {
+        compressor = new ParallelGzipCompressor(3, 6, BLOCK_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        compressor.shutdown();
+    }
+
+    @Test
+    public void membersInflateToTheInput() throws IOException {
+        // Compressible data spanning many blocks, the last one partial.
+        byte[] data = new byte[20 * BLOCK_SIZE + 1234];
+        Random random = new Random(42);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+
+        byte[] compressed = compress(data);
+
+        assertTrue(compressed.length < data.length);
+        assertArrayEquals(data, inflate(compressed));
+        assertEquals(21L, compressor.getStatistics().get("blocks"));
+    }
+
+    @Test
+    public void emptyInputGivesEmptyOutput() throws IOException {
+        assertEquals(0, compress(new byte[0]).length);
+    }
+
+    private byte[] compress(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compressor.compress(new ByteArrayInputStream(data), out);
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,179 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class RangedDownloaderTest {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    private final byte[] data = new byte[10 * SEGMENT_SIZE + 123];
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private ImageHandler handler;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 % 253);
+        }
+
+        handler = new ImageHandler();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/image.img", handler);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+
+        file = File.createTempFile("ranged", ".img");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+        file.delete();
+    }
+
+    @Test
+    public void downloadsAllSegments() throws Exception {
+        RangedDownloader downloader = new RangedDownloader(4, SEGMENT_SIZE, 0);
+
+        RangedDownloader.Probe probe = downloader.probe(getUrl());
+        assertNotNull(probe);
+        assertEquals(data.length, probe.getLength());
+
+        Map<String, BigInteger> info = downloader.download(getUrl(), file, probe);
+
+        assertArrayEquals(data, readFile());
+        assertEquals(BigInteger.valueOf(data.length), info.get("BYTES"));
+        assertEquals(new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(data)), info.get("SHA-1"));
+        assertEquals(11, handler.ranges.get());
+    }
+
+    @Test
+    public void resumesInterruptedSegments() throws Exception {
+        handler.truncated.set(3);
+
+        RangedDownloader downloader = new RangedDownloader(2, SEGMENT_SIZE, 2);
+        downloader.download(getUrl(), file, downloader.probe(getUrl()));
+
+        assertArrayEquals(data, readFile());
+    }
+
+    @Test
+    public void noProbeWithoutRangeSupport() {
+        handler.acceptRanges = false;
+        assertNull(new RangedDownloader(4, SEGMENT_SIZE, 0).probe(getUrl()));
+    }
+
+    @Test
+    public void noProbeForSmallFiles() {
+        assertNull(new RangedDownloader(4, data.length, 0).probe(getUrl()));
+    }
+
+    @Test(expected = RangedDownloader.RangesUnsupportedException.class)
+    public void failsWhenRangesAreIgnored() throws IOException {
+        RangedDownloader downloader = new RangedDownloader(4, SEGMENT_SIZE, 3);
+        RangedDownloader.Probe probe = downloader.probe(getUrl());
+
+        handler.acceptRanges = false;
+        downloader.download(getUrl(), file, probe);
+    }
+
+    private String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/image.img";
+    }
+
+    private byte[] readFile() throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < contents.length) {
+                offset += in.read(contents, offset, contents.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+
+    // Serves the image, with byte ranges unless disabled; the first
+    // 'truncated' range responses are cut short.
+    private class ImageHandler implements HttpHandler {
+
+        volatile boolean acceptRanges = true;
+        final AtomicInteger truncated = new AtomicInteger();
+        final AtomicInteger ranges = new AtomicInteger();
+
+        public void handle(HttpExchange exchange) throws IOException {
+            if (acceptRanges) {
+                exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            }
+
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            Matcher matcher = (range != null && acceptRanges) ? RANGE.matcher(range) : null;
+
+            int start = 0;
+            int end = data.length - 1;
+            int status = 200;
+            if (matcher != null && matcher.matches()) {
+                start = Integer.parseInt(matcher.group(1));
+                end = Integer.parseInt(matcher.group(2));
+                status = 206;
+                ranges.incrementAndGet();
+                exchange.getResponseHeaders().add("Content-Range",
+                        "bytes " + start + "-" + end + "/" + data.length);
+            }
+
+            int length = end - start + 1;
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+                return;
+            }
+
+            exchange.sendResponseHeaders(status, length);
+            OutputStream out = exchange.getResponseBody();
+            if (status == 206 && truncated.getAndDecrement() > 0) {
+                out.write(data, start, length / 2);
+                out.flush();
+                exchange.close();
+                return;
+            }
+            out.write(data, start, length);
+            out.close();
+        }
+    }
+
+}
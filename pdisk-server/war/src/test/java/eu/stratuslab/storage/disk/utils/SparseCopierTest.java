@@ -0,0 +1,179 @@
+package eu.stratuslab.storage.disk.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SparseCopierTest {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private File src;
+    private File dst;
+
+    @Before
+    public void setUp() throws IOException {
+        src = File.createTempFile("sparse", ".img");
+        dst = File.createTempFile("sparse", ".copy");
+    }
+
+    @After
+    public void tearDown() {
+        src.delete();
+        dst.delete();
+    }
+
+    @Test
+    public void zeroBlocksAreNotWritten() throws IOException {
+        // data at the start and in the middle of a block, zeros elsewhere
+        byte[] data = new byte[3 * BLOCK_SIZE + 100];
+        data[0] = 1;
+        data[BLOCK_SIZE + 5000] = 2;
+        write(src, data);
+        write(dst, new byte[5 * BLOCK_SIZE]);
+
+        long written = new SparseCopier(BLOCK_SIZE, 0L, false).copy(src, dst, null);
+
+        assertArrayEquals(data, head(read(dst), data.length));
+        assertEquals(2 * 4096L, written);
+    }
+
+    @Test
+    public void existingFileKeepsItsSize() throws IOException {
+        byte[] data = new byte[2 * BLOCK_SIZE + 100];
+        data[10] = 1;
+        write(src, data);
+
+        // a volume larger than the image, with stale data where the image
+        // has zeros and beyond its end
+        byte[] volume = new byte[8 * BLOCK_SIZE];
+        volume[BLOCK_SIZE] = 3;
+        volume[2 * BLOCK_SIZE + 50] = 4;
+        volume[6 * BLOCK_SIZE] = 5;
+        write(dst, volume);
+
+        long written = new SparseCopier(BLOCK_SIZE, 0L, false).copy(src, dst, null);
+
+        byte[] expected = new byte[8 * BLOCK_SIZE];
+        expected[10] = 1;
+        assertArrayEquals(expected, read(dst));
+        assertEquals(3 * 4096L + 100, written);
+    }
+
+    @Test
+    public void newFileHasTheSizeOfTheImage() throws IOException {
+        byte[] data = new byte[2 * BLOCK_SIZE + 100];
+        data[10] = 1;
+        write(src, data);
+        dst.delete();
+
+        new SparseCopier(BLOCK_SIZE, 0L, false).copy(src, dst, null);
+
+        assertArrayEquals(data, read(dst));
+    }
+
+    @Test
+    public void streamIsCopiedWithDigest() throws IOException {
+        byte[] data = new byte[3 * BLOCK_SIZE + 100];
+        data[0] = 1;
+        data[2 * BLOCK_SIZE + 10] = 2;
+        write(dst, new byte[5 * BLOCK_SIZE]);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Map<String, BigInteger> expectedInfo = FileUtils.copyWithDigest(new ByteArrayInputStream(data), expected,
+                0L);
+
+        Map<String, BigInteger> info = new SparseCopier(BLOCK_SIZE, 0L, false).copyWithDigest(
+                new ByteArrayInputStream(data), dst, 0L);
+
+        assertArrayEquals(data, head(read(dst), data.length));
+        assertEquals(5L * BLOCK_SIZE, dst.length());
+        assertEquals(expectedInfo, info);
+    }
+
+    @Test(expected = IOException.class)
+    public void longStreamIsRefused() throws IOException {
+        new SparseCopier(BLOCK_SIZE, 0L, false).copyWithDigest(new ByteArrayInputStream(new byte[BLOCK_SIZE + 1]),
+                dst, BLOCK_SIZE);
+    }
+
+    @Test
+    public void progressIsReported() throws IOException {
+        write(src, new byte[2 * BLOCK_SIZE + 1]);
+        final long[] last = new long[2];
+
+        new SparseCopier(BLOCK_SIZE, 0L, false).copy(src, dst, new SparseCopier.Progress() {
+            public void copied(long position, long total) {
+                last[0] = position;
+                last[1] = total;
+            }
+        });
+
+        assertEquals(2L * BLOCK_SIZE + 1, last[0]);
+        assertEquals(2L * BLOCK_SIZE + 1, last[1]);
+    }
+
+    @Test
+    public void rateIsLimited() throws IOException {
+        write(src, new byte[4 * BLOCK_SIZE]);
+
+        long start = System.currentTimeMillis();
+        new SparseCopier(BLOCK_SIZE, 1024L * 1024L, false).copy(src, dst);
+
+        assertTrue(System.currentTimeMillis() - start >= 200L);
+    }
+
+    @Test
+    public void detectsZeroRegions() {
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        assertTrue(SparseCopier.isZero(buffer, 0, 20));
+        buffer.put(19, (byte) 1);
+        assertFalse(SparseCopier.isZero(buffer, 0, 20));
+        assertTrue(SparseCopier.isZero(buffer, 0, 19));
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] head(byte[] contents, int length) {
+        byte[] head = new byte[length];
+        System.arraycopy(contents, 0, head, 0, length);
+        return head;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < contents.length) {
+                offset += in.read(contents, offset, contents.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+
+}
@@ -95,6 +95,6 @@ public class GZipRequestTest {
     }
 
     private void waitCacheToExpire() {
-        MiscUtils.sleep(2 * ServiceConfiguration.CACHE_EXPIRATION_DURATION);
+        MiscUtils.sleep(2000 * ServiceConfiguration.getInstance().EXPORT_CACHE_TTL);
     }
 }
@@ -0,0 +1,66 @@
+package eu.stratuslab.storage.persistent;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import eu.stratuslab.storage.persistence.DeviceAllocator;
+
+/**
+ * Cost of finding a free device as the number of devices in use grows, for
+ * the bitmap against a lookup of each name in turn as was done before. Run
+ * manually: timings are meaningless in the normal build.
+ */
+@Ignore
+public class DeviceAllocatorBenchmark {
+
+    private static final int[] SIZES = { 1, 13, 25, 100, 500 };
+
+    private static final int ROUNDS = 100000;
+
+    @Test
+    public void allocationLatency() {
+        for (int size : SIZES) {
+            DeviceAllocator allocator = new DeviceAllocator(size + 1);
+            String[] devices = new String[size];
+            for (int i = 0; i < size; i++) {
+                devices[i] = DeviceAllocator.deviceName(i);
+                allocator.markUsed(devices[i]);
+            }
+
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                allocator.release(allocator.allocate());
+            }
+            long bitmap = (System.nanoTime() - start) / ROUNDS;
+
+            start = System.nanoTime();
+            int found = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                found += scan(devices, size + 1);
+            }
+            long scan = (System.nanoTime() - start) / ROUNDS;
+
+            System.out.println(size + " devices used: bitmap " + bitmap + " ns, scan " + scan + " ns ("
+                    + (found / ROUNDS) + ")");
+        }
+    }
+
+    // Previous algorithm: each candidate name compared with every mount.
+    private static int scan(String[] used, int maxDevices) {
+        for (int index = 0; index < maxDevices; index++) {
+            String device = DeviceAllocator.deviceName(index);
+            boolean inUse = false;
+            for (String mount : used) {
+                if (device.equals(mount)) {
+                    inUse = true;
+                    break;
+                }
+            }
+            if (!inUse) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,122 @@
+package eu.stratuslab.storage.persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import eu.stratuslab.storage.persistence.DeviceAllocator;
+
+public class DeviceAllocatorTest {
+
+	@Test
+	public void testDeviceNames() {
+		assertEquals("vdz", DeviceAllocator.deviceName(0));
+		assertEquals("vda", DeviceAllocator.deviceName(25));
+		assertEquals("vdaa", DeviceAllocator.deviceName(26));
+		assertEquals("vdaz", DeviceAllocator.deviceName(51));
+		assertEquals("vdba", DeviceAllocator.deviceName(52));
+		assertEquals("vdzz", DeviceAllocator.deviceName(701));
+		assertEquals("vdaaa", DeviceAllocator.deviceName(702));
+
+		for (int index = 0; index < 1000; index++) {
+			assertEquals(index, DeviceAllocator.indexOf(DeviceAllocator.deviceName(index)));
+		}
+	}
+
+	@Test
+	public void testForeignNamesAreIgnored() {
+		for (String device : Arrays.asList(null, "", "vd", "sda", "vdA", "vd1", "static", "vdaaaaa")) {
+			assertEquals(-1, DeviceAllocator.indexOf(device));
+		}
+
+		DeviceAllocator allocator = new DeviceAllocator(26);
+		assertFalse(allocator.markUsed("static"));
+		assertEquals(26, allocator.getFreeCount());
+	}
+
+	@Test
+	public void testAllocatesFromVdzDownwards() {
+		DeviceAllocator allocator = new DeviceAllocator(26);
+		assertTrue(allocator.markUsed("vdz"));
+		assertTrue(allocator.markUsed("vdx"));
+
+		assertEquals(Arrays.asList("vdy", "vdw", "vdv"), allocator.allocate(3));
+		assertTrue(allocator.isUsed("vdv"));
+		assertEquals(21, allocator.getFreeCount());
+
+		allocator.release("vdy");
+		assertEquals("vdy", allocator.allocate());
+	}
+
+	@Test
+	public void testExtendedNamesBeyondVda() {
+		DeviceAllocator allocator = new DeviceAllocator(28);
+
+		List<String> devices = allocator.allocate(28);
+		assertEquals("vdz", devices.get(0));
+		assertEquals("vda", devices.get(25));
+		assertEquals("vdaa", devices.get(26));
+		assertEquals("vdab", devices.get(27));
+	}
+
+	@Test
+	public void testMaximumIsEnforced() {
+		DeviceAllocator allocator = new DeviceAllocator(26);
+		allocator.allocate(25);
+
+		try {
+			allocator.allocate(2);
+			fail("allocated beyond the maximum");
+		} catch (ResourceException e) {
+			assertEquals(Status.CLIENT_ERROR_CONFLICT, e.getStatus());
+		}
+
+		// A failed batch allocates nothing.
+		assertEquals("vda", allocator.allocate());
+
+		try {
+			allocator.allocate();
+			fail("allocated beyond the maximum");
+		} catch (ResourceException e) {
+			assertEquals(Status.CLIENT_ERROR_CONFLICT, e.getStatus());
+		}
+	}
+
+	@Test
+	public void testConcurrentAllocationsAreDistinct() throws InterruptedException {
+		final DeviceAllocator allocator = new DeviceAllocator(400);
+		final List<String> allocated = Collections.synchronizedList(new ArrayList<String>());
+
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 50; j++) {
+						allocated.add(allocator.allocate());
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+
+		assertEquals(400, allocated.size());
+		assertEquals(400, new HashSet<String>(allocated).size());
+		assertEquals(0, allocator.getFreeCount());
+	}
+
+}
@@ -0,0 +1,53 @@
+package eu.stratuslab.storage.persistent;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import eu.stratuslab.storage.persistence.Disk;
+import eu.stratuslab.storage.persistence.Disk.DiskType;
+import eu.stratuslab.storage.persistence.PersistenceUtil;
+
+/**
+ * Listing latency and number of SQL statements as the number of disks grows.
+ * Run manually: it takes too long for the normal build.
+ */
+@Ignore
+public class DiskListingBenchmark {
+
+    private static final int[] SIZES = { 100, 1000, 5000 };
+
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void listingLatency() {
+        int created = 0;
+        for (int size : SIZES) {
+            for (; created < size; created++) {
+                Disk origin = new Disk();
+                origin.setType(DiskType.MACHINE_IMAGE_ORIGIN);
+                origin.store();
+
+                Disk snapshot = new Disk();
+                snapshot.setIdentifier("snapshot:" + origin.getUuid());
+                snapshot.store();
+            }
+
+            // Evict cached results so that every round hits the database.
+            PersistenceUtil.evictCacheRegion(PersistenceUtil.ALL_REGIONS);
+            Disk.listAll();
+
+            long statements = PersistenceUtil.getStatementCount();
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                PersistenceUtil.evictCacheRegion(PersistenceUtil.ALL_REGIONS);
+                Disk.listAll();
+            }
+            long elapsed = (System.nanoTime() - start) / ROUNDS / 1000000L;
+            statements = (PersistenceUtil.getStatementCount() - statements) / ROUNDS;
+
+            System.out.println(size + " origins (" + (2 * size) + " disks): " + elapsed + " ms, " + statements
+                    + " statements per listing");
+        }
+    }
+
+}
@@ -2,10 +2,19 @@ package eu.stratuslab.storage.persistent;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.junit.Test;
 
 import eu.stratuslab.storage.persistence.Disk;
+import eu.stratuslab.storage.persistence.Disk.DiskType;
+import eu.stratuslab.storage.persistence.DiskFilter;
+import eu.stratuslab.storage.persistence.DiskView;
+import eu.stratuslab.storage.persistence.PersistenceUtil;
 
 public class DiskTest {
 
@@ -31,4 +40,96 @@ public class DiskTest {
 
         assertThat(Disk.countSnapshots(origin.getUuid()), is((int) 2));
     }
+
+    @Test
+    public void testListingCountsSnapshotsWithConstantQueries() {
+        for (int i = 0; i < 20; i++) {
+            Disk origin = new Disk();
+            origin.setType(DiskType.MACHINE_IMAGE_ORIGIN);
+            origin.store();
+
+            Disk snapshot = new Disk();
+            snapshot.setIdentifier("snapshot:" + origin.getUuid());
+            snapshot.store();
+        }
+
+        long before = PersistenceUtil.getStatementCount();
+        List<DiskView> views = Disk.listAll();
+        long statements = PersistenceUtil.getStatementCount() - before;
+
+        assertTrue("listing used " + statements + " statements", statements <= 3);
+
+        Disk origin = new Disk();
+        origin.setType(DiskType.MACHINE_IMAGE_ORIGIN);
+        origin.store();
+        for (int i = 0; i < 3; i++) {
+            Disk snapshot = new Disk();
+            snapshot.setIdentifier("snapshot:" + origin.getUuid());
+            snapshot.store();
+        }
+
+        boolean found = false;
+        for (DiskView view : Disk.listAll()) {
+            if (view.getUuid().equals(origin.getUuid())) {
+                assertThat(view.getUsersCount(), is(3));
+                found = true;
+            }
+        }
+        assertTrue("origin not listed", found);
+    }
+
+    @Test
+    public void testPagedListingReturnsEveryDiskOnce() {
+        String owner = "pager-" + System.nanoTime();
+        for (int i = 0; i < 7; i++) {
+            Disk disk = new Disk();
+            disk.setOwner(owner);
+            disk.store();
+        }
+
+        DiskFilter filter = new DiskFilter();
+        filter.setOwner(owner);
+        filter.setLimit(3);
+
+        Set<String> seen = new HashSet<String>();
+        List<DiskView> page = Disk.list(filter);
+        while (!page.isEmpty()) {
+            for (DiskView view : page) {
+                assertTrue("listed twice: " + view.getUuid(), seen.add(view.getUuid()));
+            }
+            filter.setAfter(DiskFilter.cursorOf(page.get(page.size() - 1)));
+            page = Disk.list(filter);
+        }
+
+        assertThat(seen.size(), is(7));
+    }
+
+    @Test
+    public void testListingFilters() {
+        String owner = "filter-" + System.nanoTime();
+        Disk origin = new Disk();
+        origin.setOwner(owner);
+        origin.setType(DiskType.MACHINE_IMAGE_ORIGIN);
+        origin.setTag("base");
+        origin.store();
+
+        Disk data = new Disk();
+        data.setOwner(owner);
+        data.setTag("data");
+        data.store();
+
+        DiskFilter filter = new DiskFilter();
+        filter.setOwner(owner);
+        filter.setType(DiskType.MACHINE_IMAGE_ORIGIN);
+        List<DiskView> views = Disk.list(filter);
+        assertThat(views.size(), is(1));
+        assertThat(views.get(0).getUuid(), is(origin.getUuid()));
+
+        filter = new DiskFilter();
+        filter.setOwner(owner);
+        filter.setTag("data");
+        views = Disk.list(filter);
+        assertThat(views.size(), is(1));
+        assertThat(views.get(0).getUuid(), is(data.getUuid()));
+    }
 }
@@ -1,5 +1,13 @@
 package eu.stratuslab.storage.persistent;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.junit.Test;
 
 import eu.stratuslab.storage.persistence.Disk;
@@ -26,4 +34,37 @@ public class MountTest {
 		disk.remove();
 		instance.remove();
 	}
+
+	@Test
+	public void testStoreAndRemoveMountsTogether() {
+
+		Disk first = new Disk();
+		first.store();
+		Disk second = new Disk();
+		second.store();
+		Instance instance = new Instance("456", "test");
+
+		List<Mount> mounts = new ArrayList<Mount>();
+		List<String> targets = instance.nextDiskTargets(2);
+		for (Disk disk : Arrays.asList(first, second)) {
+			Mount mount = new Mount(instance, disk);
+			mount.setDevice(targets.get(mounts.size()));
+			instance.getMounts().put(mount.getId(), mount);
+			mounts.add(mount);
+		}
+		Mount.store(instance, mounts);
+
+		assertNotNull(Instance.load("456"));
+		assertEquals("vdz", Mount.load(instance, first).getDevice());
+		assertEquals("vdy", Mount.load(instance, second).getDevice());
+
+		Mount.remove(Arrays.asList(mounts.get(0).getId(), mounts.get(1).getId()));
+
+		assertNull(Mount.load(instance, first));
+		assertNull(Mount.load(instance, second));
+
+		first.remove();
+		second.remove();
+		instance.remove();
+	}
 }
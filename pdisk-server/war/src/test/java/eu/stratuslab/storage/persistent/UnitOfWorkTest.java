@@ -0,0 +1,95 @@
+package eu.stratuslab.storage.persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import eu.stratuslab.storage.persistence.Disk;
+import eu.stratuslab.storage.persistence.Instance;
+import eu.stratuslab.storage.persistence.Mount;
+import eu.stratuslab.storage.persistence.UnitOfWork;
+
+public class UnitOfWorkTest {
+
+	@Test
+	public void testChangesAreCommittedTogether() {
+
+		Disk disk = new Disk();
+		Instance instance = new Instance("uow-1", "test");
+		Mount mount = new Mount(instance, disk);
+		mount.setDevice("vdz");
+
+		UnitOfWork work = UnitOfWork.begin();
+		try {
+			disk.store();
+			instance.store();
+			mount.store();
+			assertTrue(UnitOfWork.isActive());
+
+			// Nothing is visible before the commit.
+			assertNull(Disk.load(disk.getUuid()));
+
+			work.commit();
+		} finally {
+			work.end();
+		}
+		assertFalse(UnitOfWork.isActive());
+
+		assertNotNull(Disk.load(disk.getUuid()));
+		assertNotNull(Instance.load("uow-1"));
+		assertEquals("vdz", Mount.load(instance, disk).getDevice());
+
+		mount.remove();
+		disk.remove();
+		instance.remove();
+	}
+
+	@Test
+	public void testUncommittedChangesAreRolledBack() {
+
+		Disk disk = new Disk();
+		Instance instance = new Instance("uow-2", "test");
+
+		UnitOfWork work = UnitOfWork.begin();
+		try {
+			disk.store();
+			instance.store();
+		} finally {
+			work.end();
+		}
+
+		assertNull(Disk.load(disk.getUuid()));
+		assertNull(Instance.load("uow-2"));
+	}
+
+	@Test
+	public void testFailedJoinedUnitRollsBackOuterUnit() {
+
+		Disk disk = new Disk();
+
+		UnitOfWork outer = UnitOfWork.begin();
+		try {
+			disk.store();
+
+			UnitOfWork inner = UnitOfWork.begin();
+			inner.end();
+
+			try {
+				outer.commit();
+				fail("committed after a joined unit failed");
+			} catch (IllegalStateException e) {
+			}
+		} finally {
+			outer.end();
+		}
+
+		assertNull(Disk.load(disk.getUuid()));
+		assertFalse(UnitOfWork.isActive());
+	}
+
+}